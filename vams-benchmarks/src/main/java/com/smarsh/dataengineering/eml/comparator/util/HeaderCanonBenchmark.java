@@ -0,0 +1,99 @@
+package com.smarsh.dataengineering.eml.comparator.util;
+
+import org.apache.james.mime4j.stream.Field;
+import org.apache.james.mime4j.stream.RawField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header canonicalization in the comparator, per header block of a typical archived message (routing
+ * headers, folded encoded words, MIME fields): the single-pass {@link TextCanon} and the sorted
+ * {@link CanonicalHeader}, against the regex / {@code TreeMap} implementation they replaced. Run with
+ * {@code -prof gc} for the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderCanonBenchmark {
+
+	private List<Field> fields;
+
+	@Setup
+	public void setup() {
+		fields = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			fields.add(new RawField("Received", "from mx" + i + ".example.com (mx" + i + ".example.com [10.0.0." + i + "])\r\n"
+					+ "\tby relay.example.com with ESMTPS id abc" + i + "\r\n\tfor <b@example.com>; Tue, 3 Mar 2026 10:0" + i + ":00 +0000"));
+		}
+		fields.add(new RawField("From", "\"Sender, Alice\" <alice@example.com>"));
+		fields.add(new RawField("To", "bob@example.com, carol@example.com,\r\n  dave@example.com"));
+		fields.add(new RawField("Subject", "=?UTF-8?B?UXVhcnRlcmx5IHJlcG9ydA==?=\r\n =?UTF-8?B?IGZvciBRMQ==?="));
+		fields.add(new RawField("Date", "Tue, 3 Mar 2026 10:06:00 +0000"));
+		fields.add(new RawField("Message-ID", "<20260303100600.12345@example.com>"));
+		fields.add(new RawField("MIME-Version", "1.0"));
+		fields.add(new RawField("Content-Type", "multipart/mixed;\r\n boundary=\"----=_Part_0_123456789.1700000000000\""));
+		fields.add(new RawField("X-Mailer", "Archive  Export   1.2"));
+		for (int i = 0; i < 4; i++) {
+			fields.add(new RawField("X-TELEMESSAGE-Meta-" + i, "value " + i));
+		}
+	}
+
+	@Benchmark
+	public void canonHeaderValue(Blackhole bh) {
+		for (Field f : fields) {
+			bh.consume(TextCanon.canonHeaderValue(f.getBody()));
+		}
+	}
+
+	@Benchmark
+	public void regexCanonHeaderValue(Blackhole bh) {
+		for (Field f : fields) {
+			bh.consume(regexCanonHeaderValue(f.getBody()));
+		}
+	}
+
+	@Benchmark
+	public CanonicalHeader canonicalize() {
+		return HeaderCanon.canonicalize(fields, Set.of());
+	}
+
+	@Benchmark
+	public Map<String, List<String>> regexTreeMap() {
+		Map<String, List<String>> map = new TreeMap<>();
+		for (Field f : fields) {
+			String name = f.getName() == null ? "" : f.getName().trim().toLowerCase(Locale.ROOT);
+			if (name.isEmpty()) continue;
+			map.computeIfAbsent(name, k -> new ArrayList<>()).add(regexCanonHeaderValue(f.getBody()));
+		}
+		return map;
+	}
+
+	/** The implementation {@link TextCanon#canonHeaderValue} replaced. */
+	private static String regexCanonHeaderValue(String v) {
+		if (v == null) return "";
+		String s = v.replace("\r\n", "\n").replace("\r", "\n");
+		s = s.replaceAll("\n[ \t]+", " ");
+		s = s.replaceAll("[ \t]+", " ").trim();
+		return s;
+	}
+}
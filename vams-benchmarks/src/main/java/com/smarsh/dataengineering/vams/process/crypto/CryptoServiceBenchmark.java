@@ -0,0 +1,82 @@
+package com.smarsh.dataengineering.vams.process.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AES-GCM payload encryption through {@link CryptoService}, whole-array and streaming, and streaming
+ * decryption (decrypt mode).
+ * <p>
+ * Two data keys are alternated so every invocation looks like the first leaf of a new message, which
+ * is what the encrypter does; reusing one key and IV forever would measure the fallback path for
+ * messages with more leaves than the engine keeps ciphers for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CryptoServiceBenchmark {
+
+	@Param({"1024", "65536", "1048576", "16777216", "104857600"})
+	public int payloadSize;
+
+	private CryptoService crypto;
+	private byte[] payload;
+	private final SecretKey[] keys = new SecretKey[2];
+	private byte[] iv;
+	private final byte[][] ciphertexts = new byte[2][];
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		crypto = new CryptoService();
+		payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		keys[0] = crypto.generateAes256Key();
+		keys[1] = crypto.generateAes256Key();
+		iv = crypto.generateIv();
+		ciphertexts[0] = crypto.encryptAesCbc(payload, keys[0], iv);
+		ciphertexts[1] = crypto.encryptAesCbc(payload, keys[1], iv);
+	}
+
+	private SecretKey nextKey() {
+		next ^= 1;
+		return keys[next];
+	}
+
+	@Benchmark
+	public byte[] encryptArray(Throughput throughput) throws Exception {
+		throughput.add(payloadSize);
+		return crypto.encryptAesCbc(payload, nextKey(), iv);
+	}
+
+	@Benchmark
+	public void encryptStreaming(Throughput throughput) throws Exception {
+		throughput.add(payloadSize);
+		crypto.encryptAesCbc(new ByteArrayInputStream(payload), OutputStream.nullOutputStream(), nextKey(), iv);
+	}
+
+	@Benchmark
+	public void decryptStreaming(Throughput throughput) throws Exception {
+		throughput.add(payloadSize);
+		SecretKey key = nextKey();
+		crypto.decryptAesCbc(new ByteArrayInputStream(ciphertexts[next]), OutputStream.nullOutputStream(), key, iv);
+	}
+}
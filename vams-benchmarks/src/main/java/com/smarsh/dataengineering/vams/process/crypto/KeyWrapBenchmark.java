@@ -0,0 +1,68 @@
+package com.smarsh.dataengineering.vams.process.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message key work: RSA wrapping of the data key into the {@code V2.0#} header value, and the
+ * full key preparation (IV, AES-256 key, wrap) every message pays before any MIME work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyWrapBenchmark {
+
+	@Param({"2048", "4096"})
+	public int rsaBits;
+
+	private CryptoService crypto;
+	private KeyPair rsa;
+	private SecretKey key;
+	private byte[] iv;
+	private String header;
+
+	@Setup
+	public void setup() throws Exception {
+		crypto = new CryptoService();
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(rsaBits);
+		rsa = kpg.generateKeyPair();
+		key = crypto.generateAes256Key();
+		iv = crypto.generateIv();
+		header = crypto.encryptAesKeyWithRsaV2HeaderValue(iv, key, rsa.getPublic());
+	}
+
+	@Benchmark
+	public String wrapKey() throws Exception {
+		return crypto.encryptAesKeyWithRsaV2HeaderValue(iv, key, rsa.getPublic());
+	}
+
+	@Benchmark
+	public String prepareMessageKeys() throws Exception {
+		byte[] messageIv = crypto.generateIv();
+		SecretKey messageKey = crypto.generateAes256Key();
+		return crypto.encryptAesKeyWithRsaV2HeaderValue(messageIv, messageKey, rsa.getPublic());
+	}
+
+	@Benchmark
+	public CryptoService.AesKeyAndIv unwrapKey() throws Exception {
+		return crypto.decryptAesKeyAndIvFromRsaV2HeaderValue(header, rsa.getPrivate());
+	}
+}
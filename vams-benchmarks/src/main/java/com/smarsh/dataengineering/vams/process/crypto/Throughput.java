@@ -0,0 +1,30 @@
+package com.smarsh.dataengineering.vams.process.crypto;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary JMH results: with {@code -bm thrpt} JMH reports {@link #megabytes} as MB/s and
+ * {@link #messages} as messages/s next to the primary ops/s score.
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class Throughput {
+
+	public double megabytes;
+	public long messages;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		megabytes = 0;
+		messages = 0;
+	}
+
+	public void add(long bytes) {
+		megabytes += bytes / (1024.0 * 1024.0);
+		messages++;
+	}
+}
@@ -0,0 +1,212 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.SharedByteArrayInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+import com.smarsh.dataengineering.vams.process.crypto.Throughput;
+
+/**
+ * Message-level encrypter throughput over the {@link SyntheticEml} shapes.
+ * <ul>
+ * <li>{@code rewrite}: parse from memory, {@link EmlEncryptionService#encryptPartContentInPlace},
+ * {@code saveChanges} and {@code writeTo} a null stream (leaf encryption happens while writing).</li>
+ * <li>{@code rawRewrite}: the same with the {@link RawMimeRewriter} (single pass over the bytes).</li>
+ * <li>{@code processOne} / {@code processOneRaw}: the full file-to-file pass with either engine,
+ * including key generation and RSA wrap.</li>
+ * <li>{@code processOneStream} / {@code processOneMapped}: the DOM file-to-file pass reading the input
+ * as a plain stream (parts copied onto the heap) or memory-mapped, against {@code processOne}'s
+ * {@code SharedFileInputStream}.</li>
+ * <li>{@code processOnePassthrough} / {@code processOneRawPassthrough}: the file-to-file pass with a
+ * passthrough rule leaving inline images in the clear.</li>
+ * </ul>
+ * Run with {@code -prof gc} for allocation rates ({@code gc.alloc.rate.norm} is bytes per message).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class EmlEncryptionBenchmark {
+
+	@Param
+	public SyntheticEml shape;
+
+	private Path workDir;
+	private Path input;
+	private Path output;
+	private long inputSize;
+	private byte[] raw;
+
+	private EmlEncryptionService service;
+	private EmlEncryptionService rawService;
+	private EmlEncryptionService streamService;
+	private EmlEncryptionService mappedService;
+	private EmlEncryptionService passthroughService;
+	private EmlEncryptionService rawPassthroughService;
+	private RawMimeRewriter rawRewriter;
+	private List<RawMimeRewriter.HeaderField> rootFields;
+	private CryptoService crypto;
+	private Session session;
+	private final SecretKey[] keys = new SecretKey[2];
+	private byte[] iv;
+	private int next;
+
+	@Setup
+	public void setup() throws Exception {
+		workDir = Files.createTempDirectory("eml-bench");
+		Path in = Files.createDirectories(workDir.resolve("in"));
+		Path out = Files.createDirectories(workDir.resolve("out"));
+		input = in.resolve(shape.name().toLowerCase(Locale.ROOT) + ".eml");
+		output = out.resolve(input.getFileName());
+		inputSize = shape.writeTo(input);
+		raw = Files.readAllBytes(input);
+
+		crypto = new CryptoService();
+		TelemessageProperties props = properties(workDir, in, out);
+		service = new EmlEncryptionService(props, crypto);
+		TelemessageProperties rawProps = properties(workDir, in, out);
+		rawProps.setEngine(TelemessageProperties.Engine.RAW);
+		rawService = new EmlEncryptionService(rawProps, crypto);
+		TelemessageProperties streamProps = properties(workDir, in, out);
+		streamProps.setInputMode(TelemessageProperties.InputMode.STREAM);
+		streamService = new EmlEncryptionService(streamProps, crypto);
+		TelemessageProperties mappedProps = properties(workDir, in, out);
+		mappedProps.setInputMode(TelemessageProperties.InputMode.MAPPED);
+		mappedService = new EmlEncryptionService(mappedProps, crypto);
+		TelemessageProperties passthroughProps = properties(workDir, in, out);
+		passthroughProps.getPassthrough().add(inlineImages());
+		passthroughService = new EmlEncryptionService(passthroughProps, crypto);
+		TelemessageProperties rawPassthroughProps = properties(workDir, in, out);
+		rawPassthroughProps.setEngine(TelemessageProperties.Engine.RAW);
+		rawPassthroughProps.getPassthrough().add(inlineImages());
+		rawPassthroughService = new EmlEncryptionService(rawPassthroughProps, crypto);
+		rawRewriter = new RawMimeRewriter(crypto);
+		rootFields = List.of(new RawMimeRewriter.HeaderField("X-TELEMESSAGE-ENC-KEY-ID", "BENCH-KEY-ID"));
+		session = Session.getInstance(new Properties());
+		keys[0] = crypto.generateAes256Key();
+		keys[1] = crypto.generateAes256Key();
+		iv = crypto.generateIv();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		FileSystemUtils.deleteRecursively(workDir);
+	}
+
+	@Benchmark
+	public void rewrite(Throughput throughput) throws Exception {
+		MimeMessage msg = new MimeMessage(session, new SharedByteArrayInputStream(raw));
+		next ^= 1;
+		service.encryptPartContentInPlace(msg, keys[next], iv);
+		msg.saveChanges();
+		msg.writeTo(OutputStream.nullOutputStream());
+		throughput.add(inputSize);
+	}
+
+	@Benchmark
+	public void rawRewrite(Throughput throughput) throws Exception {
+		next ^= 1;
+		rawRewriter.rewrite(new ByteArrayInputStream(raw), OutputStream.nullOutputStream(), keys[next], iv, rootFields);
+		throughput.add(inputSize);
+	}
+
+	@Benchmark
+	public void processOne(Throughput throughput) throws Exception {
+		service.processOne(input, output);
+		throughput.add(inputSize);
+	}
+
+	@Benchmark
+	public void processOneRaw(Throughput throughput) throws Exception {
+		rawService.processOne(input, output);
+		throughput.add(inputSize);
+	}
+
+	@Benchmark
+	public void processOneStream(Throughput throughput) throws Exception {
+		streamService.processOne(input, output);
+		throughput.add(inputSize);
+	}
+
+	@Benchmark
+	public void processOneMapped(Throughput throughput) throws Exception {
+		mappedService.processOne(input, output);
+		throughput.add(inputSize);
+	}
+
+	@Benchmark
+	public void processOnePassthrough(Throughput throughput) throws Exception {
+		passthroughService.processOne(input, output);
+		throughput.add(inputSize);
+	}
+
+	@Benchmark
+	public void processOneRawPassthrough(Throughput throughput) throws Exception {
+		rawPassthroughService.processOne(input, output);
+		throughput.add(inputSize);
+	}
+
+	private static TelemessageProperties.PassthroughRule inlineImages() {
+		TelemessageProperties.PassthroughRule rule = new TelemessageProperties.PassthroughRule();
+		rule.setName("inline-images");
+		rule.setContentType("image/*");
+		rule.setDisposition("inline");
+		return rule;
+	}
+
+	private static TelemessageProperties properties(Path dir, Path in, Path out) throws Exception {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(2048);
+		KeyPair kp = kpg.generateKeyPair();
+		Path pub = dir.resolve("PublicKey.pem");
+		Path priv = dir.resolve("PrivateKey.pem");
+		Files.writeString(pub, pem("PUBLIC KEY", kp.getPublic().getEncoded()), StandardCharsets.US_ASCII);
+		Files.writeString(priv, pem("PRIVATE KEY", kp.getPrivate().getEncoded()), StandardCharsets.US_ASCII);
+
+		TelemessageProperties props = new TelemessageProperties();
+		props.getRsa().setPublicKeyPath(pub.toString());
+		props.getRsa().setPrivateKeyPath(priv.toString());
+		props.setInputFolder(in.toString());
+		props.setOutputFolder(out.toString());
+		props.setEncKeyId("BENCH-KEY-ID");
+		props.setOriginalMesageIntegrity("BENCH-INTEGRITY");
+		return props;
+	}
+
+	private static String pem(String type, byte[] der) {
+		return "-----BEGIN " + type + "-----\n"
+				+ Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der)
+				+ "\n-----END " + type + "-----\n";
+	}
+}
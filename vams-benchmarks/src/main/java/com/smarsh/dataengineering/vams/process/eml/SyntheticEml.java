@@ -0,0 +1,177 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import org.springframework.util.StreamUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Message shapes the encrypter sees in production, generated deterministically so runs are comparable.
+ */
+public enum SyntheticEml {
+
+	/** Short chat-style message, one text/plain part. */
+	PLAIN_TEXT(0) {
+		@Override
+		void write(Writer w) throws IOException {
+			w.headers("text/plain; charset=UTF-8", "quoted-printable");
+			w.text(2 * 1024);
+		}
+	},
+
+	/** HTML mail with a text alternative and four inline images. */
+	HTML_INLINE_IMAGES(1) {
+		@Override
+		void write(Writer w) throws IOException {
+			w.headers("multipart/related; boundary=\"rel\"", null);
+			w.line("--rel");
+			w.line("Content-Type: multipart/alternative; boundary=\"alt\"");
+			w.line("");
+			w.line("--alt");
+			w.line("Content-Type: text/plain; charset=UTF-8");
+			w.line("");
+			w.text(4 * 1024);
+			w.line("--alt");
+			w.line("Content-Type: text/html; charset=UTF-8");
+			w.line("");
+			w.text(16 * 1024);
+			w.line("--alt--");
+			for (int i = 0; i < 4; i++) {
+				w.line("--rel");
+				w.line("Content-Type: image/png; name=\"img" + i + ".png\"");
+				w.line("Content-ID: <img" + i + "@bench>");
+				w.line("Content-Disposition: inline; filename=\"img" + i + ".png\"");
+				w.line("Content-Transfer-Encoding: base64");
+				w.line("");
+				w.base64(64 * 1024);
+			}
+			w.line("--rel--");
+		}
+	},
+
+	/** Eight levels of nested multipart/mixed, each level with a small text leaf. */
+	DEEP_NESTED(2) {
+		@Override
+		void write(Writer w) throws IOException {
+			int depth = 8;
+			w.headers("multipart/mixed; boundary=\"b0\"", null);
+			for (int level = 0; level < depth; level++) {
+				w.line("--b" + level);
+				w.line("Content-Type: text/plain; charset=UTF-8");
+				w.line("");
+				w.text(1024);
+				w.line("--b" + level);
+				if (level + 1 < depth) {
+					w.line("Content-Type: multipart/mixed; boundary=\"b" + (level + 1) + "\"");
+					w.line("");
+				} else {
+					w.line("Content-Type: application/octet-stream; name=\"leaf.bin\"");
+					w.line("Content-Transfer-Encoding: base64");
+					w.line("");
+					w.base64(32 * 1024);
+				}
+			}
+			for (int level = depth - 1; level >= 0; level--) {
+				w.line("--b" + level + "--");
+			}
+		}
+	},
+
+	/**
+	 * Call recording: a short note plus one large binary attachment. The size defaults to 64 MB and
+	 * can be changed with {@code -Dbench.hugeAttachmentMb=N}.
+	 */
+	HUGE_ATTACHMENT(3) {
+		@Override
+		void write(Writer w) throws IOException {
+			w.headers("multipart/mixed; boundary=\"mix\"", null);
+			w.line("--mix");
+			w.line("Content-Type: text/plain; charset=UTF-8");
+			w.line("");
+			w.text(512);
+			w.line("--mix");
+			w.line("Content-Type: audio/wav; name=\"call.wav\"");
+			w.line("Content-Disposition: attachment; filename=\"call.wav\"");
+			w.line("Content-Transfer-Encoding: base64");
+			w.line("");
+			w.base64(Integer.getInteger("bench.hugeAttachmentMb", 64) * 1024L * 1024L);
+			w.line("--mix--");
+		}
+	};
+
+	/** Seeds the random content, so each shape is the same bytes in every run. */
+	private final long seed;
+
+	SyntheticEml(long seed) {
+		this.seed = seed;
+	}
+
+	abstract void write(Writer w) throws IOException;
+
+	/**
+	 * Writes this shape to {@code file} and returns the file size.
+	 */
+	public long writeTo(Path file) throws IOException {
+		try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)) {
+			write(new Writer(os, new Random(seed)));
+		}
+		return Files.size(file);
+	}
+
+	static final class Writer {
+		private static final String WORDS = "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor ";
+
+		private final OutputStream os;
+		private final Random random;
+
+		Writer(OutputStream os, Random random) {
+			this.os = os;
+			this.random = random;
+		}
+
+		void headers(String contentType, String transferEncoding) throws IOException {
+			line("From: alice@example.com");
+			line("To: bob@example.com");
+			line("Subject: benchmark message");
+			line("Date: Mon, 1 Jan 2024 00:00:00 +0000");
+			line("Message-ID: <bench@example.com>");
+			line("MIME-Version: 1.0");
+			line("Content-Type: " + contentType);
+			if (transferEncoding != null) {
+				line("Content-Transfer-Encoding: " + transferEncoding);
+			}
+			line("");
+		}
+
+		void line(String s) throws IOException {
+			os.write(s.getBytes(StandardCharsets.US_ASCII));
+			os.write('\r');
+			os.write('\n');
+		}
+
+		void text(int size) throws IOException {
+			String words = WORDS.repeat(2);
+			for (int written = 0; written < size; written += 72) {
+				int offset = random.nextInt(WORDS.length());
+				line(words.substring(offset, offset + Math.min(70, size - written)));
+			}
+		}
+
+		void base64(long size) throws IOException {
+			byte[] chunk = new byte[57 * 1024];
+			OutputStream enc = Base64.getMimeEncoder().wrap(StreamUtils.nonClosing(os));
+			for (long written = 0; written < size; written += chunk.length) {
+				random.nextBytes(chunk);
+				enc.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+			}
+			enc.close();
+			line("");
+		}
+	}
+}
@@ -5,7 +5,18 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 
+import java.nio.file.Path;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.eml.CorpusProfileService;
+import com.smarsh.dataengineering.vams.process.eml.EmlDecryptionService;
 import com.smarsh.dataengineering.vams.process.eml.EmlEncryptionService;
+import com.smarsh.dataengineering.vams.process.eml.EmlRekeyService;
+import com.smarsh.dataengineering.vams.process.eml.EncryptionMetrics;
+import com.smarsh.dataengineering.vams.process.eml.FolderWatchService;
+import com.smarsh.dataengineering.vams.process.eml.RunSummary;
+import com.smarsh.dataengineering.vams.process.eml.S3EncryptionService;
+import com.smarsh.dataengineering.vams.process.eml.ZipArchiveEncryptionService;
 
 @SpringBootApplication
 public class VamsByokEncrypterApplication {
@@ -15,7 +26,27 @@ public class VamsByokEncrypterApplication {
 	}
 
 	@Bean
-	CommandLineRunner run(EmlEncryptionService service) {
-		return args -> service.processAllEmls();
+	CommandLineRunner run(TelemessageProperties props, EmlEncryptionService service,
+			ZipArchiveEncryptionService archiveService, FolderWatchService watchService,
+			EmlDecryptionService decryptionService, CorpusProfileService profileService, S3EncryptionService s3Service,
+			EmlRekeyService rekeyService, EncryptionMetrics metrics) {
+		return args -> {
+			boolean s3 = S3EncryptionService.isUsedBy(props);
+			if (s3 && props.getMode() != TelemessageProperties.Mode.ENCRYPT) {
+				throw new IllegalArgumentException("s3:// folders are only supported in encrypt mode");
+			}
+			RunSummary summary = switch (props.getMode()) {
+				case ARCHIVE -> archiveService.processAllArchives();
+				case ENCRYPT -> s3 ? s3Service.processAllEmls() : service.processAllEmls();
+				case WATCH -> watchService.run();
+				case DECRYPT -> decryptionService.processAllEmls();
+				case PROFILE -> profileService.profile();
+				case REKEY -> rekeyService.processAllEmls();
+			};
+			String file = s3
+					? s3Service.writeRunSummary(summary)
+					: metrics.writeRunSummary(Path.of(props.getOutputFolder()), props.getScan(), summary).toString();
+			System.out.println("Run summary written to " + file);
+		};
 	}
 }
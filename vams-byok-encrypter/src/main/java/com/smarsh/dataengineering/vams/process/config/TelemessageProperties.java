@@ -3,16 +3,64 @@ package com.smarsh.dataengineering.vams.process.config;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 @Component
 @ConfigurationProperties(prefix = "telemessage")
 public class TelemessageProperties {
 
+	private Mode mode = Mode.ENCRYPT;
+	private Engine engine = Engine.DOM;
+	private InputMode inputMode = InputMode.SHARED;
 	private Rsa rsa = new Rsa();
 	private String inputFolder;
 	private String outputFolder;
 	private String originalMessageIntegrityFingerprint;
 	private String encKeyId;
 	private String originalMesageIntegrity;
+	private Parallel parallel = new Parallel();
+	private Archive archive = new Archive();
+	private Checkpoint checkpoint = new Checkpoint();
+	private KeyPool keyPool = new KeyPool();
+	private Watch watch = new Watch();
+	private Scan scan = new Scan();
+	private List<PassthroughRule> passthrough = new ArrayList<>();
+	private Profile profile = new Profile();
+	private S3 s3 = new S3();
+	private Rekey rekey = new Rekey();
+
+	public enum Mode {
+		/** Encrypt every .eml file in the input folder into the output folder. */
+		ENCRYPT,
+		/** Encrypt the .eml entries of every .zip batch in the input folder into a zip of the same name. */
+		ARCHIVE,
+		/** Keep running and encrypt .eml files as they are completed in the input folder. */
+		WATCH,
+		/** Restore every encrypted .eml file in the input folder into the output folder. */
+		DECRYPT,
+		/** Dry run: profile the .eml files in the input folder and estimate a run; nothing is encrypted. */
+		PROFILE,
+		/** Re-wrap the data key of every encrypted .eml file in the input folder for a new RSA key; bodies are copied as they are. */
+		REKEY
+	}
+
+	public enum Engine {
+		/** Parse into a jakarta.mail MimeMessage, replace leaf content, write it out again. */
+		DOM,
+		/** Rewrite the raw bytes in one pass, replacing only leaf bodies. */
+		RAW
+	}
+
+	public enum InputMode {
+		/** Plain file stream; the DOM engine copies every part's content onto the heap. */
+		STREAM,
+		/** {@code SharedFileInputStream}: DOM parts are views of the file, read through a small buffer. */
+		SHARED,
+		/** Memory-mapped file: parts are slices of the mapping, read from the page cache; very large files are read as {@code SHARED}. */
+		MAPPED
+	}
 
 	public static class Rsa {
 		private String publicKeyPath;
@@ -25,6 +73,187 @@ public class TelemessageProperties {
 		public void setPrivateKeyPath(String privateKeyPath) { this.privateKeyPath = privateKeyPath; }
 	}
 
+	public static class Parallel {
+		private boolean enabled;
+		private int maxConcurrency = Runtime.getRuntime().availableProcessors();
+		/** DOM engine: messages larger than this (bytes) have their leaves encrypted concurrently; -1 disables. */
+		private long largeMessageThreshold = -1;
+		/** List every input first and start with the largest, so a huge file found late cannot stretch the run. */
+		private boolean largestFirst;
+		/** Estimated heap the workers may hold at once (bytes); -1 for no limit. */
+		private long heapBudget = -1;
+
+		public boolean isEnabled() { return enabled; }
+		public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+		public int getMaxConcurrency() { return maxConcurrency; }
+		public void setMaxConcurrency(int maxConcurrency) { this.maxConcurrency = maxConcurrency; }
+
+		public long getLargeMessageThreshold() { return largeMessageThreshold; }
+		public void setLargeMessageThreshold(long largeMessageThreshold) { this.largeMessageThreshold = largeMessageThreshold; }
+
+		public boolean isLargestFirst() { return largestFirst; }
+		public void setLargestFirst(boolean largestFirst) { this.largestFirst = largestFirst; }
+
+		public long getHeapBudget() { return heapBudget; }
+		public void setHeapBudget(long heapBudget) { this.heapBudget = heapBudget; }
+	}
+
+	public static class Archive {
+		private int inMemoryEntryLimit = 8 * 1024 * 1024;
+
+		public int getInMemoryEntryLimit() { return inMemoryEntryLimit; }
+		public void setInMemoryEntryLimit(int inMemoryEntryLimit) { this.inMemoryEntryLimit = inMemoryEntryLimit; }
+	}
+
+	public static class Checkpoint {
+		private boolean enabled;
+
+		public boolean isEnabled() { return enabled; }
+		public void setEnabled(boolean enabled) { this.enabled = enabled; }
+	}
+
+	public static class KeyPool {
+		private boolean enabled;
+		private int capacity = 256;
+		private int producers = 1;
+
+		public boolean isEnabled() { return enabled; }
+		public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+		public int getCapacity() { return capacity; }
+		public void setCapacity(int capacity) { this.capacity = capacity; }
+
+		public int getProducers() { return producers; }
+		public void setProducers(int producers) { this.producers = producers; }
+	}
+
+	public static class Scan {
+		private boolean recursive;
+		private int shardIndex = 0;
+		private int shardCount = 1;
+
+		public boolean isRecursive() { return recursive; }
+		public void setRecursive(boolean recursive) { this.recursive = recursive; }
+
+		public int getShardIndex() { return shardIndex; }
+		public void setShardIndex(int shardIndex) { this.shardIndex = shardIndex; }
+
+		public int getShardCount() { return shardCount; }
+		public void setShardCount(int shardCount) { this.shardCount = shardCount; }
+	}
+
+	public static class PassthroughRule {
+		private String name;
+		private String contentType;
+		private String disposition;
+		private long maxSize = -1;
+
+		public String getName() { return name; }
+		public void setName(String name) { this.name = name; }
+
+		public String getContentType() { return contentType; }
+		public void setContentType(String contentType) { this.contentType = contentType; }
+
+		public String getDisposition() { return disposition; }
+		public void setDisposition(String disposition) { this.disposition = disposition; }
+
+		public long getMaxSize() { return maxSize; }
+		public void setMaxSize(long maxSize) { this.maxSize = maxSize; }
+	}
+
+	public static class Profile {
+		private int sampleSize = 50;
+
+		public int getSampleSize() { return sampleSize; }
+		public void setSampleSize(int sampleSize) { this.sampleSize = sampleSize; }
+	}
+
+	/**
+	 * Object store used when the input or output folder is an {@code s3://bucket/prefix} location.
+	 */
+	public static class S3 {
+		/** Endpoint of an S3-compatible store (e.g. {@code http://localhost:9000}); AWS when empty. */
+		private String endpoint;
+		private String region = "us-east-1";
+		private boolean pathStyleAccess;
+		/** Static credentials; the default AWS credentials chain when empty. */
+		private String accessKey;
+		private String secretKey;
+		/** Objects up to this size are read into memory by the DOM engine, larger ones are spooled with ranged GETs. */
+		private int inMemoryObjectLimit = 8 * 1024 * 1024;
+		/** Size of the ranged GETs and of the multipart upload parts (S3 requires at least 5 MiB). */
+		private int partSize = 8 * 1024 * 1024;
+		/** Parts being uploaded or downloaded at once, over all workers; bounds the heap held by upload buffers. */
+		private int maxInFlightParts = 8;
+		/** Prefixes listed at once when scanning recursively. */
+		private int listParallelism = 4;
+
+		public String getEndpoint() { return endpoint; }
+		public void setEndpoint(String endpoint) { this.endpoint = endpoint; }
+
+		public String getRegion() { return region; }
+		public void setRegion(String region) { this.region = region; }
+
+		public boolean isPathStyleAccess() { return pathStyleAccess; }
+		public void setPathStyleAccess(boolean pathStyleAccess) { this.pathStyleAccess = pathStyleAccess; }
+
+		public String getAccessKey() { return accessKey; }
+		public void setAccessKey(String accessKey) { this.accessKey = accessKey; }
+
+		public String getSecretKey() { return secretKey; }
+		public void setSecretKey(String secretKey) { this.secretKey = secretKey; }
+
+		public int getInMemoryObjectLimit() { return inMemoryObjectLimit; }
+		public void setInMemoryObjectLimit(int inMemoryObjectLimit) { this.inMemoryObjectLimit = inMemoryObjectLimit; }
+
+		public int getPartSize() { return partSize; }
+		public void setPartSize(int partSize) { this.partSize = partSize; }
+
+		public int getMaxInFlightParts() { return maxInFlightParts; }
+		public void setMaxInFlightParts(int maxInFlightParts) { this.maxInFlightParts = maxInFlightParts; }
+
+		public int getListParallelism() { return listParallelism; }
+		public void setListParallelism(int listParallelism) { this.listParallelism = listParallelism; }
+	}
+
+	public static class Rekey {
+		/** The new public key; data keys are unwrapped with {@code rsa.private-key-path}. */
+		private String publicKeyPath;
+		/** The new {@code X-TELEMESSAGE-ENC-KEY-ID}. */
+		private String encKeyId;
+
+		public String getPublicKeyPath() { return publicKeyPath; }
+		public void setPublicKeyPath(String publicKeyPath) { this.publicKeyPath = publicKeyPath; }
+
+		public String getEncKeyId() { return encKeyId; }
+		public void setEncKeyId(String encKeyId) { this.encKeyId = encKeyId; }
+	}
+
+	public static class Watch {
+		private Duration settleTime = Duration.ofMillis(300);
+		private Duration rescanInterval = Duration.ofSeconds(30);
+		private long minFreeBytes = 1024L * 1024 * 1024;
+
+		public Duration getSettleTime() { return settleTime; }
+		public void setSettleTime(Duration settleTime) { this.settleTime = settleTime; }
+
+		public Duration getRescanInterval() { return rescanInterval; }
+		public void setRescanInterval(Duration rescanInterval) { this.rescanInterval = rescanInterval; }
+
+		public long getMinFreeBytes() { return minFreeBytes; }
+		public void setMinFreeBytes(long minFreeBytes) { this.minFreeBytes = minFreeBytes; }
+	}
+
+	public Mode getMode() { return mode; }
+	public void setMode(Mode mode) { this.mode = mode; }
+
+	public Engine getEngine() { return engine; }
+	public void setEngine(Engine engine) { this.engine = engine; }
+
+	public InputMode getInputMode() { return inputMode; }
+	public void setInputMode(InputMode inputMode) { this.inputMode = inputMode; }
+
 	public Rsa getRsa() { return rsa; }
 	public void setRsa(Rsa rsa) { this.rsa = rsa; }
 
@@ -42,5 +271,34 @@ public class TelemessageProperties {
 
 	public String getOriginalMesageIntegrity() { return originalMesageIntegrity; }
 	public void setOriginalMesageIntegrity(String v) { this.originalMesageIntegrity = v; }
-}
 
+	public Parallel getParallel() { return parallel; }
+	public void setParallel(Parallel parallel) { this.parallel = parallel; }
+
+	public Archive getArchive() { return archive; }
+	public void setArchive(Archive archive) { this.archive = archive; }
+
+	public Checkpoint getCheckpoint() { return checkpoint; }
+	public void setCheckpoint(Checkpoint checkpoint) { this.checkpoint = checkpoint; }
+
+	public KeyPool getKeyPool() { return keyPool; }
+	public void setKeyPool(KeyPool keyPool) { this.keyPool = keyPool; }
+
+	public Watch getWatch() { return watch; }
+	public void setWatch(Watch watch) { this.watch = watch; }
+
+	public Scan getScan() { return scan; }
+	public void setScan(Scan scan) { this.scan = scan; }
+
+	public List<PassthroughRule> getPassthrough() { return passthrough; }
+	public void setPassthrough(List<PassthroughRule> passthrough) { this.passthrough = passthrough; }
+
+	public Profile getProfile() { return profile; }
+	public void setProfile(Profile profile) { this.profile = profile; }
+
+	public S3 getS3() { return s3; }
+	public void setS3(S3 s3) { this.s3 = s3; }
+
+	public Rekey getRekey() { return rekey; }
+	public void setRekey(Rekey rekey) { this.rekey = rekey; }
+}
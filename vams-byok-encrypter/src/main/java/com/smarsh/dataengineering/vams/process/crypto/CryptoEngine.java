@@ -0,0 +1,191 @@
+package com.smarsh.dataengineering.vams.process.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Thread-confined cipher, key generator and DRBG instances, so the hot path does no provider lookups
+ * and no two threads contend on one {@link SecureRandom}.
+ * <p>
+ * Every object handed out belongs to the calling thread and must be used to completion before the
+ * thread asks for another one of the same kind.
+ * <p>
+ * All leaves of one message are encrypted with the same key and IV (that is the TeleMessage V2 format),
+ * while a JDK GCM cipher refuses to be re-initialised for encryption with the key and IV it was last
+ * initialised with. Each thread therefore keeps a small set of GCM slots and hands out one whose last
+ * key/IV differ from the requested ones; messages with more leaves than slots fall back to fresh
+ * instances for the remainder.
+ */
+final class CryptoEngine {
+
+	static final String AES_GCM = "AES/GCM/NoPadding";
+	static final String AES_CTR = "AES/CTR/NoPadding";
+	static final String RSA_PKCS1 = "RSA/ECB/PKCS1Padding";
+	static final int GCM_TAG_BITS = 128;
+
+	private static final int MAX_GCM_SLOTS = 64;
+
+	/** Room for one chunk of cipher output plus a GCM tag and up to one buffered block. */
+	static final int STREAM_OUT_SIZE = CryptoService.STREAM_CHUNK_SIZE + 32;
+
+	private final ThreadLocal<PerThread> state = ThreadLocal.withInitial(PerThread::create);
+
+	SecureRandom random() {
+		return state.get().random;
+	}
+
+	SecretKey generateAes256Key() {
+		return state.get().keyGenerator.generateKey();
+	}
+
+	Cipher gcmEncrypt(SecretKey key, byte[] iv) throws GeneralSecurityException {
+		return state.get().gcmEncrypt(key, iv);
+	}
+
+	/** Input chunk buffer for streaming, {@link CryptoService#STREAM_CHUNK_SIZE} bytes. */
+	byte[] streamIn() {
+		return state.get().streamIn;
+	}
+
+	/** Output chunk buffer for streaming, {@link #STREAM_OUT_SIZE} bytes. */
+	byte[] streamOut() {
+		return state.get().streamOut;
+	}
+
+	/** Scratch buffer for streaming, {@link #STREAM_OUT_SIZE} bytes. */
+	byte[] streamAux() {
+		return state.get().streamAux;
+	}
+
+	/**
+	 * AES-CTR cipher positioned where GCM with a 96-bit {@code iv} starts encrypting the payload
+	 * (counter block {@code iv || 00000002}), so it decrypts GCM ciphertext without the tag check.
+	 */
+	Cipher gcmPayloadCtr(SecretKey key, byte[] iv) throws GeneralSecurityException {
+		byte[] counter = Arrays.copyOf(iv, 16);
+		counter[15] = 2;
+		Cipher cipher = state.get().ctr;
+		cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(counter));
+		return cipher;
+	}
+
+	Cipher gcmDecrypt(SecretKey key, byte[] iv) throws GeneralSecurityException {
+		Cipher cipher = state.get().gcmDecrypt;
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+		return cipher;
+	}
+
+	/**
+	 * RSA cipher initialised for {@code mode} with {@code key}. A cipher returns to its initialised
+	 * state after {@code doFinal}, so consecutive calls with the same key skip {@code init}.
+	 */
+	Cipher rsa(int mode, Key key) throws GeneralSecurityException {
+		PerThread t = state.get();
+		if (mode == Cipher.ENCRYPT_MODE) {
+			if (t.rsaEncryptKey != key) {
+				t.rsaEncrypt.init(Cipher.ENCRYPT_MODE, key, t.random);
+				t.rsaEncryptKey = key;
+			}
+			return t.rsaEncrypt;
+		}
+		if (t.rsaDecryptKey != key) {
+			t.rsaDecrypt.init(mode, key);
+			t.rsaDecryptKey = key;
+		}
+		return t.rsaDecrypt;
+	}
+
+	private static final class GcmSlot {
+		final Cipher cipher;
+		SecretKey lastKey;
+		byte[] lastIv;
+
+		GcmSlot(Cipher cipher) {
+			this.cipher = cipher;
+		}
+	}
+
+	private static final class PerThread {
+		final SecureRandom random;
+		final KeyGenerator keyGenerator;
+		final List<GcmSlot> gcmSlots = new ArrayList<>();
+		final Cipher gcmDecrypt;
+		final Cipher ctr;
+		final Cipher rsaEncrypt;
+		final Cipher rsaDecrypt;
+		final byte[] streamIn = new byte[CryptoService.STREAM_CHUNK_SIZE];
+		final byte[] streamOut = new byte[STREAM_OUT_SIZE];
+		final byte[] streamAux = new byte[STREAM_OUT_SIZE];
+		Key rsaEncryptKey;
+		Key rsaDecryptKey;
+
+		private PerThread(SecureRandom random) throws GeneralSecurityException {
+			this.random = random;
+			this.keyGenerator = KeyGenerator.getInstance("AES");
+			this.keyGenerator.init(256, random);
+			this.gcmDecrypt = Cipher.getInstance(AES_GCM);
+			this.ctr = Cipher.getInstance(AES_CTR);
+			this.rsaEncrypt = Cipher.getInstance(RSA_PKCS1);
+			this.rsaDecrypt = Cipher.getInstance(RSA_PKCS1);
+		}
+
+		static PerThread create() {
+			try {
+				return new PerThread(newDrbg());
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Failed to initialise crypto engine: " + e.getMessage(), e);
+			}
+		}
+
+		private static SecureRandom newDrbg() {
+			try {
+				return SecureRandom.getInstance("DRBG");
+			} catch (NoSuchAlgorithmException e) {
+				return new SecureRandom();
+			}
+		}
+
+		Cipher gcmEncrypt(SecretKey key, byte[] iv) throws GeneralSecurityException {
+			GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, iv);
+			for (GcmSlot slot : gcmSlots) {
+				if (slot.lastKey != key || slot.lastIv != iv) {
+					return init(slot, key, iv, spec);
+				}
+			}
+			if (gcmSlots.size() < MAX_GCM_SLOTS) {
+				GcmSlot slot = new GcmSlot(Cipher.getInstance(AES_GCM));
+				gcmSlots.add(slot);
+				return init(slot, key, iv, spec);
+			}
+			Cipher cipher = Cipher.getInstance(AES_GCM);
+			cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+			return cipher;
+		}
+
+		private static Cipher init(GcmSlot slot, SecretKey key, byte[] iv, GCMParameterSpec spec)
+				throws GeneralSecurityException {
+			try {
+				slot.cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+			} catch (InvalidAlgorithmParameterException e) {
+				// Same key and IV bytes in different objects than the slot was last used with
+				Cipher cipher = Cipher.getInstance(AES_GCM);
+				cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+				return cipher;
+			}
+			slot.lastKey = key;
+			slot.lastIv = iv;
+			return slot.cipher;
+		}
+	}
+}
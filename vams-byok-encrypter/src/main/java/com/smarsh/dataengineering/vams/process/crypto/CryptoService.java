@@ -2,43 +2,139 @@ package com.smarsh.dataengineering.vams.process.crypto;
 
 import org.springframework.stereotype.Service;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 
+/**
+ * AES-GCM payload encryption and RSA wrapping of the per-message data key.
+ * <p>
+ * Ciphers, the AES key generator and the DRBG are thread-confined (see {@link CryptoEngine}), so the
+ * service can be shared by any number of worker threads without provider lookups or lock contention.
+ */
 @Service
 public class CryptoService {
-	private final SecureRandom secureRandom = new SecureRandom();
+	/** Chunk size used when streaming a payload through the cipher. */
+	public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+	private final CryptoEngine engine = new CryptoEngine();
 
 	public SecretKey generateAes256Key() throws Exception {
-		KeyGenerator kg = KeyGenerator.getInstance("AES");
-		kg.init(256, secureRandom);
-		return kg.generateKey();
+		return engine.generateAes256Key();
 	}
 
 	public byte[] generateIv() throws Exception {
 		byte[] iv = new byte[12];
-		secureRandom.nextBytes(iv);
+		engine.random().nextBytes(iv);
 		return iv;
 	}
 
+	/**
+	 * Fresh data keys and IVs for {@code count} messages.
+	 */
+	public List<AesKeyAndIv> generateAesKeysAndIvs(int count) throws Exception {
+		List<AesKeyAndIv> out = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			out.add(new AesKeyAndIv(generateAes256Key(), generateIv()));
+		}
+		return out;
+	}
+
 	public byte[] encryptAesCbc(byte[] plaintext, SecretKey key, byte[] iv) throws Exception {
-		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-		javax.crypto.spec.GCMParameterSpec gcmSpec = new javax.crypto.spec.GCMParameterSpec(128, iv);
-		cipher.init(Cipher.ENCRYPT_MODE, key, gcmSpec);
-		return cipher.doFinal(plaintext);
+		return engine.gcmEncrypt(key, iv).doFinal(plaintext);
+	}
+
+	/**
+	 * Encrypts several payloads of one message (same key and IV, as every leaf of a message is).
+	 */
+	public List<byte[]> encryptAesCbc(List<byte[]> plaintexts, SecretKey key, byte[] iv) throws Exception {
+		List<byte[]> out = new ArrayList<>(plaintexts.size());
+		for (byte[] plaintext : plaintexts) {
+			out.add(engine.gcmEncrypt(key, iv).doFinal(plaintext));
+		}
+		return out;
+	}
+
+	/**
+	 * Streaming variant of {@link #encryptAesCbc(byte[], SecretKey, byte[])}: reads {@code plaintext}
+	 * in fixed-size chunks and writes the ciphertext followed by the GCM tag to {@code ciphertext}.
+	 * Produces exactly the same bytes as the array variant. Neither stream is closed.
+	 * <p>
+	 * The chunk buffers belong to the calling thread, so {@code plaintext} and {@code ciphertext} must
+	 * not themselves stream through this method.
+	 */
+	public void encryptAesCbc(InputStream plaintext, OutputStream ciphertext, SecretKey key, byte[] iv) throws Exception {
+		Cipher cipher = engine.gcmEncrypt(key, iv);
+
+		byte[] in = engine.streamIn();
+		byte[] out = engine.streamOut();
+		int read;
+		while ((read = plaintext.read(in)) != -1) {
+			int n = cipher.update(in, 0, read, out, 0);
+			ciphertext.write(out, 0, n);
+		}
+		int n = cipher.doFinal(out, 0);
+		ciphertext.write(out, 0, n);
 	}
 
 	public byte[] decryptAesCbc(byte[] ciphertext, SecretKey key, byte[] iv) throws Exception {
-		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-		javax.crypto.spec.GCMParameterSpec gcmSpec = new javax.crypto.spec.GCMParameterSpec(128, iv);
-		cipher.init(Cipher.DECRYPT_MODE, key, gcmSpec);
-		return cipher.doFinal(ciphertext);
+		return engine.gcmDecrypt(key, iv).doFinal(ciphertext);
+	}
+
+	/**
+	 * Streaming variant of {@link #decryptAesCbc(byte[], SecretKey, byte[])} in constant memory.
+	 * <p>
+	 * A JDK GCM cipher holds back all plaintext until the tag has been checked, i.e. buffers the whole
+	 * payload. Instead the payload is decrypted with AES-CTR from the GCM counter, and the tag is checked
+	 * by encrypting the recovered plaintext again and comparing tags. The plaintext is therefore written
+	 * before the tag is known to be good: callers must discard it when this throws
+	 * {@link AEADBadTagException}. (CTR carries into the upper 96 counter bits where GCM wraps, which
+	 * only matters past 64 GiB.)
+	 */
+	public void decryptAesCbc(InputStream ciphertext, OutputStream plaintext, SecretKey key, byte[] iv) throws Exception {
+		Cipher ctr = engine.gcmPayloadCtr(key, iv);
+		Cipher check = engine.gcmEncrypt(key, iv);
+		int tagLength = CryptoEngine.GCM_TAG_BITS / 8;
+
+		byte[] in = engine.streamIn();
+		byte[] out = engine.streamOut();
+		byte[] aux = engine.streamAux();
+		// The last tagLength bytes read so far may be the tag, so they are kept at the front of in
+		int held = 0;
+		int read;
+		while ((read = ciphertext.read(in, held, in.length - held)) != -1) {
+			int available = held + read;
+			int payload = available - tagLength;
+			if (payload <= 0) {
+				held = available;
+				continue;
+			}
+			int n = ctr.update(in, 0, payload, out, 0);
+			plaintext.write(out, 0, n);
+			check.update(out, 0, n, aux, 0);
+			System.arraycopy(in, payload, in, 0, tagLength);
+			held = tagLength;
+		}
+		if (held < tagLength) {
+			throw new AEADBadTagException("Ciphertext shorter than the GCM tag");
+		}
+		int n = ctr.doFinal(out, 0);
+		plaintext.write(out, 0, n);
+		int m = check.update(out, 0, n, aux, 0);
+		m += check.doFinal(aux, m);
+		if (!MessageDigest.isEqual(Arrays.copyOfRange(aux, m - tagLength, m), Arrays.copyOf(in, tagLength))) {
+			throw new AEADBadTagException("Tag mismatch");
+		}
 	}
 
 	public static class AesKeyAndIv {
@@ -52,15 +148,24 @@ public class CryptoService {
 	}
 
 	public String encryptAesKeyWithRsaV2HeaderValue(byte[] iv, SecretKey aesKey, PublicKey rsaPublicKey) throws Exception {
-		Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-		rsa.init(Cipher.ENCRYPT_MODE, rsaPublicKey);
-		byte[] enc = rsa.doFinal(aesKey.getEncoded());
+		byte[] enc = engine.rsa(Cipher.ENCRYPT_MODE, rsaPublicKey).doFinal(aesKey.getEncoded());
 		byte[] data = new byte[iv.length + enc.length];
 		System.arraycopy(iv, 0, data, 0, iv.length);
 		System.arraycopy(enc, 0, data, iv.length, enc.length);
 		return "V2.0#: " + Base64.getEncoder().encodeToString(data);
 	}
 
+	/**
+	 * Wraps several data keys with the same RSA public key, one {@code V2.0#} header value per key.
+	 */
+	public List<String> encryptAesKeysWithRsaV2HeaderValues(List<AesKeyAndIv> keys, PublicKey rsaPublicKey) throws Exception {
+		List<String> out = new ArrayList<>(keys.size());
+		for (AesKeyAndIv k : keys) {
+			out.add(encryptAesKeyWithRsaV2HeaderValue(k.iv, k.key, rsaPublicKey));
+		}
+		return out;
+	}
+
 	public AesKeyAndIv decryptAesKeyAndIvFromRsaV2HeaderValue(String headerValue, PrivateKey rsaPrivateKey) throws Exception {
 		if (!headerValue.startsWith("V2.0#")) throw new IllegalArgumentException("Invalid header");
 		String b64 = headerValue.substring(7);
@@ -69,9 +174,7 @@ public class CryptoService {
 		System.arraycopy(data, 0, iv, 0, 12);
 		byte[] enc = new byte[data.length - 12];
 		System.arraycopy(data, 12, enc, 0, enc.length);
-		Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-		rsa.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
-		byte[] keyBytes = rsa.doFinal(enc);
+		byte[] keyBytes = engine.rsa(Cipher.DECRYPT_MODE, rsaPrivateKey).doFinal(enc);
 		SecretKey key = new SecretKeySpec(keyBytes, "AES");
 		return new AesKeyAndIv(key, iv);
 	}
@@ -0,0 +1,125 @@
+package com.smarsh.dataengineering.vams.process.crypto;
+
+import javax.crypto.SecretKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded buffer of ready-to-use data keys: an IV, an AES-256 key and its RSA-wrapped {@code V2.0#}
+ * header value, prepared by background producer threads so the RSA operation is off the worker's
+ * critical path.
+ * <p>
+ * Every prepared key is handed out at most once and is dropped on {@link #close()}. When the buffer
+ * is empty the caller does not wait: it generates its own key inline and the miss is counted as a
+ * starvation, so the pool can never make a run slower than generating keys on demand.
+ */
+public final class DataKeyPool implements AutoCloseable {
+
+	/**
+	 * The key material for one message; the IV is copied out, so a key cannot be changed once made.
+	 */
+	public static final class DataKey {
+
+		private final byte[] iv;
+		private final SecretKey key;
+		private final String headerValue;
+
+		private DataKey(byte[] iv, SecretKey key, String headerValue) {
+			this.iv = iv;
+			this.key = key;
+			this.headerValue = headerValue;
+		}
+
+		public byte[] iv() { return iv.clone(); }
+
+		public SecretKey key() { return key; }
+
+		public String headerValue() { return headerValue; }
+
+		@Override
+		public String toString() {
+			return "DataKey[" + headerValue + "]";
+		}
+	}
+
+	private final CryptoService crypto;
+	private final PublicKey publicKey;
+	private final BlockingQueue<DataKey> ready;
+	private final List<Thread> producers = new ArrayList<>();
+
+	private final LongAdder taken = new LongAdder();
+	private final LongAdder starved = new LongAdder();
+
+	private volatile boolean closed;
+
+	public DataKeyPool(CryptoService crypto, PublicKey publicKey, int capacity, int producerCount) {
+		this.crypto = crypto;
+		this.publicKey = publicKey;
+		this.ready = new ArrayBlockingQueue<>(Math.max(1, capacity));
+		for (int i = 0; i < Math.max(1, producerCount); i++) {
+			producers.add(Thread.ofPlatform().daemon().name("data-key-producer-" + i).start(this::produce));
+		}
+	}
+
+	/**
+	 * Generates one data key on the calling thread.
+	 */
+	public static DataKey generate(CryptoService crypto, PublicKey publicKey) throws Exception {
+		byte[] iv = crypto.generateIv();
+		SecretKey key = crypto.generateAes256Key();
+		return new DataKey(iv, key, crypto.encryptAesKeyWithRsaV2HeaderValue(iv, key, publicKey));
+	}
+
+	/**
+	 * The next prepared data key, or one generated inline when none is ready.
+	 */
+	public DataKey take() throws Exception {
+		taken.increment();
+		DataKey next = ready.poll();
+		if (next != null) {
+			return next;
+		}
+		starved.increment();
+		return generate(crypto, publicKey);
+	}
+
+	/** Keys handed out so far. */
+	public long getTaken() { return taken.sum(); }
+
+	/** Keys that had to be generated inline because the pool was empty. */
+	public long getStarved() { return starved.sum(); }
+
+	@Override
+	public void close() throws InterruptedException {
+		closed = true;
+		for (Thread t : producers) {
+			t.interrupt();
+		}
+		for (Thread t : producers) {
+			t.join();
+		}
+		ready.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "Data key pool: " + getTaken() + " taken, " + getStarved() + " generated inline";
+	}
+
+	private void produce() {
+		try {
+			while (!closed) {
+				ready.put(generate(crypto, publicKey));
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (Exception e) {
+			// Workers fall back to inline generation, which reports the problem per message
+			System.err.println("Data key producer stopped: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+
+/**
+ * Checkpoint manifest of a run, kept in the output folder so an interrupted run can be resumed.
+ * <p>
+ * One tab-separated line per input: status, size, last-modified millis and name (the path relative to
+ * the input folder, see {@link InputScan}). Outcomes are
+ * appended (and flushed) as soon as an input finishes; when an input appears more than once the last
+ * line wins and a torn last line from a crash is ignored. The manifest is compacted on {@link #close()}.
+ * An input is skipped when its last outcome is {@code DONE}, its size and mtime are unchanged and
+ * its output exists; failed, changed and missing inputs are processed again.
+ */
+final class Checkpoint implements Closeable {
+
+	static final String FILE_NAME = ".vams-checkpoint.tsv";
+
+	private static final String HEADER = "# status\tsize\tmtime\tname";
+
+	enum Status { DONE, FAILED }
+
+	private record Entry(Status status, long size, long mtime) {}
+
+	private final Path file;
+	private final Path inDir;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final BufferedWriter writer;
+
+	private Checkpoint(Path file, Path inDir) throws IOException {
+		this.file = file;
+		this.inDir = inDir;
+		if (file == null) {
+			this.writer = null;
+			return;
+		}
+		if (Files.exists(file)) {
+			for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				parse(line);
+			}
+		}
+		this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		// Start on a fresh line in case the previous run died half way through one
+		writer.newLine();
+	}
+
+	/**
+	 * Opens (or creates) the manifest in {@code outDir} for the inputs in {@code inDir}, one per shard;
+	 * when checkpoints are disabled nothing is read or written and every input is processed.
+	 */
+	static Checkpoint open(Path inDir, Path outDir, TelemessageProperties props) throws IOException {
+		return new Checkpoint(props.getCheckpoint().isEnabled()
+				? outDir.resolve(InputScan.shardFileName(FILE_NAME, props.getScan()))
+				: null, inDir);
+	}
+
+	/**
+	 * Whether {@code input}, as described by {@code attrs}, was completed by an earlier run and is
+	 * unchanged since.
+	 */
+	boolean isDone(Path input, BasicFileAttributes attrs, Path output) {
+		Entry e = entries.get(InputScan.relativeName(inDir, input));
+		if (e == null || e.status != Status.DONE || !Files.exists(output)) {
+			return false;
+		}
+		return e.size == attrs.size() && e.mtime == attrs.lastModifiedTime().toMillis();
+	}
+
+	/**
+	 * Records the outcome for {@code input}. {@code attrs} are the ones read before it was processed
+	 * (null when they could not be read), so an input replaced meanwhile is not taken as done. A
+	 * manifest that cannot be written only costs reprocessing on the next run, so problems are reported
+	 * rather than thrown.
+	 */
+	void record(Path input, BasicFileAttributes attrs, Status status) {
+		if (writer == null) {
+			return;
+		}
+		try {
+			String name = InputScan.relativeName(inDir, input);
+			Entry e = attrs != null
+					? new Entry(status, attrs.size(), attrs.lastModifiedTime().toMillis())
+					: new Entry(status, -1, -1);
+			entries.put(name, e);
+			synchronized (writer) {
+				writer.write(format(name, e));
+				writer.newLine();
+				writer.flush();
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to update checkpoint for " + input + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (writer == null) {
+			return;
+		}
+		writer.close();
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".part");
+		try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			out.write(HEADER);
+			out.newLine();
+			for (Map.Entry<String, Entry> e : new TreeMap<>(entries).entrySet()) {
+				out.write(format(e.getKey(), e.getValue()));
+				out.newLine();
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void parse(String line) {
+		if (line.isEmpty() || line.startsWith("#")) {
+			return;
+		}
+		String[] cols = line.split("\t", 4);
+		if (cols.length < 4) {
+			return;
+		}
+		try {
+			entries.put(cols[3], new Entry(Status.valueOf(cols[0]), Long.parseLong(cols[1]), Long.parseLong(cols[2])));
+		} catch (IllegalArgumentException ignored) {
+			// torn line
+		}
+	}
+
+	private static String format(String name, Entry e) {
+		return e.status + "\t" + e.size + "\t" + e.mtime + "\t" + name;
+	}
+}
@@ -0,0 +1,266 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+
+/**
+ * What a dry run learns about a corpus: histograms of message size, leaf count, nesting depth and
+ * attachment size (encoded bytes), plus a random sample of messages to calibrate the estimates on.
+ * Safe to update from several worker threads.
+ * <p>
+ * The estimates are a model, not a measurement: encryption time per message is fitted as
+ * {@code fixed + bytes * perByte} on the calibration sample and spread over the workers, but a run
+ * cannot go faster than the dry run read the input. Peak heap counts what each worker holds for the
+ * largest message ({@link EmlEncryptionService#messageHeap}), within the heap budget if one is set, and
+ * the key pool, on top of the application's own baseline.
+ */
+final class CorpusProfile {
+
+	static final String FILE_NAME = ".vams-profile.json";
+
+	/** Messages larger than this are left out of the calibration sample; the fit extrapolates to them. */
+	static final long MAX_SAMPLE_MESSAGE = 64L * 1024 * 1024;
+
+	private static final long KIB = 1024;
+	private static final long[] SIZE_BOUNDS = {
+			KIB, 4 * KIB, 16 * KIB, 64 * KIB, 256 * KIB, KIB * KIB, 4 * KIB * KIB, 16 * KIB * KIB, 64 * KIB * KIB,
+			256 * KIB * KIB};
+	private static final long[] COUNT_BOUNDS = {0, 1, 2, 4, 8, 16, 32, 64};
+	private static final long[] DEPTH_BOUNDS = {0, 1, 2, 3, 4, 5, 6, 7, 8};
+	/** Rough heap held per data key in the pool: IV, key and the RSA-wrapped header value. */
+	private static final long POOLED_KEY_BYTES = 1024;
+
+	private final Histogram messageSize = new Histogram(SIZE_BOUNDS, true);
+	private final Histogram leafCount = new Histogram(COUNT_BOUNDS, false);
+	private final Histogram depth = new Histogram(DEPTH_BOUNDS, false);
+	private final Histogram attachmentSize = new Histogram(SIZE_BOUNDS, true);
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder leaves = new LongAdder();
+	private final LongAdder attachments = new LongAdder();
+	private final LongAdder attachmentBytes = new LongAdder();
+	private final LongAccumulator largestMessage = new LongAccumulator(Math::max, 0);
+	private final LongAccumulator largestAttachment = new LongAccumulator(Math::max, 0);
+
+	private final int sampleSize;
+	private final List<Path> sample = new ArrayList<>();
+	private final Random random = new Random(1);
+	private long offered;
+
+	/** Timings of the calibration sample with the configured engine. */
+	record Calibration(int messages, long bytes, double fixedSeconds, double secondsPerByte) {
+
+		/**
+		 * Least-squares fit of {@code seconds = fixed + bytes * perByte}, both kept non-negative.
+		 */
+		static Calibration fit(long[] sizes, double[] seconds) {
+			int n = sizes.length;
+			double sx = 0, sy = 0, sxx = 0, sxy = 0;
+			long total = 0;
+			for (int i = 0; i < n; i++) {
+				sx += sizes[i];
+				sy += seconds[i];
+				sxx += (double) sizes[i] * sizes[i];
+				sxy += sizes[i] * seconds[i];
+				total += sizes[i];
+			}
+			double den = n * sxx - sx * sx;
+			double perByte = n > 1 && den > 0 ? (n * sxy - sx * sy) / den : (sx > 0 ? sy / sx : 0);
+			perByte = Math.max(0, perByte);
+			double fixed = n > 0 ? Math.max(0, (sy - perByte * sx) / n) : 0;
+			return new Calibration(n, total, fixed, perByte);
+		}
+	}
+
+	CorpusProfile(int sampleSize) {
+		this.sampleSize = sampleSize;
+	}
+
+	void leaf(boolean attachment, long size) {
+		leaves.increment();
+		if (attachment) {
+			attachments.increment();
+			attachmentBytes.add(size);
+			attachmentSize.add(size);
+			largestAttachment.accumulate(size);
+		}
+	}
+
+	void message(Path input, long size, int leafCount, int maxDepth) {
+		messages.increment();
+		bytes.add(size);
+		largestMessage.accumulate(size);
+		messageSize.add(size);
+		this.leafCount.add(leafCount);
+		depth.add(maxDepth);
+		if (size <= MAX_SAMPLE_MESSAGE) {
+			offer(input);
+		}
+	}
+
+	/** Reservoir sampling, so every message has the same chance whatever the folder order. */
+	private synchronized void offer(Path input) {
+		offered++;
+		if (sample.size() < sampleSize) {
+			sample.add(input);
+		} else {
+			long i = (long) (random.nextDouble() * offered);
+			if (i < sampleSize) {
+				sample.set((int) i, input);
+			}
+		}
+	}
+
+	synchronized List<Path> sample() {
+		return List.copyOf(sample);
+	}
+
+	/**
+	 * The statistics and, given the scan time and a calibration, the estimates for a run with
+	 * {@code props}, as a JSON-friendly map.
+	 */
+	Map<String, Object> report(long scanNanos, Calibration calibration, TelemessageProperties props) {
+		Map<String, Object> out = new LinkedHashMap<>();
+		long n = messages.sum();
+		long total = bytes.sum();
+		out.put("messages", n);
+		out.put("bytes", total);
+		out.put("leaves", leaves.sum());
+		out.put("attachments", attachments.sum());
+		out.put("attachmentBytes", attachmentBytes.sum());
+		out.put("largestMessage", largestMessage.get());
+		out.put("largestAttachment", largestAttachment.get());
+		out.put("messageSize", messageSize.toMap());
+		out.put("leafCount", leafCount.toMap());
+		out.put("depth", depth.toMap());
+		out.put("attachmentSize", attachmentSize.toMap());
+
+		double scanSeconds = scanNanos / 1e9;
+		double readRate = scanSeconds > 0 ? total / scanSeconds : 0;
+		int workers = props.getParallel().isEnabled() ? Math.max(1, props.getParallel().getMaxConcurrency()) : 1;
+		int cpuWorkers = Math.min(workers, Runtime.getRuntime().availableProcessors());
+		double cpuSeconds = n * calibration.fixedSeconds() + total * calibration.secondsPerByte();
+		double wallSeconds = Math.max(cpuSeconds / cpuWorkers, readRate > 0 ? total / readRate : 0);
+
+		Map<String, Object> estimate = new LinkedHashMap<>();
+		estimate.put("engine", props.getEngine().name().toLowerCase(Locale.ROOT));
+		estimate.put("inputMode", props.getInputMode().name().toLowerCase(Locale.ROOT));
+		estimate.put("workers", workers);
+		estimate.put("scanSeconds", round(scanSeconds));
+		estimate.put("readMbPerSecond", round(readRate / 1e6));
+		estimate.put("calibrationMessages", calibration.messages());
+		estimate.put("calibrationBytes", calibration.bytes());
+		estimate.put("msPerMessage", round(calibration.fixedSeconds() * 1e3));
+		estimate.put("mbPerSecondPerWorker", calibration.secondsPerByte() > 0 ? round(1e-6 / calibration.secondsPerByte()) : 0.0);
+		estimate.put("cpuSeconds", round(cpuSeconds));
+		estimate.put("wallSeconds", round(wallSeconds));
+		estimate.put("peakHeapBytes", peakHeap(props, workers));
+		if (props.getInputMode() == TelemessageProperties.InputMode.MAPPED) {
+			// Off heap: page cache mapped by the workers at the same time
+			estimate.put("peakMappedBytes", workers * largestMessage.get());
+		}
+		out.put("estimate", estimate);
+		return out;
+	}
+
+	private long peakHeap(TelemessageProperties props, int workers) {
+		long largest = largestMessage.get();
+		long budget = props.getParallel().getHeapBudget();
+		boolean spilled = budget >= 0 && EmlEncryptionService.messageHeap(props, largest, false) > budget;
+		long perWorker = EmlEncryptionService.messageHeap(props, largest, spilled);
+		long workersHeap = workers * perWorker;
+		if (budget >= 0 && workers > 1) {
+			// Admission keeps the workers within the budget, but a single message always runs
+			workersHeap = Math.min(workersHeap, Math.max(budget, perWorker));
+		}
+		long keyPool = props.getKeyPool().isEnabled() ? props.getKeyPool().getCapacity() * POOLED_KEY_BYTES : 0;
+		return workersHeap + keyPool;
+	}
+
+	/**
+	 * Short human-readable form of a {@link #report}.
+	 */
+	@SuppressWarnings("unchecked")
+	static String describe(Map<String, Object> report) {
+		Map<String, Object> e = (Map<String, Object>) report.get("estimate");
+		var sb = new StringBuilder();
+		sb.append("Profiled ").append(report.get("messages")).append(" message(s), ")
+				.append(report.get("bytes")).append(" bytes, ")
+				.append(report.get("leaves")).append(" leaves (")
+				.append(report.get("attachments")).append(" attachments, largest ")
+				.append(report.get("largestAttachment")).append(" bytes) in ")
+				.append(e.get("scanSeconds")).append(" s");
+		sb.append("\n  message size: ").append(report.get("messageSize"));
+		sb.append("\n  leaf count:   ").append(report.get("leafCount"));
+		sb.append("\n  depth:        ").append(report.get("depth"));
+		sb.append("\n  attachments:  ").append(report.get("attachmentSize"));
+		sb.append("\n  estimate (").append(e.get("engine")).append(", ").append(e.get("inputMode")).append(", ")
+				.append(e.get("workers")).append(" worker(s)): ")
+				.append(e.get("wallSeconds")).append(" s wall, ")
+				.append(e.get("cpuSeconds")).append(" s cpu, peak heap ~")
+				.append(e.get("peakHeapBytes")).append(" bytes");
+		return sb.toString();
+	}
+
+	private static double round(double v) {
+		return Math.round(v * 1000) / 1000.0;
+	}
+
+	/**
+	 * Counts per bucket; a value falls into the first bucket whose upper bound is not smaller, or into
+	 * the overflow bucket.
+	 */
+	private static final class Histogram {
+		private final long[] bounds;
+		private final boolean bytes;
+		private final AtomicLongArray counts;
+
+		Histogram(long[] bounds, boolean bytes) {
+			this.bounds = bounds;
+			this.bytes = bytes;
+			this.counts = new AtomicLongArray(bounds.length + 1);
+		}
+
+		void add(long value) {
+			int i = 0;
+			while (i < bounds.length && value > bounds[i]) {
+				i++;
+			}
+			counts.incrementAndGet(i);
+		}
+
+		Map<String, Long> toMap() {
+			Map<String, Long> out = new LinkedHashMap<>();
+			for (int i = 0; i <= bounds.length; i++) {
+				String label;
+				if (i == bounds.length) {
+					label = ">" + format(bounds[i - 1]);
+				} else if (bytes) {
+					label = "<=" + format(bounds[i]);
+				} else {
+					long from = i == 0 ? bounds[0] : bounds[i - 1] + 1;
+					label = from == bounds[i] ? format(from) : from + "-" + bounds[i];
+				}
+				out.put(label, counts.get(i));
+			}
+			return out;
+		}
+
+		private String format(long v) {
+			if (!bytes) {
+				return Long.toString(v);
+			}
+			return v >= KIB * KIB ? v / (KIB * KIB) + "MiB" : v / KIB + "KiB";
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Service;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+/**
+ * Dry-run mode: profiles the .eml files in the input folder for capacity planning, without encrypting
+ * or writing any of them.
+ * <p>
+ * Each message is read once with the raw engine's parser, which only finds the structure and counts
+ * bytes, so the scan runs at close to disk speed (in parallel when enabled, like a real run). A
+ * random sample of the messages is then encrypted in memory, with the configured engine, to calibrate
+ * the time estimate on this host. Histograms and estimates ({@link CorpusProfile}) are printed and
+ * written to {@value CorpusProfile#FILE_NAME} in the output folder.
+ */
+@Service
+public class CorpusProfileService {
+
+	private final TelemessageProperties props;
+	private final CryptoService crypto;
+	private final EmlEncryptionService emlService;
+	private final ThreadLocal<RawMimeRewriter> parser;
+
+	public CorpusProfileService(TelemessageProperties props, CryptoService crypto, EmlEncryptionService emlService) {
+		this.props = props;
+		this.crypto = crypto;
+		this.emlService = emlService;
+		this.parser = ThreadLocal.withInitial(() -> new RawMimeRewriter(crypto));
+	}
+
+	public RunSummary profile() throws Exception {
+		Path inDir = Path.of(props.getInputFolder());
+		Path outDir = Path.of(props.getOutputFolder());
+
+		if (!Files.isDirectory(inDir)) {
+			throw new IllegalArgumentException("Input folder is not a directory: " + inDir);
+		}
+
+		CorpusProfile profile = new CorpusProfile(props.getProfile().getSampleSize());
+		RunSummary summary = new RunSummary();
+		InputScan scan = new InputScan(inDir, ".eml", outDir, props.getScan());
+		long start = System.nanoTime();
+		try (Stream<Path> inputs = scan.open()) {
+			emlService.forEachInput(inputs, "eml-profile-", p -> scanFile(p, profile, summary));
+		}
+		long scanNanos = System.nanoTime() - start;
+		summary.finish();
+
+		Map<String, Object> report = profile.report(scanNanos, calibrate(profile.sample()), props);
+		Path file = outDir.resolve(InputScan.shardFileName(CorpusProfile.FILE_NAME, props.getScan()));
+		EmlEncryptionService.writeAtomically(file, tmp ->
+				new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), report));
+
+		System.out.println(summary);
+		System.out.println(CorpusProfile.describe(report));
+		System.out.println("Profile written to " + file);
+		return summary;
+	}
+
+	private void scanFile(Path input, CorpusProfile profile, RunSummary summary) {
+		try (InputStream is = emlService.openInput(input, true)) {
+			int[] maxDepth = {0};
+			int leaves = parser.get().profile(is, (depth, attachment, size) -> {
+				maxDepth[0] = Math.max(maxDepth[0], depth);
+				profile.leaf(attachment, size);
+			});
+			profile.message(input, Files.size(input), leaves, maxDepth[0]);
+			summary.recordSuccess();
+		} catch (Exception e) {
+			System.err.println("Failed profiling " + input + ": " + e.getMessage());
+			summary.recordFailure(input, e);
+		}
+	}
+
+	/**
+	 * Encrypts the sample into a null stream with the configured engine, once to warm up and once
+	 * timed. Uses its own service so the run metrics only describe the scan.
+	 */
+	private CorpusProfile.Calibration calibrate(List<Path> sample) throws Exception {
+		long[] sizes = new long[sample.size()];
+		double[] seconds = new double[sample.size()];
+		int n = 0;
+		boolean sequential = props.getEngine() == TelemessageProperties.Engine.RAW;
+		try (EmlEncryptionService calibration = new EmlEncryptionService(props, crypto, new EncryptionMetrics())) {
+			for (int pass = 0; pass < 2; pass++) {
+				n = 0;
+				for (Path p : sample) {
+					long size = Files.size(p);
+					long t = System.nanoTime();
+					try (InputStream is = calibration.openInput(p, sequential)) {
+						calibration.encryptMessage(is, size, OutputStream.nullOutputStream());
+					} catch (Exception e) {
+						// Fails in the real run too; only time the messages that work
+						continue;
+					}
+					sizes[n] = size;
+					seconds[n++] = (System.nanoTime() - t) / 1e9;
+				}
+			}
+		}
+		return CorpusProfile.Calibration.fit(Arrays.copyOf(sizes, n), Arrays.copyOf(seconds, n));
+	}
+}
@@ -0,0 +1,108 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.PrivateKey;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+import com.smarsh.dataengineering.vams.process.crypto.RsaKeyLoader;
+
+/**
+ * Decrypt mode: restores every encrypted .eml in the input folder into the output folder, e.g. to
+ * produce the "decrypted" side of a comparator run.
+ * <p>
+ * The data key is unwrapped once per message with the private key, then each leaf is decrypted in a
+ * single streaming pass ({@link RawMimeRewriter#restore}), in constant memory however large the
+ * attachments; output of both engines is accepted. A leaf whose GCM tag does not match fails the
+ * message, and no output is left for it. The {@code X-TELEMESSAGE-*} headers are removed; leaves come
+ * back Base64 encoded. Runs in parallel like encryption, with the same checkpoint and metrics.
+ */
+@Service
+public class EmlDecryptionService {
+
+	private static final List<RawMimeRewriter.HeaderField> REMOVED_HEADERS = List.of(
+			new RawMimeRewriter.HeaderField(EmlEncryptionService.HDR_DATAKEY, null),
+			new RawMimeRewriter.HeaderField(EmlEncryptionService.HDR_INTEGRITY, null),
+			new RawMimeRewriter.HeaderField(EmlEncryptionService.HDR_FINGER_PRINT, null));
+
+	private final TelemessageProperties props;
+	private final EmlEncryptionService emlService;
+	private final EncryptionMetrics metrics;
+	private final PrivateKey privateKey;
+	private final ThreadLocal<RawMimeRewriter> rewriter;
+
+	public EmlDecryptionService(TelemessageProperties props, CryptoService crypto, EmlEncryptionService emlService)
+			throws Exception {
+		this.props = props;
+		this.emlService = emlService;
+		this.metrics = emlService.getMetrics();
+		this.privateKey = RsaKeyLoader.loadPrivateKey(Path.of(props.getRsa().getPrivateKeyPath()));
+		this.rewriter = ThreadLocal.withInitial(() -> new RawMimeRewriter(crypto));
+	}
+
+	public RunSummary processAllEmls() throws Exception {
+		Path inDir = Path.of(props.getInputFolder());
+		Path outDir = Path.of(props.getOutputFolder());
+		Files.createDirectories(outDir);
+
+		if (!Files.isDirectory(inDir)) {
+			throw new IllegalArgumentException("Input folder is not a directory: " + inDir);
+		}
+
+		RunSummary summary = new RunSummary();
+		InputScan scan = new InputScan(inDir, ".eml", outDir, props.getScan());
+		try (Checkpoint checkpoint = Checkpoint.open(inDir, outDir, props);
+			 Stream<Path> inputs = scan.open()) {
+			emlService.forEachInput(inputs, "eml-decrypt-", p -> processFile(p, scan.outputFor(p, outDir), checkpoint, summary));
+		}
+		summary.finish();
+
+		System.out.println(summary);
+		return summary;
+	}
+
+	private void processFile(Path input, Path output, Checkpoint checkpoint, RunSummary summary) {
+		BasicFileAttributes attrs = null;
+		try {
+			attrs = Files.readAttributes(input, BasicFileAttributes.class);
+			if (checkpoint.isDone(input, attrs, output)) {
+				summary.recordSkipped();
+				return;
+			}
+			processOne(input, output);
+			checkpoint.record(input, attrs, Checkpoint.Status.DONE);
+			summary.recordSuccess();
+		} catch (Exception e) {
+			System.err.println("Failed decrypting " + input + ": " + e.getMessage());
+			e.printStackTrace(System.err);
+			metrics.failure();
+			checkpoint.record(input, attrs, Checkpoint.Status.FAILED);
+			summary.recordFailure(input, e);
+		}
+	}
+
+	void processOne(Path inputEml, Path outputEml) throws Exception {
+		long start = System.nanoTime();
+		try (InputStream is = emlService.openInput(inputEml, true)) {
+			EmlEncryptionService.writeAtomically(outputEml, tmp -> {
+				try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp), CryptoService.STREAM_CHUNK_SIZE)) {
+					metrics.leafParts(rewriter.get().restore(is, os, privateKey, EmlEncryptionService.HDR_DATAKEY, REMOVED_HEADERS));
+				}
+			});
+		} catch (InternalError e) {
+			throw new IOException("Input changed while it was being read: " + inputEml, e);
+		}
+		metrics.stage(EncryptionMetrics.Stage.REWRITE, start);
+		metrics.message(Files.size(inputEml), Files.size(outputEml), start);
+	}
+}
@@ -2,54 +2,119 @@ package com.smarsh.dataengineering.vams.process.eml;
 
 
 
-import jakarta.activation.DataHandler;
 import jakarta.mail.*;
 import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
-import jakarta.mail.util.ByteArrayDataSource;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.util.SharedFileInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.util.Base64;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
 
 import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
 import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+import com.smarsh.dataengineering.vams.process.crypto.DataKeyPool;
 import com.smarsh.dataengineering.vams.process.crypto.RsaKeyLoader;
 
 @Service
-public class EmlEncryptionService {
+public class EmlEncryptionService implements AutoCloseable {
 
-	private static final String HDR_DATAKEY = "X-TELEMESSAGE-ENC-DATAKEY";
-	private static final String HDR_INTEGRITY = "X-TELEMESSAGE-OriginalMesageIntegrity";
-	private static final String HDR_FINGER_PRINT = "X-TELEMESSAGE-ENC-KEY-ID";
+	static final String HDR_DATAKEY = "X-TELEMESSAGE-ENC-DATAKEY";
+	static final String HDR_INTEGRITY = "X-TELEMESSAGE-OriginalMesageIntegrity";
+	static final String HDR_FINGER_PRINT = "X-TELEMESSAGE-ENC-KEY-ID";
+	/** Marks a leaf left in the clear by a passthrough rule; the value is the rule name. */
+	static final String HDR_PASSTHROUGH = "X-TELEMESSAGE-ENC-PASSTHROUGH";
+
+	private static final int INPUT_BUFFER_SIZE = 64 * 1024;
 
 	private final TelemessageProperties props;
 	private final CryptoService crypto;
 
 	private final Session mailSession;
+	private final ThreadLocal<RawMimeRewriter> rawRewriter;
 	private final PublicKey publicKey;
+	private final DataKeyPool keyPool;
+	private final EncryptionMetrics metrics;
+	private final PassthroughRules passthrough;
+	/** Encrypts the leaves of large DOM messages concurrently; null when disabled. */
+	private final ForkJoinPool leafPool;
 	@SuppressWarnings("unused")
 	private final PrivateKey privateKey; // loaded because you requested pair; not used in this encrypt-only flow
 
 	public EmlEncryptionService(TelemessageProperties props, CryptoService crypto) throws Exception {
+		this(props, crypto, new EncryptionMetrics());
+	}
+
+	@Autowired
+	public EmlEncryptionService(TelemessageProperties props, CryptoService crypto, EncryptionMetrics metrics) throws Exception {
 		this.props = props;
 		this.crypto = crypto;
+		this.metrics = metrics;
 
 		this.mailSession = Session.getInstance(new Properties());
+		this.passthrough = PassthroughRules.of(props.getPassthrough(), metrics);
+		this.rawRewriter = ThreadLocal.withInitial(() -> new RawMimeRewriter(crypto, passthrough));
 
 		this.publicKey = RsaKeyLoader.loadPublicKey(Path.of(props.getRsa().getPublicKeyPath()));
 		this.privateKey = RsaKeyLoader.loadPrivateKey(Path.of(props.getRsa().getPrivateKeyPath()));
+
+		TelemessageProperties.KeyPool pool = props.getKeyPool();
+		this.keyPool = pool.isEnabled()
+				? new DataKeyPool(crypto, publicKey, pool.getCapacity(), pool.getProducers())
+				: null;
+
+		this.leafPool = props.getParallel().getLargeMessageThreshold() >= 0
+				? new ForkJoinPool(Math.max(1, props.getParallel().getMaxConcurrency()), p -> {
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+					thread.setName("eml-leaf-" + thread.getPoolIndex());
+					return thread;
+				}, null, false)
+				: null;
+	}
+
+	/**
+	 * Stops the data key producers, if any, and drops the keys they prepared, and the leaf workers.
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		if (keyPool != null) {
+			keyPool.close();
+		}
+		if (leafPool != null) {
+			leafPool.shutdown();
+		}
 	}
 
-	public void processAllEmls() throws Exception {
+	public RunSummary processAllEmls() throws Exception {
 		Path inDir = Path.of(props.getInputFolder());
 		Path outDir = Path.of(props.getOutputFolder());
 		Files.createDirectories(outDir);
@@ -58,35 +123,335 @@ public class EmlEncryptionService {
 			throw new IllegalArgumentException("Input folder is not a directory: " + inDir);
 		}
 
-		try (var stream = Files.list(inDir)) {
-			stream
-					.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().toLowerCase().endsWith(".eml"))
-					.sorted(Comparator.comparing(p -> p.getFileName().toString()))
-					.forEach(p -> {
+		RunSummary summary = new RunSummary();
+		InputScan scan = new InputScan(inDir, ".eml", outDir, props.getScan());
+		try (Checkpoint checkpoint = Checkpoint.open(inDir, outDir, props);
+			 Stream<Path> inputs = scan.open()) {
+			forEachInput(inputs, "eml-encrypt-", this::heapCost, p -> processFile(p, scan.outputFor(p, outDir), checkpoint, summary));
+		}
+		summary.finish();
+
+		System.out.println(summary);
+		reportKeyPool();
+		return summary;
+	}
+
+	EncryptionMetrics getMetrics() {
+		return metrics;
+	}
+
+	void reportKeyPool() {
+		if (keyPool != null) {
+			System.out.println(keyPool);
+		}
+	}
+
+	/**
+	 * Runs {@code task} for every input as it is listed (largest first when
+	 * {@code telemessage.parallel.largest-first} is set), one after the other or, when parallel mode is
+	 * enabled, on a bounded pool of platform threads. jakarta.mail synchronizes on the message while
+	 * parsing and writing, which would pin virtual threads for the whole file, so a fixed pool sized to
+	 * the concurrency limit is used instead. At most two tasks per worker are queued at any time so huge
+	 * folders do not pile up in memory.
+	 */
+	void forEachInput(Stream<Path> inputs, String threadPrefix, Consumer<Path> task) throws InterruptedException {
+		forEachInput(inputs, threadPrefix, null, task);
+	}
+
+	/**
+	 * As {@link #forEachInput(Stream, String, Consumer)}; with a {@code heapCost} and a heap budget
+	 * configured, an input is only started once its estimated heap is free. Inputs that do not fit yet
+	 * wait while smaller ones behind them go ahead, until more than two per worker are waiting: then the
+	 * oldest is waited for, so large inputs are not starved.
+	 */
+	void forEachInput(Stream<Path> inputs, String threadPrefix, ToLongFunction<Path> heapCost, Consumer<Path> task)
+			throws InterruptedException {
+		forEachInput(inputs, threadPrefix, EmlEncryptionService::sizeOf, heapCost, task);
+	}
+
+	/**
+	 * As {@link #forEachInput(Stream, String, ToLongFunction, Consumer)} for inputs that are not local
+	 * files, such as objects in a bucket; {@code size} gives their size in bytes (-1 when unknown).
+	 */
+	<T extends Comparable<? super T>> void forEachInput(Stream<T> inputs, String threadPrefix, ToLongFunction<T> size,
+			ToLongFunction<T> heapCost, Consumer<T> task) throws InterruptedException {
+		if (props.getParallel().isLargestFirst()) {
+			inputs = largestFirst(inputs, size);
+		}
+		if (!props.getParallel().isEnabled()) {
+			inputs.forEach(task);
+			return;
+		}
+
+		int concurrency = Math.max(1, props.getParallel().getMaxConcurrency());
+		Semaphore inFlight = new Semaphore(concurrency * 2);
+		HeapBudget budget = heapCost != null && props.getParallel().getHeapBudget() >= 0
+				? new HeapBudget(props.getParallel().getHeapBudget())
+				: null;
+
+		ThreadFactory threads = Thread.ofPlatform().name(threadPrefix, 0).factory();
+		try (ExecutorService executor = Executors.newFixedThreadPool(concurrency, threads)) {
+			if (budget == null) {
+				for (T p : (Iterable<T>) inputs::iterator) {
+					inFlight.acquire();
+					executor.execute(() -> {
 						try {
-							processOne(p, outDir.resolve(p.getFileName().toString()));
-						} catch (Exception e) {
-							System.err.println("Failed processing " + p + ": " + e.getMessage());
-							e.printStackTrace(System.err);
+							task.accept(p);
+						} finally {
+							inFlight.release();
 						}
 					});
+				}
+				return;
+			}
+
+			Deque<HeapBudget.Admission<T>> waiting = new ArrayDeque<>();
+			for (T p : (Iterable<T>) inputs::iterator) {
+				waiting.add(budget.admission(p, heapCost.applyAsLong(p)));
+				if (waiting.size() > concurrency * 2) {
+					HeapBudget.Admission<T> oldest = waiting.removeFirst();
+					budget.acquire(oldest);
+					submit(executor, inFlight, budget, oldest, task);
+				}
+				for (Iterator<HeapBudget.Admission<T>> it = waiting.iterator(); it.hasNext(); ) {
+					HeapBudget.Admission<T> a = it.next();
+					if (budget.tryAcquire(a)) {
+						it.remove();
+						submit(executor, inFlight, budget, a, task);
+					}
+				}
+			}
+			for (HeapBudget.Admission<T> a : waiting) {
+				budget.acquire(a);
+				submit(executor, inFlight, budget, a, task);
+			}
+		}
+	}
+
+	private static <T> void submit(ExecutorService executor, Semaphore inFlight, HeapBudget budget,
+			HeapBudget.Admission<T> admitted, Consumer<T> task) throws InterruptedException {
+		inFlight.acquire();
+		executor.execute(() -> {
+			try {
+				task.accept(admitted.input());
+			} finally {
+				budget.release(admitted);
+				inFlight.release();
+			}
+		});
+	}
+
+	/**
+	 * {@code inputs} by size, largest first (then by name); lists them all before the first is returned.
+	 */
+	static Stream<Path> largestFirst(Stream<Path> inputs) {
+		return largestFirst(inputs, EmlEncryptionService::sizeOf);
+	}
+
+	static <T extends Comparable<? super T>> Stream<T> largestFirst(Stream<T> inputs, ToLongFunction<T> size) {
+		record Sized<T>(T input, long size) {}
+		return inputs
+				.map(p -> new Sized<>(p, size.applyAsLong(p)))
+				.sorted(Comparator.<Sized<T>>comparingLong(Sized::size).reversed().thenComparing(Sized::input))
+				.toList()
+				.stream()
+				.map(Sized::input);
+	}
+
+	private static long sizeOf(Path input) {
+		try {
+			return Files.size(input);
+		} catch (IOException e) {
+			// Fails when processed; nothing to gain from doing it early
+			return -1;
+		}
+	}
+
+	/**
+	 * Rough heap one worker holds while encrypting a message of {@code size} bytes: the stream and
+	 * cipher buffers, plus the whole message for the DOM engine reading a plain stream (jakarta.mail
+	 * reads the content into an array that grows by doubling) unless it is {@code spilled} to a
+	 * file-backed read, or the passthrough buffer of the raw engine.
+	 */
+	static long messageHeap(TelemessageProperties props, long size, boolean spilled) {
+		long heap = 4L * CryptoService.STREAM_CHUNK_SIZE;
+		if (props.getEngine() == TelemessageProperties.Engine.DOM) {
+			if (props.getInputMode() == TelemessageProperties.InputMode.STREAM && !spilled) {
+				heap += 2 * Math.max(0, size);
+			}
+		} else {
+			long passthroughBuffer = 0;
+			for (TelemessageProperties.PassthroughRule rule : props.getPassthrough()) {
+				passthroughBuffer = Math.max(passthroughBuffer, rule.getMaxSize() + 1);
+			}
+			heap += passthroughBuffer;
+		}
+		return heap;
+	}
+
+	/**
+	 * Whether a message of {@code size} bytes could never fit the heap budget as configured, and is
+	 * read file-backed instead.
+	 */
+	boolean spills(long size) {
+		long budget = props.getParallel().getHeapBudget();
+		return budget >= 0 && messageHeap(props, size, false) > budget;
+	}
+
+	private long heapCost(Path input) {
+		long size;
+		try {
+			size = Files.size(input);
+		} catch (IOException e) {
+			size = 0;
+		}
+		return messageHeap(props, size, spills(size));
+	}
+
+	/**
+	 * Encrypts {@code input} unless the checkpoint has it as done, and records the outcome; returns
+	 * whether it was encrypted.
+	 */
+	boolean processFile(Path input, Path output, Checkpoint checkpoint, RunSummary summary) {
+		BasicFileAttributes attrs = null;
+		try {
+			// Read before processing, so the checkpoint describes the bytes that were actually read
+			attrs = Files.readAttributes(input, BasicFileAttributes.class);
+			if (checkpoint.isDone(input, attrs, output)) {
+				summary.recordSkipped();
+				return false;
+			}
+			processOne(input, attrs.size(), output);
+			checkpoint.record(input, attrs, Checkpoint.Status.DONE);
+			summary.recordSuccess();
+			return true;
+		} catch (Exception e) {
+			System.err.println("Failed processing " + input + ": " + e.getMessage());
+			e.printStackTrace(System.err);
+			metrics.failure();
+			checkpoint.record(input, attrs, Checkpoint.Status.FAILED);
+			summary.recordFailure(input, e);
+			return false;
 		}
 	}
 
-	private void processOne(Path inputEml, Path outputEml) throws Exception {
-		MimeMessage msg;
-		try (InputStream is = Files.newInputStream(inputEml, StandardOpenOption.READ)) {
-			msg = new MimeMessage(mailSession, is);
+	void processOne(Path inputEml, Path outputEml) throws Exception {
+		processOne(inputEml, Files.size(inputEml), outputEml);
+	}
+
+	/**
+	 * As {@link #processOne(Path, Path)} for an input of {@code size} bytes as stat'ed by the caller;
+	 * the spill decision, the large-message threshold and the metrics all go by that one size.
+	 */
+	void processOne(Path inputEml, long size, Path outputEml) throws Exception {
+		boolean sequential = props.getEngine() == TelemessageProperties.Engine.RAW;
+		try (InputStream is = openInput(inputEml, sequential, spills(size))) {
+			writeAtomically(outputEml, tmp -> {
+				try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp), CryptoService.STREAM_CHUNK_SIZE)) {
+					encryptMessage(is, size, os);
+				}
+			});
+		} catch (InternalError e) {
+			// Raised by reads from a mapped file that was truncated meanwhile
+			throw new IOException("Input changed while it was being read: " + inputEml, e);
 		}
+	}
 
-		byte[] iv = crypto.generateIv();
-		SecretKey aesKey = crypto.generateAes256Key();
+	/**
+	 * Opens {@code input} as {@code telemessage.input-mode} says. A shared stream lets jakarta.mail
+	 * hand out parts as views of the file instead of heap copies; it has to stay open until the
+	 * message has been written. A {@code sequential} reader (the raw engine) reads the file once,
+	 * front to back, and gets a plain stream unless the file is to be mapped.
+	 */
+	InputStream openInput(Path input, boolean sequential) throws IOException {
+		return openInput(input, sequential, false);
+	}
+
+	/**
+	 * As {@link #openInput(Path, boolean)}; a {@code spilled} message is read through a shared stream
+	 * even in stream mode, so its parts stay on disk instead of the heap.
+	 */
+	InputStream openInput(Path input, boolean sequential, boolean spilled) throws IOException {
+		if (spilled && !sequential && props.getInputMode() == TelemessageProperties.InputMode.STREAM) {
+			return new SharedFileInputStream(input.toFile(), INPUT_BUFFER_SIZE);
+		}
+		return switch (props.getInputMode()) {
+			case MAPPED -> MappedSharedInputStream.open(input);
+			case SHARED -> sequential
+					? Files.newInputStream(input)
+					: new SharedFileInputStream(input.toFile(), INPUT_BUFFER_SIZE);
+			case STREAM -> Files.newInputStream(input);
+		};
+	}
+
+	@FunctionalInterface
+	interface FileWriter {
+		void write(Path file) throws Exception;
+	}
+
+	/**
+	 * Lets {@code writer} fill a {@code .part} file next to {@code target} and renames it into place
+	 * once complete, so an interrupted run never leaves a truncated output under the final name.
+	 * Missing parent folders are created.
+	 */
+	static void writeAtomically(Path target, FileWriter writer) throws Exception {
+		Path tmp = target.resolveSibling(target.getFileName() + ".part");
+		try {
+			Files.createDirectories(target.toAbsolutePath().getParent());
+			writer.write(tmp);
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (Exception e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Encrypts the message read from {@code source} and writes it to {@code os}, which is flushed but
+	 * not closed. For the DOM engine {@code source} should be a
+	 * {@link jakarta.mail.internet.SharedInputStream} so parts stay views of it rather than heap
+	 * copies; it has to stay open until this method returns. {@code sourceSize} (-1 when unknown) is
+	 * used for the metrics and to tell large messages, whose leaves are encrypted concurrently.
+	 */
+	void encryptMessage(InputStream source, long sourceSize, OutputStream os) throws Exception {
+		long start = System.nanoTime();
+		EncryptionMetrics.CountingOutputStream counted = new EncryptionMetrics.CountingOutputStream(os);
+		encrypt(source, sourceSize, counted);
+		metrics.message(sourceSize, counted.count(), start);
+	}
+
+	private void encrypt(InputStream source, long sourceSize, OutputStream os) throws Exception {
+		long t = System.nanoTime();
+		DataKeyPool.DataKey dataKey = keyPool != null ? keyPool.take() : DataKeyPool.generate(crypto, publicKey);
+		byte[] iv = dataKey.iv();
+		SecretKey aesKey = dataKey.key();
+		String headerValue = dataKey.headerValue();
+		metrics.stage(EncryptionMetrics.Stage.WRAP, t);
+
+		if (props.getEngine() == TelemessageProperties.Engine.RAW) {
+			t = System.nanoTime();
+			int leaves = rawRewriter.get().rewrite(source, os, aesKey, iv, List.of(
+					new RawMimeRewriter.HeaderField(HDR_DATAKEY, headerValue),
+					new RawMimeRewriter.HeaderField(HDR_INTEGRITY, props.getOriginalMesageIntegrity()),
+					new RawMimeRewriter.HeaderField(HDR_FINGER_PRINT, props.getEncKeyId())));
+			os.flush();
+			metrics.stage(EncryptionMetrics.Stage.REWRITE, t);
+			metrics.leafParts(leaves);
+			return;
+		}
+
+		t = System.nanoTime();
+		MimeMessage msg = new MimeMessage(mailSession, source);
+		metrics.stage(EncryptionMetrics.Stage.PARSE, t);
 
 		// Encrypt content tree
-		encryptPartContentInPlace(msg, aesKey, iv);
+		t = System.nanoTime();
+		long threshold = props.getParallel().getLargeMessageThreshold();
+		List<PreparedBodyPart> leaves = leafPool != null && sourceSize > threshold ? new ArrayList<>() : null;
+		encryptPartContentInPlace(msg, aesKey, iv, leaves);
+		metrics.stage(EncryptionMetrics.Stage.ENCRYPT, t);
 
 		// Add headers
-		String headerValue = crypto.encryptAesKeyWithRsaV2HeaderValue(iv, aesKey, publicKey);
 		msg.setHeader(HDR_DATAKEY, headerValue);
 		// Verification commented out due to key pair mismatch
 		/*
@@ -105,20 +470,70 @@ public class EmlEncryptionService {
 
 
 		// Ensure changes are committed
+		t = System.nanoTime();
 		msg.saveChanges();
+		metrics.stage(EncryptionMetrics.Stage.SAVE, t);
 
-		// Write .eml
-		try (OutputStream os = Files.newOutputStream(outputEml,
-				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+		try {
+			if (leaves != null && leaves.size() > 1) {
+				t = System.nanoTime();
+				prepareConcurrently(leaves);
+				metrics.stage(EncryptionMetrics.Stage.PREPARE, t);
+			}
+
+			// Write .eml; leaf payloads not prepared above are encrypted while they are written
+			t = System.nanoTime();
 			msg.writeTo(os);
+			os.flush();
+			metrics.stage(EncryptionMetrics.Stage.WRITE, t);
+		} finally {
+			if (leaves != null) {
+				for (PreparedBodyPart leaf : leaves) {
+					leaf.discard();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encrypts {@code leaves} ahead of the write, one fork/join task each on the leaf pool, and waits
+	 * for all of them; the first failure is rethrown once none is running any more.
+	 */
+	private void prepareConcurrently(List<PreparedBodyPart> leaves) throws Exception {
+		List<Callable<Void>> tasks = new ArrayList<>(leaves.size());
+		for (PreparedBodyPart leaf : leaves) {
+			tasks.add(() -> {
+				leaf.prepare();
+				return null;
+			});
+		}
+		for (Future<Void> done : leafPool.invokeAll(tasks)) {
+			try {
+				done.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception cause) {
+					throw cause;
+				}
+				throw e;
+			}
 		}
 	}
 
 	/**
 	 * Walks MIME structure; encrypts every leaf part's content bytes.
 	 * Preserves structure/headers/filenames/content-types; only payload bytes are replaced with encrypted.
+	 * Leaf payloads are not read here: each leaf gets an {@link EncryptingDataHandler} that streams the
+	 * encryption when the message is written.
+	 */
+	void encryptPartContentInPlace(Part part, SecretKey aesKey, byte[] iv) throws Exception {
+		encryptPartContentInPlace(part, aesKey, iv, null);
+	}
+
+	/**
+	 * As {@link #encryptPartContentInPlace(Part, SecretKey, byte[])}, also adding every encrypted leaf
+	 * below the top level to {@code leaves} (when not null), to be prepared ahead of the write.
 	 */
-	private void encryptPartContentInPlace(Part part, SecretKey aesKey, byte[] iv) throws Exception {
+	void encryptPartContentInPlace(Part part, SecretKey aesKey, byte[] iv, List<PreparedBodyPart> leaves) throws Exception {
 		if (part.isMimeType("multipart/*")) {
 			Object content = part.getContent();
 			if (!(content instanceof Multipart)) {
@@ -148,7 +563,7 @@ public class EmlEncryptionService {
 
 			for (int i = 0; i < mp.getCount(); i++) {
 				BodyPart bp = mp.getBodyPart(i);
-				BodyPart enc = encryptBodyPart(bp, aesKey, iv);
+				BodyPart enc = encryptBodyPart(bp, aesKey, iv, leaves);
 				newMp.addBodyPart(enc);
 			}
 
@@ -158,11 +573,11 @@ public class EmlEncryptionService {
 
 
 
-		// Leaf part
-		replaceLeafPayloadWithEncrypted(part, aesKey, iv);
+		// Leaf part (only the top-level message gets here; nested parts go through encryptBodyPart)
+		replaceLeafPayloadWithEncrypted((MimeMessage) part, aesKey, iv);
 	}
 
-	private BodyPart encryptBodyPart(BodyPart original, SecretKey aesKey, byte[] iv) throws Exception {
+	private BodyPart encryptBodyPart(BodyPart original, SecretKey aesKey, byte[] iv, List<PreparedBodyPart> leaves) throws Exception {
 		if (original.isMimeType("multipart/*")) {
 			// Clone container headers and recurse into children
 			MimeBodyPart container = new MimeBodyPart();
@@ -192,7 +607,7 @@ public class EmlEncryptionService {
 
 			for (int i = 0; i < mp.getCount(); i++) {
 				BodyPart child = mp.getBodyPart(i);
-				newMp.addBodyPart(encryptBodyPart(child, aesKey, iv));
+				newMp.addBodyPart(encryptBodyPart(child, aesKey, iv, leaves));
 			}
 
 			container.setContent(newMp);
@@ -200,8 +615,15 @@ public class EmlEncryptionService {
 		}
 
 
+		PassthroughRules.Rule rule = passthroughRule(original);
+		if (rule != null) {
+			// Kept as parsed, so writeTo copies the original encoded bytes
+			original.setHeader(HDR_PASSTHROUGH, rule.name());
+			return original;
+		}
+
 		// Leaf: copy headers then replace payload
-		MimeBodyPart leaf = new MimeBodyPart();
+		PreparedBodyPart leaf = new PreparedBodyPart(original.getSize());
 		copyNonContentHeaders(original, leaf);
 
 		// Preserve filename/disposition/content-type metadata (payload changes)
@@ -210,36 +632,58 @@ public class EmlEncryptionService {
 		String fn = original.getFileName();
 		if (fn != null) leaf.setFileName(fn);
 
-		// Encrypt original raw bytes
-		byte[] plain = readAllBytes(original.getInputStream());
-		byte[] ct = crypto.encryptAesCbc(plain, aesKey, iv);
-
+		// Encrypt original payload; streamed when the part is written
 		String contentType = original.getContentType();
-		Object content = contentType.startsWith("text/") ? Base64.getEncoder().encodeToString(ct).getBytes(java.nio.charset.StandardCharsets.UTF_8) : ct;
-		ByteArrayDataSource ds = new ByteArrayDataSource((byte[]) content, contentType);
-		leaf.setDataHandler(new DataHandler(ds));
+		leaf.setDataHandler(new EncryptingDataHandler(original::getInputStream, contentType, crypto, aesKey, iv));
+		metrics.leafParts(1);
 
 		// Make sure it's transferable
 		leaf.setHeader("Content-Transfer-Encoding", "base64");
 
+		if (leaves != null) {
+			leaves.add(leaf);
+		}
 		return leaf;
 	}
 
-	private void replaceLeafPayloadWithEncrypted(Part leaf, SecretKey aesKey, byte[] iv) throws Exception {
-		byte[] plain = readAllBytes(leaf.getInputStream());
-		byte[] ct = crypto.encryptAesCbc(plain, aesKey, iv);
+	private void replaceLeafPayloadWithEncrypted(MimeMessage leaf, SecretKey aesKey, byte[] iv) throws Exception {
+		PassthroughRules.Rule rule = passthroughRule(leaf);
+		if (rule != null) {
+			leaf.setHeader(HDR_PASSTHROUGH, rule.name());
+			return;
+		}
 
-		String contentType = leaf.getContentType();
-		Object content = contentType.startsWith("text/") ? Base64.getEncoder().encodeToString(ct).getBytes(java.nio.charset.StandardCharsets.UTF_8) : ct;
-		ByteArrayDataSource ds = new ByteArrayDataSource((byte[]) content, contentType);
-		leaf.setDataHandler(new DataHandler(ds));
+		// The new data handler replaces the one getInputStream() reads from, so decode the raw content
+		// with the encoding it was stored in (message/* content is never decoded, as in MimePartDataSource)
+		String encoding = leaf.isMimeType("message/*") ? null : leaf.getEncoding();
+		EncryptingDataHandler.PayloadSource source = () -> encoding == null
+				? leaf.getRawInputStream()
+				: MimeUtility.decode(leaf.getRawInputStream(), encoding);
+
+		leaf.setDataHandler(new EncryptingDataHandler(source, leaf.getContentType(), crypto, aesKey, iv));
+		metrics.leafParts(1);
 		leaf.setHeader("Content-Transfer-Encoding", "base64");
+		leaf.removeHeader(HDR_PASSTHROUGH);
 	}
 
-	private static byte[] readAllBytes(InputStream is) throws Exception {
-		try (is) {
-			return is.readAllBytes();
+	/**
+	 * The passthrough rule matching {@code part}, counted as matched, or null.
+	 */
+	private PassthroughRules.Rule passthroughRule(Part part) throws MessagingException {
+		if (passthrough == null) {
+			return null;
+		}
+		int size = part.getSize();
+		PassthroughRules.Rule rule = passthrough.match(header(part, "Content-Type"), header(part, "Content-Disposition"), size);
+		if (rule != null) {
+			rule.counters().record(Math.max(0, size));
 		}
+		return rule;
+	}
+
+	private static String header(Part part, String name) throws MessagingException {
+		String[] values = part.getHeader(name);
+		return values == null ? null : values[0];
 	}
 
 	/**
@@ -254,6 +698,7 @@ public class EmlEncryptionService {
 			if (name.equalsIgnoreCase("Content-Type")) continue;
 			if (name.equalsIgnoreCase("Content-Transfer-Encoding")) continue;
 			if (name.equalsIgnoreCase("Content-Length")) continue;
+			if (name.equalsIgnoreCase(HDR_PASSTHROUGH)) continue;
 
 			// Copy all others (including Content-ID, Content-Disposition, etc.)
 			to.setHeader(name, h.getValue());
@@ -0,0 +1,151 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.MessagingException;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+import com.smarsh.dataengineering.vams.process.crypto.RsaKeyLoader;
+
+/**
+ * Rekey mode: moves every encrypted .eml in the input folder to a new BYOK key, writing the result to
+ * the output folder. Only the data key depends on the RSA key, so the AES key and IV are unwrapped
+ * from {@code X-TELEMESSAGE-ENC-DATAKEY} with the old private key ({@code rsa.private-key-path}) and
+ * wrapped again with {@code rekey.public-key-path}, and {@code X-TELEMESSAGE-ENC-KEY-ID} becomes
+ * {@code rekey.enc-key-id}.
+ * <p>
+ * Only the top-level header block is read and rewritten ({@link RawMimeRewriter#rewriteHeader}); the
+ * rest of the file is copied byte for byte with {@link FileChannel#transferTo}, which the kernel does
+ * without passing the data through the JVM (and which may share blocks on file systems that support
+ * it). The cost of a rotation is one RSA unwrap and wrap per message, however large the archive.
+ * Runs in parallel like encryption, with the same checkpoint and metrics.
+ */
+@Service
+public class EmlRekeyService {
+
+	private final TelemessageProperties props;
+	private final CryptoService crypto;
+	private final EmlEncryptionService emlService;
+	private final EncryptionMetrics metrics;
+	private final ThreadLocal<RawMimeRewriter> rewriter;
+
+	public EmlRekeyService(TelemessageProperties props, CryptoService crypto, EmlEncryptionService emlService) {
+		this.props = props;
+		this.crypto = crypto;
+		this.emlService = emlService;
+		this.metrics = emlService.getMetrics();
+		this.rewriter = ThreadLocal.withInitial(() -> new RawMimeRewriter(crypto));
+	}
+
+	public RunSummary processAllEmls() throws Exception {
+		Path inDir = Path.of(props.getInputFolder());
+		Path outDir = Path.of(props.getOutputFolder());
+		TelemessageProperties.Rekey rekey = props.getRekey();
+		if (!StringUtils.hasText(rekey.getPublicKeyPath()) || !StringUtils.hasText(rekey.getEncKeyId())) {
+			throw new IllegalArgumentException("Rekey mode needs telemessage.rekey.public-key-path and enc-key-id");
+		}
+		Files.createDirectories(outDir);
+
+		if (!Files.isDirectory(inDir)) {
+			throw new IllegalArgumentException("Input folder is not a directory: " + inDir);
+		}
+
+		PrivateKey oldKey = RsaKeyLoader.loadPrivateKey(Path.of(props.getRsa().getPrivateKeyPath()));
+		PublicKey newKey = RsaKeyLoader.loadPublicKey(Path.of(rekey.getPublicKeyPath()));
+		RunSummary summary = new RunSummary();
+		InputScan scan = new InputScan(inDir, ".eml", outDir, props.getScan());
+		try (Checkpoint checkpoint = Checkpoint.open(inDir, outDir, props);
+			 Stream<Path> inputs = scan.open()) {
+			emlService.forEachInput(inputs, "eml-rekey-",
+					p -> processFile(p, scan.outputFor(p, outDir), oldKey, newKey, checkpoint, summary));
+		}
+		summary.finish();
+
+		System.out.println(summary);
+		return summary;
+	}
+
+	private void processFile(Path input, Path output, PrivateKey oldKey, PublicKey newKey, Checkpoint checkpoint,
+			RunSummary summary) {
+		BasicFileAttributes attrs = null;
+		try {
+			attrs = Files.readAttributes(input, BasicFileAttributes.class);
+			if (checkpoint.isDone(input, attrs, output)) {
+				summary.recordSkipped();
+				return;
+			}
+			processOne(input, output, oldKey, newKey);
+			checkpoint.record(input, attrs, Checkpoint.Status.DONE);
+			summary.recordSuccess();
+		} catch (Exception e) {
+			System.err.println("Failed re-keying " + input + ": " + e.getMessage());
+			e.printStackTrace(System.err);
+			metrics.failure();
+			checkpoint.record(input, attrs, Checkpoint.Status.FAILED);
+			summary.recordFailure(input, e);
+		}
+	}
+
+	void processOne(Path inputEml, Path outputEml, PrivateKey oldKey, PublicKey newKey) throws Exception {
+		long start = System.nanoTime();
+		try (FileChannel in = FileChannel.open(inputEml, StandardOpenOption.READ)) {
+			long size = in.size();
+			ByteArrayOutputStream header = new ByteArrayOutputStream(8 * 1024);
+			long bodyStart = rewriter.get().rewriteHeader(Channels.newInputStream(in), header,
+					fields -> rewrap(fields, oldKey, newKey));
+			metrics.stage(EncryptionMetrics.Stage.REWRITE, start);
+
+			long t = System.nanoTime();
+			EmlEncryptionService.writeAtomically(outputEml, tmp -> {
+				try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+						StandardOpenOption.WRITE)) {
+					ByteBuffer head = ByteBuffer.wrap(header.toByteArray());
+					while (head.hasRemaining()) {
+						out.write(head);
+					}
+					for (long pos = bodyStart; pos < size; ) {
+						long n = in.transferTo(pos, size - pos, out);
+						if (n <= 0) {
+							throw new IOException("Input changed while it was being read: " + inputEml);
+						}
+						pos += n;
+					}
+				}
+			});
+			metrics.stage(EncryptionMetrics.Stage.WRITE, t);
+			metrics.message(size, Files.size(outputEml), start);
+		}
+	}
+
+	/**
+	 * The data key and key id fields for the new key, from the current header values.
+	 */
+	private List<RawMimeRewriter.HeaderField> rewrap(Function<String, String> header, PrivateKey oldKey, PublicKey newKey)
+			throws Exception {
+		String dataKey = header.apply(EmlEncryptionService.HDR_DATAKEY);
+		if (dataKey == null) {
+			throw new MessagingException("Not an encrypted message: no " + EmlEncryptionService.HDR_DATAKEY + " header");
+		}
+		CryptoService.AesKeyAndIv k = crypto.decryptAesKeyAndIvFromRsaV2HeaderValue(dataKey, oldKey);
+		return List.of(
+				new RawMimeRewriter.HeaderField(EmlEncryptionService.HDR_DATAKEY,
+						crypto.encryptAesKeyWithRsaV2HeaderValue(k.iv, k.key, newKey)),
+				new RawMimeRewriter.HeaderField(EmlEncryptionService.HDR_FINGER_PRINT, props.getRekey().getEncKeyId()));
+	}
+}
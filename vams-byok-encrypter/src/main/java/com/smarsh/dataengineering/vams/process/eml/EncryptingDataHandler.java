@@ -0,0 +1,101 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import jakarta.mail.MessagingException;
+import org.springframework.util.StreamUtils;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+/**
+ * Leaf payload that is encrypted while jakarta.mail writes the part.
+ * <p>
+ * {@code MimeBodyPart.writeTo} hands {@link #writeTo(OutputStream)} a stream that already applies the
+ * part's transfer encoding, so the original payload flows source -> AES-GCM -> (inner Base64 for
+ * {@code text/*}) -> transfer encoding -> output in {@link CryptoService#STREAM_CHUNK_SIZE} chunks and
+ * is never held in memory as a whole. The bytes written are the same as encrypting the whole payload
+ * with {@link CryptoService#encryptAesCbc(byte[], SecretKey, byte[])}.
+ */
+final class EncryptingDataHandler extends DataHandler {
+
+	/** Opens the decoded original payload; called once per write. */
+	@FunctionalInterface
+	interface PayloadSource {
+		InputStream open() throws IOException, MessagingException;
+	}
+
+	private final PayloadSource source;
+	private final boolean base64Text;
+	private final CryptoService crypto;
+	private final SecretKey aesKey;
+	private final byte[] iv;
+
+	EncryptingDataHandler(PayloadSource source, String contentType, CryptoService crypto, SecretKey aesKey, byte[] iv) {
+		super(new BufferedView(contentType));
+		this.source = source;
+		this.base64Text = contentType.startsWith("text/");
+		this.crypto = crypto;
+		this.aesKey = aesKey;
+		this.iv = iv;
+		((BufferedView) getDataSource()).owner = this;
+	}
+
+	@Override
+	public void writeTo(OutputStream os) throws IOException {
+		// Base64 padding is written on close, which must not close the part's transfer encoder
+		OutputStream target = base64Text ? Base64.getEncoder().wrap(StreamUtils.nonClosing(os)) : os;
+		try (InputStream plain = source.open()) {
+			crypto.encryptAesCbc(plain, target, aesKey, iv);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Failed to encrypt part payload: " + e.getMessage(), e);
+		}
+		if (base64Text) {
+			target.close();
+		}
+	}
+
+	/**
+	 * Exposes the encrypted payload to callers that ask for an {@link InputStream} instead of writing.
+	 * Nothing on the encryption path does, so buffering here is acceptable.
+	 */
+	private static final class BufferedView implements DataSource {
+		private final String contentType;
+		private EncryptingDataHandler owner;
+
+		private BufferedView(String contentType) {
+			this.contentType = contentType;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			owner.writeTo(buf);
+			return new ByteArrayInputStream(buf.toByteArray());
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Encrypted payload is read-only");
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public String getName() {
+			return "encrypted-payload";
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+
+/**
+ * Micrometer meters for the encrypter: a timer per processing stage, per-message latency and size,
+ * and counters for bytes in and out, leaf parts, passthrough parts (per rule) and failures.
+ * <p>
+ * Running as a service the meters are available through the actuator {@code metrics} endpoint
+ * ({@code vams.encrypt.*}); a one-shot run also writes them to {@value #RUN_SUMMARY_FILE} in the
+ * output folder. The registry's percentiles and max cover the last hour; the run summary is taken
+ * from copies of the timers kept outside the registry, whose percentiles and max cover the whole run
+ * however long it takes.
+ */
+@Component
+public class EncryptionMetrics {
+
+	static final String RUN_SUMMARY_FILE = ".vams-run-summary.json";
+
+	private static final Duration PERCENTILE_WINDOW = Duration.ofHours(1);
+
+	/** Longer than any run, so the run summary's percentiles and max never expire. */
+	private static final Duration RUN_WINDOW = Duration.ofDays(365);
+
+	/**
+	 * Timed stages of one message. With the DOM engine leaf payloads are encrypted while the message
+	 * is written, so most of the cipher time shows up under {@link #WRITE}.
+	 */
+	public enum Stage {
+		/** IV and key generation and RSA wrap of the key (or taking them from the key pool). */
+		WRAP,
+		/** Parsing the {@code MimeMessage}. */
+		PARSE,
+		/** Walking the parts and attaching the encrypting data handlers. */
+		ENCRYPT,
+		/** {@code saveChanges}. */
+		SAVE,
+		/** Encrypting the leaves of a large message concurrently, ahead of the write. */
+		PREPARE,
+		/** {@code writeTo}, including the leaf encryption. */
+		WRITE,
+		/** The raw engine's single pass: parse, encrypt and write. */
+		REWRITE;
+
+		String tag() { return name().toLowerCase(Locale.ROOT); }
+	}
+
+	private final Map<Stage, RunTimer> stages = new EnumMap<>(Stage.class);
+	private final RunTimer message;
+	private final DistributionSummary messageSize;
+	private final Counter bytesIn;
+	private final Counter bytesOut;
+	private final Counter leafParts;
+	private final Counter failures;
+	private final RunTimer ingestLatency;
+	private final MeterRegistry registry;
+	private final MeterRegistry runRegistry;
+	private final Map<String, RuleCounters> passthrough = new ConcurrentHashMap<>();
+
+	/** Parts and bytes left in the clear by one passthrough rule. */
+	record RuleCounters(Counter parts, Counter bytes) {
+		void record(long size) {
+			parts.increment();
+			bytes.increment((double) size);
+		}
+	}
+
+	/** A timer in the registry, and its copy for the run summary. */
+	private record RunTimer(Timer live, Timer run) {
+		void record(long nanos) {
+			live.record(nanos, TimeUnit.NANOSECONDS);
+			run.record(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/** Meters in a private registry, for use outside Spring. */
+	public EncryptionMetrics() {
+		this(new SimpleMeterRegistry());
+	}
+
+	@Autowired
+	public EncryptionMetrics(MeterRegistry registry) {
+		this.registry = registry;
+		this.runRegistry = new SimpleMeterRegistry(SimpleConfig.DEFAULT, registry.config().clock());
+		for (Stage stage : Stage.values()) {
+			stages.put(stage, runTimer(Timer.builder("vams.encrypt.stage")
+					.description("Time spent in one stage of encrypting a message")
+					.tag("stage", stage.tag())));
+		}
+		message = runTimer(Timer.builder("vams.encrypt.message")
+				.description("Time to encrypt one message end to end"));
+		messageSize = DistributionSummary.builder("vams.encrypt.message.size")
+				.description("Size of the source messages")
+				.baseUnit("bytes")
+				.publishPercentiles(0.5, 0.99)
+				.distributionStatisticExpiry(PERCENTILE_WINDOW)
+				.register(registry);
+		bytesIn = Counter.builder("vams.encrypt.bytes.in").baseUnit("bytes").register(registry);
+		bytesOut = Counter.builder("vams.encrypt.bytes.out").baseUnit("bytes").register(registry);
+		leafParts = Counter.builder("vams.encrypt.leaf.parts").register(registry);
+		failures = Counter.builder("vams.encrypt.failures").register(registry);
+		ingestLatency = runTimer(Timer.builder("vams.encrypt.ingest.latency")
+				.description("Watch mode: time from a file first appearing to its output being written"));
+	}
+
+	private RunTimer runTimer(Timer.Builder builder) {
+		builder.publishPercentiles(0.5, 0.99);
+		Timer live = builder.distributionStatisticExpiry(PERCENTILE_WINDOW).register(registry);
+		return new RunTimer(live, builder.distributionStatisticExpiry(RUN_WINDOW).register(runRegistry));
+	}
+
+	void stage(Stage stage, long startNanos) {
+		stages.get(stage).record(System.nanoTime() - startNanos);
+	}
+
+	void message(long sourceBytes, long encryptedBytes, long startNanos) {
+		message.record(System.nanoTime() - startNanos);
+		if (sourceBytes >= 0) {
+			messageSize.record((double) sourceBytes);
+			bytesIn.increment((double) sourceBytes);
+		}
+		bytesOut.increment((double) encryptedBytes);
+	}
+
+	void leafParts(int count) {
+		leafParts.increment(count);
+	}
+
+	void failure() {
+		failures.increment();
+	}
+
+	void ingested(long firstSeenNanos) {
+		ingestLatency.record(System.nanoTime() - firstSeenNanos);
+	}
+
+	RuleCounters passthroughRule(String rule) {
+		return passthrough.computeIfAbsent(rule, r -> new RuleCounters(
+				Counter.builder("vams.encrypt.passthrough.parts").tag("rule", r).register(registry),
+				Counter.builder("vams.encrypt.passthrough.bytes").tag("rule", r).baseUnit("bytes").register(registry)));
+	}
+
+	/**
+	 * The run outcome and all meters as a JSON-friendly map.
+	 */
+	public Map<String, Object> runSummary(RunSummary summary) {
+		Map<String, Object> out = new LinkedHashMap<>();
+		double seconds = summary.getElapsed().toNanos() / 1e9;
+		out.put("succeeded", summary.getSucceeded());
+		out.put("failed", summary.getFailed());
+		out.put("skipped", summary.getSkipped());
+		out.put("elapsedMs", summary.getElapsed().toMillis());
+		out.put("bytesIn", (long) bytesIn.count());
+		out.put("bytesOut", (long) bytesOut.count());
+		out.put("leafParts", (long) leafParts.count());
+		out.put("failures", (long) failures.count());
+		out.put("mbPerSecond", seconds > 0 ? round(bytesIn.count() / 1e6 / seconds) : 0.0);
+		out.put("message", timer(message.run().takeSnapshot()));
+		Map<String, Object> stageMap = new LinkedHashMap<>();
+		stages.forEach((stage, timer) -> {
+			if (timer.run().count() > 0) {
+				stageMap.put(stage.tag(), timer(timer.run().takeSnapshot()));
+			}
+		});
+		out.put("stages", stageMap);
+		if (ingestLatency.run().count() > 0) {
+			out.put("ingestLatency", timer(ingestLatency.run().takeSnapshot()));
+		}
+		if (!passthrough.isEmpty()) {
+			Map<String, Object> rules = new LinkedHashMap<>();
+			new TreeMap<>(passthrough).forEach((rule, c) ->
+					rules.put(rule, Map.of("parts", (long) c.parts().count(), "bytes", (long) c.bytes().count())));
+			out.put("passthrough", rules);
+		}
+		out.put("failedInputs", summary.getFailedInputs());
+		return out;
+	}
+
+	/**
+	 * Writes {@link #runSummary} to {@value #RUN_SUMMARY_FILE} in {@code outDir}, one per shard.
+	 */
+	public Path writeRunSummary(Path outDir, TelemessageProperties.Scan scan, RunSummary summary) throws Exception {
+		Path file = outDir.resolve(InputScan.shardFileName(RUN_SUMMARY_FILE, scan));
+		Files.createDirectories(outDir);
+		EmlEncryptionService.writeAtomically(file, tmp ->
+				new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), runSummary(summary)));
+		return file;
+	}
+
+	private static Map<String, Object> timer(HistogramSnapshot snapshot) {
+		Map<String, Object> out = new LinkedHashMap<>();
+		out.put("count", snapshot.count());
+		out.put("totalMs", round(snapshot.total(TimeUnit.MILLISECONDS)));
+		out.put("meanMs", round(snapshot.mean(TimeUnit.MILLISECONDS)));
+		for (ValueAtPercentile p : snapshot.percentileValues()) {
+			out.put("p" + Math.round(p.percentile() * 100) + "Ms", round(p.value(TimeUnit.MILLISECONDS)));
+		}
+		out.put("maxMs", round(snapshot.max(TimeUnit.MILLISECONDS)));
+		return out;
+	}
+
+	private static double round(double v) {
+		return Math.round(v * 1000) / 1000.0;
+	}
+
+	/**
+	 * Counts the bytes written through it.
+	 */
+	static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		long count() { return count; }
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
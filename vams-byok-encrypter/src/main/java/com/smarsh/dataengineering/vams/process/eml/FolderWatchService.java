@@ -0,0 +1,249 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+
+/**
+ * Watch mode: keeps running and encrypts .eml files as they are completed in the input folder, so a
+ * new drop does not pay for a fresh Spring context.
+ * <p>
+ * A file is taken once its size and modification time have not changed for
+ * {@code telemessage.watch.settle-time}; files written under another name and renamed into place are
+ * picked up at once. The folder is also rescanned every {@code telemessage.watch.rescan-interval} in
+ * case the file system dropped events. A file that changes after it was encrypted is encrypted again.
+ * Only the input folder itself is watched ({@code telemessage.scan.recursive} does not apply); the
+ * shard settings do, so several instances can watch one shared folder.
+ * <p>
+ * Backpressure: at most two files per worker are queued (the watcher waits for a free slot), and no new
+ * file is started while the output file store has less than {@code telemessage.watch.min-free-bytes}
+ * usable. Runs until {@link #close()} is called, e.g. when the application shuts down.
+ */
+@Service
+public class FolderWatchService implements AutoCloseable {
+
+	private static final long DISK_WAIT_MILLIS = 1000;
+
+	private final TelemessageProperties props;
+	private final EmlEncryptionService emlService;
+
+	private volatile boolean stopping;
+	private volatile WatchService watcher;
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/** A candidate file, tracked until its size and mtime settle. */
+	private static final class Pending {
+		final long firstSeen = System.nanoTime();
+		long size = -1;
+		long mtime = -1;
+		long stableSince;
+	}
+
+	private record Version(long size, long mtime) {}
+
+	public FolderWatchService(TelemessageProperties props, EmlEncryptionService emlService) {
+		this.props = props;
+		this.emlService = emlService;
+	}
+
+	public RunSummary run() throws Exception {
+		Path inDir = Path.of(props.getInputFolder());
+		Path outDir = Path.of(props.getOutputFolder());
+		Files.createDirectories(outDir);
+
+		if (!Files.isDirectory(inDir)) {
+			throw new IllegalArgumentException("Input folder is not a directory: " + inDir);
+		}
+
+		TelemessageProperties.Watch watch = props.getWatch();
+		long settleNanos = watch.getSettleTime().toNanos();
+		long pollMillis = Math.max(20, watch.getSettleTime().toMillis() / 2);
+		int concurrency = props.getParallel().isEnabled() ? Math.max(1, props.getParallel().getMaxConcurrency()) : 1;
+		Semaphore inFlight = new Semaphore(concurrency * 2);
+		FileStore outStore = Files.getFileStore(outDir);
+
+		InputScan scan = new InputScan(inDir, ".eml", outDir, props.getScan());
+		Map<Path, Pending> pending = new HashMap<>();
+		Map<Path, Version> submitted = new HashMap<>();
+		RunSummary summary = new RunSummary();
+
+		System.out.println("Watching " + inDir + " for .eml files");
+		try (Checkpoint checkpoint = Checkpoint.open(inDir, outDir, props);
+			 WatchService ws = inDir.getFileSystem().newWatchService();
+			 ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+					 Thread.ofPlatform().name("eml-watch-", 0).factory())) {
+			watcher = ws;
+			inDir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			rescan(scan, pending, submitted);
+			long nextRescan = System.nanoTime() + watch.getRescanInterval().toNanos();
+
+			while (!stopping) {
+				WatchKey key = ws.poll(pollMillis, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							nextRescan = 0;
+							continue;
+						}
+						Path p = inDir.resolve((Path) event.context());
+						if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+							pending.remove(p);
+							submitted.remove(p);
+						} else if (scan.accepts(p)) {
+							pending.computeIfAbsent(p, x -> new Pending());
+						}
+					}
+					if (!key.reset()) {
+						throw new IllegalStateException("Input folder is no longer accessible: " + inDir);
+					}
+				}
+				if (System.nanoTime() - nextRescan >= 0) {
+					rescan(scan, pending, submitted);
+					nextRescan = System.nanoTime() + watch.getRescanInterval().toNanos();
+				}
+
+				long now = System.nanoTime();
+				for (Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext() && !stopping; ) {
+					Map.Entry<Path, Pending> e = it.next();
+					Path input = e.getKey();
+					Path output = scan.outputFor(input, outDir);
+					Pending p = e.getValue();
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(input, BasicFileAttributes.class);
+					} catch (NoSuchFileException gone) {
+						it.remove();
+						continue;
+					}
+					if (!attrs.isRegularFile()) {
+						it.remove();
+						continue;
+					}
+					Version version = new Version(attrs.size(), attrs.lastModifiedTime().toMillis());
+					if (version.size != p.size || version.mtime != p.mtime) {
+						p.size = version.size;
+						p.mtime = version.mtime;
+						p.stableSince = now;
+						continue;
+					}
+					if (now - p.stableSince < settleNanos) {
+						continue;
+					}
+					it.remove();
+					if (version.equals(submitted.get(input))) {
+						continue;
+					}
+					if (checkpoint.isDone(input, attrs, output)) {
+						submitted.put(input, version);
+						continue;
+					}
+
+					awaitFreeSpace(outStore, watch.getMinFreeBytes());
+					if (stopping) {
+						break;
+					}
+					inFlight.acquire();
+					submitted.put(input, version);
+					executor.execute(() -> {
+						try {
+							if (emlService.processFile(input, output, checkpoint, summary)) {
+								emlService.getMetrics().ingested(p.firstSeen);
+							}
+						} finally {
+							inFlight.release();
+						}
+					});
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// closed by close()
+		} finally {
+			finished.countDown();
+		}
+		summary.finish();
+
+		System.out.println(summary);
+		emlService.reportKeyPool();
+		return summary;
+	}
+
+	/**
+	 * Stops {@link #run()} and waits until the files already started have been written.
+	 */
+	@Override
+	public void close() throws IOException, InterruptedException {
+		stopping = true;
+		WatchService ws = watcher;
+		if (ws != null) {
+			ws.close();
+			finished.await();
+		}
+	}
+
+	/**
+	 * Picks up files whose events were missed and forgets files that are gone. Files already taken
+	 * (or found done in the checkpoint) in their current version are left alone, so a folder that keeps
+	 * its inputs costs one stat per file per rescan rather than per poll.
+	 */
+	private static void rescan(InputScan scan, Map<Path, Pending> pending, Map<Path, Version> submitted) throws IOException {
+		Set<Path> present;
+		try (Stream<Path> inputs = scan.open()) {
+			present = inputs.collect(Collectors.toSet());
+		}
+		for (Path p : present) {
+			if (pending.containsKey(p) || isSubmitted(p, submitted.get(p))) {
+				continue;
+			}
+			pending.put(p, new Pending());
+		}
+		submitted.keySet().retainAll(present);
+	}
+
+	private static boolean isSubmitted(Path input, Version version) throws IOException {
+		if (version == null) {
+			return false;
+		}
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(input, BasicFileAttributes.class);
+		} catch (NoSuchFileException gone) {
+			return true;
+		}
+		return version.equals(new Version(attrs.size(), attrs.lastModifiedTime().toMillis()));
+	}
+
+	private void awaitFreeSpace(FileStore store, long minFreeBytes) throws IOException, InterruptedException {
+		boolean reported = false;
+		while (!stopping && store.getUsableSpace() < minFreeBytes) {
+			if (!reported) {
+				System.err.println("Output disk has less than " + minFreeBytes + " bytes free, waiting");
+				reported = true;
+			}
+			Thread.sleep(DISK_WAIT_MILLIS);
+		}
+	}
+}
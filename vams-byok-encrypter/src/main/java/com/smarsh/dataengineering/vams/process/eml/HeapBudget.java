@@ -0,0 +1,46 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+/**
+ * Global budget of heap bytes shared by the workers ({@code telemessage.parallel.heap-budget}): an
+ * input is admitted once its estimated footprint is free and gives it back when it is done.
+ */
+final class HeapBudget {
+
+	/** An input waiting for, or holding, {@code cost} bytes of the budget. */
+	record Admission<T>(T input, long cost) {}
+
+	private final long capacity;
+	private long available;
+
+	HeapBudget(long capacity) {
+		this.capacity = capacity;
+		this.available = capacity;
+	}
+
+	/**
+	 * {@code cost} capped at the whole budget, so an input that needs more still runs, alone.
+	 */
+	<T> Admission<T> admission(T input, long cost) {
+		return new Admission<>(input, Math.min(cost, capacity));
+	}
+
+	synchronized boolean tryAcquire(Admission<?> a) {
+		if (a.cost() > available) {
+			return false;
+		}
+		available -= a.cost();
+		return true;
+	}
+
+	synchronized void acquire(Admission<?> a) throws InterruptedException {
+		while (a.cost() > available) {
+			wait();
+		}
+		available -= a.cost();
+	}
+
+	synchronized void release(Admission<?> a) {
+		available += a.cost();
+		notifyAll();
+	}
+}
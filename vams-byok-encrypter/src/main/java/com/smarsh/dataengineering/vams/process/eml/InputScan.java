@@ -0,0 +1,98 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import com.google.errorprone.annotations.MustBeClosed;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+
+/**
+ * The inputs of a run: regular files with a given extension (case-insensitive) under the input
+ * folder, and optionally its sub-folders, enumerated lazily in directory order so work starts with
+ * the first file instead of after a listing of the whole folder.
+ * <p>
+ * Each input is identified by its path relative to the input folder, with {@code /} separators; for a
+ * flat folder that is just the file name. The name places the output (sub-folders are mirrored in the
+ * output folder), keys the checkpoint and picks the shard: an input belongs to shard
+ * {@code crc32(name) % shard-count}, so instances started with the same shard count and different
+ * shard indexes split one input tree between them without coordination or overlap. They may share
+ * the output folder: the checkpoint and run summary files are then kept per shard.
+ */
+final class InputScan {
+
+	private final Path root;
+	private final String extension;
+	private final Path excluded;
+	private final boolean recursive;
+	private final int shardIndex;
+	private final int shardCount;
+
+	/**
+	 * @param excluded a folder to leave out when walking sub-folders, normally the output folder, or null
+	 */
+	InputScan(Path root, String extension, Path excluded, TelemessageProperties.Scan scan) {
+		checkShard(scan);
+		this.root = root;
+		this.extension = extension;
+		this.excluded = excluded == null ? null : excluded.toAbsolutePath().normalize();
+		this.recursive = scan.isRecursive();
+		this.shardIndex = scan.getShardIndex();
+		this.shardCount = scan.getShardCount();
+	}
+
+	/**
+	 * The inputs of this shard, read lazily from the file system; the stream has to be closed.
+	 */
+	@MustBeClosed
+	Stream<Path> open() throws IOException {
+		return Files.find(root, recursive ? Integer.MAX_VALUE : 1, (p, attrs) -> accepts(p)
+				&& (excluded == null || !p.toAbsolutePath().normalize().startsWith(excluded)));
+	}
+
+	/**
+	 * Whether {@code p} is an input of this shard.
+	 */
+	boolean accepts(Path p) {
+		return p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(extension)
+				&& Files.isRegularFile(p)
+				&& shardOf(relativeName(root, p), shardCount) == shardIndex;
+	}
+
+	Path outputFor(Path input, Path outDir) {
+		return outDir.resolve(root.relativize(input));
+	}
+
+	static String relativeName(Path root, Path input) {
+		Path rel = root.relativize(input);
+		return rel.getNameCount() == 1 ? rel.toString() : rel.toString().replace(rel.getFileSystem().getSeparator(), "/");
+	}
+
+	/**
+	 * {@code fileName} for an unsharded run, else with {@code -<index>-of-<count>} before its extension.
+	 */
+	static String shardFileName(String fileName, TelemessageProperties.Scan scan) {
+		if (scan.getShardCount() <= 1) {
+			return fileName;
+		}
+		int dot = fileName.lastIndexOf('.');
+		return fileName.substring(0, dot) + "-" + scan.getShardIndex() + "-of-" + scan.getShardCount() + fileName.substring(dot);
+	}
+
+	static void checkShard(TelemessageProperties.Scan scan) {
+		if (scan.getShardCount() < 1 || scan.getShardIndex() < 0 || scan.getShardIndex() >= scan.getShardCount()) {
+			throw new IllegalArgumentException("Invalid shard " + scan.getShardIndex() + " of " + scan.getShardCount());
+		}
+	}
+
+	static int shardOf(String name, int shardCount) {
+		CRC32 crc = new CRC32();
+		crc.update(name.getBytes(StandardCharsets.UTF_8));
+		return (int) (crc.getValue() % shardCount);
+	}
+}
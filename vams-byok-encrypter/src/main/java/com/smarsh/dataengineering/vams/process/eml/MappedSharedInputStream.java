@@ -0,0 +1,139 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.internet.SharedInputStream;
+import jakarta.mail.util.SharedFileInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.InvalidMarkException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link SharedInputStream} over a memory-mapped file. jakarta.mail hands out every part as a
+ * {@link #newStream} slice of the same mapping, so part contents are read straight from the page
+ * cache and never copied into heap arrays.
+ * <p>
+ * The file channel is closed as soon as the file is mapped; the mapping stays valid until this stream
+ * and every slice taken from it are unreachable, when the JDK unmaps it. As only the garbage collector
+ * unmaps, at most {@link #MAX_LIVE_MAPPINGS} mappings are kept alive at once, and files over
+ * {@link #MAX_MAPPED_SIZE} are not mapped: {@link #open} then falls back to a
+ * {@link SharedFileInputStream}, which reads through the channel. Each stream is private to the thread
+ * that opened it. Truncating the file while it is mapped makes reads fail with an {@link InternalError}.
+ */
+final class MappedSharedInputStream extends InputStream implements SharedInputStream {
+
+	/** Well below the default {@code vm.max_map_count} of 65530, which the JVM shares with the heap. */
+	static final int MAX_LIVE_MAPPINGS = 4096;
+
+	/** Larger files would tie up that much address space until the next collection. */
+	static final long MAX_MAPPED_SIZE = 256L * 1024 * 1024;
+
+	private static final int FALLBACK_BUFFER_SIZE = 64 * 1024;
+
+	private static final AtomicInteger LIVE = new AtomicInteger();
+	private static final Cleaner UNMAPPED = Cleaner.create();
+
+	private final ByteBuffer buf;
+
+	private MappedSharedInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	/**
+	 * A shared stream over {@code file}: mapped, unless it is too large or too many mappings are alive.
+	 */
+	static InputStream open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > MAX_MAPPED_SIZE) {
+				return new SharedFileInputStream(file.toFile(), FALLBACK_BUFFER_SIZE);
+			}
+			if (LIVE.incrementAndGet() > MAX_LIVE_MAPPINGS) {
+				LIVE.decrementAndGet();
+				return new SharedFileInputStream(file.toFile(), FALLBACK_BUFFER_SIZE);
+			}
+			ByteBuffer mapped;
+			try {
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} catch (IOException | RuntimeException e) {
+				LIVE.decrementAndGet();
+				throw e;
+			}
+			// Slices keep the mapping reachable, so it is only counted out once they are all gone
+			UNMAPPED.register(mapped, LIVE::decrementAndGet);
+			return new MappedSharedInputStream(mapped);
+		}
+	}
+
+	@Override
+	public int read() {
+		return buf.hasRemaining() ? buf.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buf.hasRemaining()) {
+			return -1;
+		}
+		int n = Math.min(len, buf.remaining());
+		buf.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int k = (int) Math.max(0, Math.min(n, buf.remaining()));
+		buf.position(buf.position() + k);
+		return k;
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readLimit) {
+		buf.mark();
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		try {
+			buf.reset();
+		} catch (InvalidMarkException e) {
+			throw new IOException("Resetting to invalid mark", e);
+		}
+	}
+
+	@Override
+	public long getPosition() {
+		return buf.position();
+	}
+
+	/**
+	 * A stream over bytes {@code start} (inclusive) to {@code end} (exclusive, -1 for the end) of this
+	 * stream, sharing the mapping.
+	 */
+	@Override
+	public InputStream newStream(long start, long end) {
+		if (start < 0) {
+			throw new IllegalArgumentException("start < 0");
+		}
+		int to = end == -1 ? buf.limit() : (int) end;
+		return new MappedSharedInputStream(buf.slice((int) start, to - (int) start));
+	}
+}
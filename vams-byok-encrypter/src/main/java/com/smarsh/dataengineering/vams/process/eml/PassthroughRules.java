@@ -0,0 +1,114 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+
+/**
+ * Which leaf parts are left in the clear ({@code telemessage.passthrough}). A rule matches a leaf when
+ * every condition it sets holds: content type ({@code text/plain}, {@code text/*} or {@code *}),
+ * disposition ({@code inline}, {@code attachment}; a part without {@code Content-Disposition} has
+ * none) and size of the encoded body in bytes. The first matching rule wins.
+ * <p>
+ * Both engines copy a passthrough leaf's encoded body unchanged and mark its header block with
+ * {@value EmlEncryptionService#HDR_PASSTHROUGH}{@code : <rule name>}; parts and bytes are counted per
+ * rule in {@link EncryptionMetrics}. Size conditions cost a small buffer in the raw engine, which
+ * reads up to the largest applicable {@code max-size} before it can decide.
+ */
+final class PassthroughRules {
+
+	record Rule(String name, String primaryType, String subType, String disposition, long maxSize,
+			EncryptionMetrics.RuleCounters counters) {
+
+		boolean accepts(String primary, String sub, String disposition) {
+			return (primaryType == null || primaryType.equals(primary))
+					&& (subType == null || subType.equals(sub))
+					&& (this.disposition == null || this.disposition.equals(disposition));
+		}
+	}
+
+	private final List<Rule> rules;
+
+	private PassthroughRules(List<Rule> rules) {
+		this.rules = rules;
+	}
+
+	/**
+	 * The configured rules, or null when there are none.
+	 */
+	static PassthroughRules of(List<TelemessageProperties.PassthroughRule> config, EncryptionMetrics metrics) {
+		if (config == null || config.isEmpty()) {
+			return null;
+		}
+		List<Rule> rules = new ArrayList<>();
+		for (TelemessageProperties.PassthroughRule c : config) {
+			if (c.getName() == null || c.getName().isBlank()) {
+				throw new IllegalArgumentException("Passthrough rule without a name: " + c.getContentType());
+			}
+			String primary = null;
+			String sub = null;
+			String type = lower(c.getContentType());
+			if (type != null && !type.equals("*") && !type.equals("*/*")) {
+				int slash = type.indexOf('/');
+				primary = slash < 0 ? type : type.substring(0, slash);
+				sub = slash < 0 || type.endsWith("/*") ? null : type.substring(slash + 1);
+			}
+			rules.add(new Rule(c.getName(), primary, sub, lower(c.getDisposition()), c.getMaxSize(),
+					metrics.passthroughRule(c.getName())));
+		}
+		return new PassthroughRules(List.copyOf(rules));
+	}
+
+	/**
+	 * The largest {@code max-size} of the rules that may match a leaf with these headers, or -1 when
+	 * none of them needs the size.
+	 */
+	long sizeLimit(String contentType, String contentDisposition) {
+		String type = baseValue(contentType, "text/plain");
+		int slash = type.indexOf('/');
+		String primary = slash < 0 ? type : type.substring(0, slash);
+		String sub = slash < 0 ? "" : type.substring(slash + 1);
+		String disposition = baseValue(contentDisposition, null);
+		long limit = -1;
+		for (Rule r : rules) {
+			if (r.maxSize >= 0 && r.accepts(primary, sub, disposition)) {
+				limit = Math.max(limit, r.maxSize);
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * The first rule matching a leaf with these raw header values and encoded body {@code size}, or
+	 * null. {@code size} is -1 when not known, which no rule with a {@code max-size} matches.
+	 */
+	Rule match(String contentType, String contentDisposition, long size) {
+		String type = baseValue(contentType, "text/plain");
+		int slash = type.indexOf('/');
+		String primary = slash < 0 ? type : type.substring(0, slash);
+		String sub = slash < 0 ? "" : type.substring(slash + 1);
+		String disposition = baseValue(contentDisposition, null);
+		for (Rule r : rules) {
+			if (r.accepts(primary, sub, disposition) && (r.maxSize < 0 || (size >= 0 && size <= r.maxSize))) {
+				return r;
+			}
+		}
+		return null;
+	}
+
+	/** Lowercased value before any parameters. */
+	private static String baseValue(String header, String absent) {
+		if (header == null) {
+			return absent;
+		}
+		int semicolon = header.indexOf(';');
+		String v = (semicolon < 0 ? header : header.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+		return v.isEmpty() ? absent : v;
+	}
+
+	private static String lower(String s) {
+		return s == null || s.isBlank() ? null : s.trim().toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,102 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeUtility;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+/**
+ * Leaf part whose encoded body can be produced ahead of the write, on another thread, so the leaves
+ * of a large message are encrypted concurrently while {@code writeTo} still emits them in MIME order.
+ * <p>
+ * {@link #prepare()} runs the part's data handler through its transfer encoding exactly as
+ * {@link MimeBodyPart#writeTo(OutputStream)} would, into memory for small parts and into a temp file
+ * otherwise; {@link #writeTo(OutputStream)} then writes the header lines and copies those bytes. A part
+ * that was not prepared is written as usual. The temp file is removed by {@link #discard()}.
+ */
+final class PreparedBodyPart extends MimeBodyPart {
+
+	private static final byte[] CRLF = {'\r', '\n'};
+
+	/** Size of the source part, in encoded bytes (-1 when unknown), to choose where to prepare it. */
+	private final long sourceSize;
+	private byte[] preparedBytes;
+	private Path preparedFile;
+
+	PreparedBodyPart(long sourceSize) {
+		this.sourceSize = sourceSize;
+	}
+
+	void prepare() throws IOException, MessagingException {
+		if (sourceSize >= 0 && sourceSize < CryptoService.STREAM_CHUNK_SIZE) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream((int) sourceSize * 2);
+			encodeBody(buf);
+			preparedBytes = buf.toByteArray();
+			return;
+		}
+		Path tmp = Files.createTempFile("vams-leaf-", ".tmp");
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), CryptoService.STREAM_CHUNK_SIZE)) {
+			encodeBody(out);
+		} catch (IOException | MessagingException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		preparedFile = tmp;
+	}
+
+	private void encodeBody(OutputStream out) throws IOException, MessagingException {
+		OutputStream encoded = MimeUtility.encode(out, transferEncoding());
+		getDataHandler().writeTo(encoded);
+		encoded.flush();
+	}
+
+	/**
+	 * The encoding {@link MimeBodyPart#writeTo(OutputStream)} applies: as declared, except that
+	 * {@code multipart/*} and {@code message/*} content is never transfer-encoded (jakarta.mail's
+	 * {@code restrictEncoding}, with the default {@code mail.mime.ignoremultipartencoding}).
+	 */
+	private String transferEncoding() throws MessagingException {
+		String encoding = getEncoding();
+		if (encoding == null || encoding.equalsIgnoreCase("7bit") || encoding.equalsIgnoreCase("8bit")
+				|| encoding.equalsIgnoreCase("binary")) {
+			return encoding;
+		}
+		return isMimeType("multipart/*") || isMimeType("message/*") ? null : encoding;
+	}
+
+	@Override
+	public void writeTo(OutputStream os) throws IOException, MessagingException {
+		if (preparedBytes == null && preparedFile == null) {
+			super.writeTo(os);
+			return;
+		}
+		for (Enumeration<String> lines = getAllHeaderLines(); lines.hasMoreElements(); ) {
+			os.write(lines.nextElement().getBytes(StandardCharsets.ISO_8859_1));
+			os.write(CRLF);
+		}
+		os.write(CRLF);
+		if (preparedBytes != null) {
+			os.write(preparedBytes);
+		} else {
+			Files.copy(preparedFile, os);
+		}
+	}
+
+	void discard() throws IOException {
+		preparedBytes = null;
+		if (preparedFile != null) {
+			Files.deleteIfExists(preparedFile);
+			preparedFile = null;
+		}
+	}
+}
@@ -0,0 +1,871 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.HeaderTokenizer;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParseException;
+import org.springframework.util.StreamUtils;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Function;
+
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+/**
+ * Encrypts a message in one streaming pass over its raw bytes, without building a jakarta.mail DOM
+ * ({@code telemessage.engine: raw}).
+ * <p>
+ * Header blocks and boundary lines are copied verbatim and only leaf bodies are replaced, so there
+ * is no re-serialisation, no new boundaries and no per-header copying. Leaf bodies are written in the
+ * same form as the DOM engine writes them: AES-GCM ciphertext of the decoded payload, an extra
+ * Base64 layer for {@code text/*}, then Base64 transfer encoding in 76 character lines
+ * ({@code message/*} leaves get the ciphertext unencoded, as jakarta.mail writes them). In the header
+ * block of a leaf {@code Content-Transfer-Encoding} becomes {@code base64}; {@code Content-Length} is
+ * dropped everywhere, and no charset is added to {@code Content-Type}. The top-level header block gets the given fields (replacing existing ones) and
+ * {@code MIME-Version} when missing; unlike the DOM engine, {@code Message-ID} is kept.
+ * <p>
+ * Multipart preambles and epilogues are dropped, as jakarta.mail does, so no text outside a leaf
+ * reaches the output unencrypted. Missing close delimiters are tolerated and written out. Lines
+ * are written with the message's own line separator.
+ * <p>
+ * Leaves matching a {@link PassthroughRules passthrough rule} keep their header block (plus the
+ * passthrough marker) and encoded body as they are. {@link #restore} runs the same pass the other way
+ * for decrypt mode, copying marked leaves through and removing the marker.
+ * <p>
+ * Instances are reusable but not thread-safe.
+ */
+final class RawMimeRewriter {
+
+	private static final int MAX_HEADER_BLOCK = 1024 * 1024;
+	private static final byte[] CRLF = {'\r', '\n'};
+
+	/** A field set on the top-level header block, or removed from it when the value is null. */
+	record HeaderField(String name, String value) {}
+
+	/** Computes the fields {@link #rewriteHeader} sets from the current values of the header block. */
+	@FunctionalInterface
+	interface HeaderUpdate {
+		List<HeaderField> fields(Function<String, String> header) throws Exception;
+	}
+
+	/** Receives every leaf {@link #profile} finds. */
+	interface LeafVisitor {
+		/**
+		 * {@code depth} is the number of enclosing multiparts, {@code attachment} is true for non-text
+		 * leaves and leaves with disposition {@code attachment}, {@code size} counts encoded body bytes.
+		 */
+		void leaf(int depth, boolean attachment, long size);
+	}
+
+	private final CryptoService crypto;
+	private final PassthroughRules passthrough;
+	private final LineReader reader = new LineReader(CryptoService.STREAM_CHUNK_SIZE);
+	private final HeaderBlock header = new HeaderBlock();
+	private final BodyStream body = new BodyStream();
+	/** "--" + boundary of every open multipart, outermost first; null until discovered. */
+	private final List<byte[]> delimiters = new ArrayList<>();
+	private boolean matchedClose;
+	private int leaves;
+	private boolean decrypting;
+	private LeafVisitor profiler;
+
+	private OutputStream out;
+	private SecretKey aesKey;
+	private byte[] iv;
+	private byte[] lineSep;
+
+	RawMimeRewriter(CryptoService crypto) {
+		this(crypto, null);
+	}
+
+	RawMimeRewriter(CryptoService crypto, PassthroughRules passthrough) {
+		this.crypto = crypto;
+		this.passthrough = passthrough;
+	}
+
+	/**
+	 * Writes the encrypted form of the message read from {@code in} to {@code out}. Returns the number
+	 * of leaf bodies encrypted (passthrough leaves are not counted).
+	 */
+	int rewrite(InputStream in, OutputStream out, SecretKey aesKey, byte[] iv, List<HeaderField> rootFields)
+			throws Exception {
+		try {
+			start(in, out);
+			readHeaderBlock();
+			this.aesKey = aesKey;
+			this.iv = iv;
+			this.decrypting = false;
+			return rewriteMessage(rootFields);
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * The reverse of {@link #rewrite}, for messages encrypted by either engine: unwraps the data key
+	 * from the {@code dataKeyField} header with {@code privateKey} and writes every leaf back with its
+	 * original payload, in Base64 ({@code message/*} leaves unencoded, as {@code 8bit}). Returns the
+	 * number of leaf bodies decrypted.
+	 */
+	int restore(InputStream in, OutputStream out, PrivateKey privateKey, String dataKeyField,
+			List<HeaderField> rootFields) throws Exception {
+		try {
+			start(in, out);
+			readHeaderBlock();
+			String dataKey = header.value(dataKeyField);
+			if (dataKey == null) {
+				throw new MessagingException("Not an encrypted message: no " + dataKeyField + " header");
+			}
+			CryptoService.AesKeyAndIv k = crypto.decryptAesKeyAndIvFromRsaV2HeaderValue(dataKey, privateKey);
+			this.aesKey = k.key;
+			this.iv = k.iv;
+			this.decrypting = true;
+			return rewriteMessage(rootFields);
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Reads the message from {@code in} without encrypting or writing anything and reports every leaf
+	 * to {@code visitor}, for dry runs. Returns the number of leaves.
+	 */
+	int profile(InputStream in, LeafVisitor visitor) throws Exception {
+		try {
+			start(in, OutputStream.nullOutputStream());
+			readHeaderBlock();
+			this.decrypting = false;
+			this.profiler = visitor;
+			return rewriteMessage(List.of());
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * Rewrites only the top-level header block of the message read from {@code in}, for re-keying. The
+	 * fields {@code update} returns take the place of the first field of the same name (later ones are
+	 * dropped) or are appended; every other line is copied verbatim. The body is neither parsed nor
+	 * written: returns its offset in {@code in}, for the caller to copy it after the new block.
+	 */
+	long rewriteHeader(InputStream in, OutputStream out, HeaderUpdate update) throws Exception {
+		try {
+			start(in, out);
+			readHeaderBlock();
+			lineSep = header.lineSeparator();
+			List<HeaderField> fields = update.fields(header::value);
+			boolean[] written = new boolean[fields.size()];
+			for (int f = 0; f < header.fieldCount; f++) {
+				int replaced = -1;
+				for (int i = 0; i < fields.size() && replaced < 0; i++) {
+					if (header.nameIs(f, fields.get(i).name())) {
+						replaced = i;
+					}
+				}
+				if (replaced < 0) {
+					header.writeField(f, out, lineSep);
+				} else if (!written[replaced]) {
+					written[replaced] = true;
+					if (fields.get(replaced).value() != null) {
+						writeField(fields.get(replaced).name(), fields.get(replaced).value());
+					}
+				}
+			}
+			for (int i = 0; i < fields.size(); i++) {
+				if (!written[i] && fields.get(i).value() != null) {
+					writeField(fields.get(i).name(), fields.get(i).value());
+				}
+			}
+			out.write(header.blankLine != null ? header.blankLine : lineSep);
+			return (long) header.length + (header.blankLine != null ? header.blankLine.length : 0);
+		} finally {
+			finish();
+		}
+	}
+
+	private void start(InputStream in, OutputStream out) {
+		reader.reset(in);
+		delimiters.clear();
+		leaves = 0;
+		this.out = out;
+	}
+
+	private void finish() {
+		reader.reset(null);
+		this.out = null;
+		this.aesKey = null;
+		this.profiler = null;
+	}
+
+	/** Rewrites a message whose top-level header block has been read. */
+	private int rewriteMessage(List<HeaderField> rootFields) throws Exception {
+		lineSep = header.lineSeparator();
+		Entity root = header.entity();
+		if (root.multipart) {
+			writeHeaderBlock(root, rootFields, null);
+			rewriteMultipart(root);
+		} else {
+			rewriteLeaf(root, rootFields);
+		}
+		return leaves;
+	}
+
+	/**
+	 * Rewrites the body of a multipart entity whose header block has been written. Returns the depth
+	 * of the enclosing multipart whose delimiter ended it (the reader is on that line), or -1 at EOF.
+	 */
+	private int rewriteMultipart(Entity entity) throws Exception {
+		int depth = delimiters.size();
+		delimiters.add(entity.boundary == null ? null : ("--" + entity.boundary).getBytes(StandardCharsets.ISO_8859_1));
+
+		// Preamble
+		int hit = skipToDelimiter(depth);
+		if (hit != depth) {
+			throw new MessagingException("Missing start boundary in " + entity.contentType);
+		}
+		while (true) {
+			if (matchedClose) {
+				writeCurrentLine();
+				delimiters.remove(depth);
+				// Epilogue
+				return skipToDelimiter(depth - 1);
+			}
+			writeCurrentLine();
+
+			readHeaderBlock();
+			Entity part = header.entity();
+			if (part.multipart) {
+				writeHeaderBlock(part, null, null);
+				hit = rewriteMultipart(part);
+			} else {
+				hit = rewriteLeaf(part, null);
+			}
+			if (hit != depth) {
+				// EOF or an enclosing delimiter: close this multipart ourselves
+				out.write(delimiters.get(depth));
+				out.write('-');
+				out.write('-');
+				out.write(lineSep);
+				delimiters.remove(depth);
+				return hit;
+			}
+		}
+	}
+
+	/**
+	 * Writes the header block and the replaced body of a leaf entity whose header block has been read.
+	 * Returns as {@link #rewriteMultipart}.
+	 */
+	private int rewriteLeaf(Entity entity, List<HeaderField> rootFields) throws Exception {
+		if (profiler != null) {
+			profileLeaf(entity);
+		} else if (decrypting) {
+			decryptLeaf(entity, rootFields);
+		} else {
+			encryptLeaf(entity, rootFields);
+		}
+
+		body.drain();
+		if (!delimiters.isEmpty()) {
+			out.write(body.pendingLength > 0 ? Arrays.copyOf(body.pending, body.pendingLength) : lineSep);
+		}
+		return body.hit;
+	}
+
+	private void encryptLeaf(Entity entity, List<HeaderField> rootFields) throws Exception {
+		body.reset(delimiters.size() - 1, 2);
+		InputStream source = body;
+		if (passthrough != null) {
+			String disposition = header.value("Content-Disposition");
+			// Size conditions need the body: read up to the largest limit, then decide
+			long limit = passthrough.sizeLimit(entity.contentType, disposition);
+			byte[] head = limit < 0 ? null : body.readNBytes((int) Math.min(limit + 1, Integer.MAX_VALUE - 8));
+			long size = head != null && head.length <= limit ? head.length : -1;
+			PassthroughRules.Rule rule = passthrough.match(entity.contentType, disposition, size);
+			if (rule != null) {
+				writeHeaderBlock(entity, rootFields, rule.name());
+				long copied = head == null ? 0 : head.length;
+				if (head != null) {
+					out.write(head);
+				}
+				copied += body.transferTo(out);
+				rule.counters().record(copied);
+				return;
+			}
+			if (head != null) {
+				source = new SequenceInputStream(new ByteArrayInputStream(head), body);
+			}
+		}
+
+		leaves++;
+		writeHeaderBlock(entity, rootFields, null);
+		InputStream plain = entity.encoding == null ? source : MimeUtility.decode(source, entity.encoding);
+
+		OutputStream encoded = entity.message ? out : Base64.getMimeEncoder(76, lineSep).wrap(StreamUtils.nonClosing(out));
+		OutputStream target = entity.text ? Base64.getEncoder().wrap(StreamUtils.nonClosing(encoded)) : encoded;
+		crypto.encryptAesCbc(plain, target, aesKey, iv);
+		// Closing the encoders writes their padding; the output itself stays open
+		if (target != encoded) {
+			target.close();
+		}
+		if (encoded != out) {
+			encoded.close();
+		}
+	}
+
+	private void profileLeaf(Entity entity) throws IOException {
+		leaves++;
+		String disposition = header.value("Content-Disposition");
+		boolean attachment = !entity.text
+				|| (disposition != null && disposition.trim().regionMatches(true, 0, "attachment", 0, 10));
+		body.reset(delimiters.size() - 1, 2);
+		profiler.leaf(delimiters.size(), attachment, body.transferTo(out));
+	}
+
+	private void decryptLeaf(Entity entity, List<HeaderField> rootFields) throws Exception {
+		String rule = header.value(EmlEncryptionService.HDR_PASSTHROUGH);
+		if (rule != null) {
+			writeHeaderBlock(entity, rootFields, rule);
+			body.reset(delimiters.size() - 1, 2);
+			body.transferTo(out);
+			return;
+		}
+
+		leaves++;
+		writeHeaderBlock(entity, rootFields, null);
+		// Unencoded ciphertext (message/*) may itself end in CR or LF: only the separator the
+		// encrypter wrote before the delimiter is not part of it
+		body.reset(delimiters.size() - 1, entity.message ? lineSep.length : 2);
+		InputStream encrypted = entity.encoding == null ? body : MimeUtility.decode(body, entity.encoding);
+		if (entity.text) {
+			encrypted = Base64.getDecoder().wrap(encrypted);
+		}
+
+		OutputStream target = entity.message ? out : Base64.getMimeEncoder(76, lineSep).wrap(StreamUtils.nonClosing(out));
+		crypto.decryptAesCbc(encrypted, target, aesKey, iv);
+		if (target != out) {
+			target.close();
+		}
+	}
+
+	/**
+	 * Skips lines up to the next delimiter of a multipart at or above {@code maxDepth} and returns its
+	 * depth, or -1 at EOF. A multipart without a boundary parameter takes the first line starting with
+	 * "--" as its delimiter, like jakarta.mail does.
+	 */
+	private int skipToDelimiter(int maxDepth) throws IOException {
+		while (reader.next()) {
+			if (!reader.lineStart) {
+				continue;
+			}
+			if (maxDepth >= 0 && delimiters.get(maxDepth) == null && reader.startsWithDashes()) {
+				byte[] line = Arrays.copyOfRange(reader.buf, reader.start, reader.contentEnd);
+				int end = line.length;
+				while (end > 2 && (line[end - 1] == ' ' || line[end - 1] == '\t')) end--;
+				delimiters.set(maxDepth, Arrays.copyOf(line, end));
+				matchedClose = false;
+				return maxDepth;
+			}
+			int d = matchDelimiter(maxDepth);
+			if (d >= 0) {
+				return d;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Depth of the innermost multipart at or above {@code maxDepth} whose delimiter the current line
+	 * is, or -1. Sets {@link #matchedClose}.
+	 */
+	private int matchDelimiter(int maxDepth) {
+		if (!reader.startsWithDashes()) {
+			return -1;
+		}
+		byte[] buf = reader.buf;
+		for (int d = maxDepth; d >= 0; d--) {
+			byte[] delim = delimiters.get(d);
+			int len = reader.contentEnd - reader.start;
+			if (delim == null || len < delim.length
+					|| !Arrays.equals(buf, reader.start, reader.start + delim.length, delim, 0, delim.length)) {
+				continue;
+			}
+			int i = reader.start + delim.length;
+			boolean close = i + 1 < reader.contentEnd && buf[i] == '-' && buf[i + 1] == '-';
+			if (close) {
+				i += 2;
+			}
+			while (i < reader.contentEnd && (buf[i] == ' ' || buf[i] == '\t')) i++;
+			if (i == reader.contentEnd) {
+				matchedClose = close;
+				return d;
+			}
+		}
+		return -1;
+	}
+
+	private void writeCurrentLine() throws IOException {
+		out.write(reader.buf, reader.start, reader.end - reader.start);
+		if (!reader.terminated) {
+			out.write(lineSep);
+		}
+	}
+
+	/**
+	 * Reads a header block up to and including the blank line that ends it. A delimiter line ends it
+	 * too (a part without body) and is left for the body to find.
+	 */
+	private void readHeaderBlock() throws IOException, MessagingException {
+		header.clear();
+		while (reader.next()) {
+			if (reader.lineStart) {
+				if (reader.contentEnd == reader.start && reader.terminated) {
+					header.blankLine = Arrays.copyOfRange(reader.buf, reader.start, reader.end);
+					return;
+				}
+				if (!delimiters.isEmpty() && matchDelimiter(delimiters.size() - 1) >= 0) {
+					reader.pushBack();
+					return;
+				}
+			}
+			if (header.length + reader.end - reader.start > MAX_HEADER_BLOCK) {
+				throw new MessagingException("Header block larger than " + MAX_HEADER_BLOCK + " bytes");
+			}
+			header.append(reader.buf, reader.start, reader.end, reader.lineStart);
+		}
+	}
+
+	/**
+	 * Writes the header block read last. {@code passthrough} is the rule name for a leaf whose body is
+	 * copied unchanged, which keeps its transfer encoding and length; null otherwise.
+	 */
+	private void writeHeaderBlock(Entity entity, List<HeaderField> rootFields, String passthrough) throws IOException {
+		boolean root = rootFields != null;
+		boolean leaf = !entity.multipart && passthrough == null;
+		boolean hasMimeVersion = false;
+		for (int f = 0; f < header.fieldCount; f++) {
+			// Every replaced body changes size, and so does every multipart
+			if ((passthrough == null && header.nameIs(f, "Content-Length"))
+					|| (leaf && header.nameIs(f, "Content-Transfer-Encoding"))
+					|| header.nameIs(f, EmlEncryptionService.HDR_PASSTHROUGH)) {
+				continue;
+			}
+			if (root) {
+				hasMimeVersion |= header.nameIs(f, "MIME-Version");
+				if (isReplaced(f, rootFields)) {
+					continue;
+				}
+			}
+			header.writeField(f, out, lineSep);
+		}
+		if (root) {
+			if (!hasMimeVersion) {
+				writeField("MIME-Version", "1.0");
+			}
+			for (HeaderField h : rootFields) {
+				if (h.value() != null) {
+					writeField(h.name(), h.value());
+				}
+			}
+		}
+		if (leaf) {
+			writeField("Content-Transfer-Encoding", decrypting && entity.message ? "8bit" : "base64");
+		} else if (passthrough != null && !decrypting) {
+			writeField(EmlEncryptionService.HDR_PASSTHROUGH, passthrough);
+		}
+		out.write(header.blankLine != null ? header.blankLine : lineSep);
+	}
+
+	private boolean isReplaced(int field, List<HeaderField> fields) {
+		for (HeaderField h : fields) {
+			if (header.nameIs(field, h.name())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeField(String name, String value) throws IOException {
+		out.write((name + ": " + value).getBytes(StandardCharsets.ISO_8859_1));
+		out.write(lineSep);
+	}
+
+	/** What the rewriter needs to know about an entity, derived from its header block. */
+	private record Entity(String contentType, boolean multipart, String boundary, boolean text, boolean message,
+			String encoding) {
+	}
+
+	/**
+	 * Lines of one header block, kept as raw bytes, with the offsets of each field (a line plus its
+	 * folded continuation lines).
+	 */
+	private static final class HeaderBlock {
+		byte[] bytes = new byte[4096];
+		int length;
+		int[] fieldStart = new int[32];
+		int[] fieldEnd = new int[32];
+		int fieldCount;
+		byte[] blankLine;
+
+		void clear() {
+			length = 0;
+			fieldCount = 0;
+			blankLine = null;
+		}
+
+		void append(byte[] src, int from, int to, boolean lineStart) {
+			int n = to - from;
+			if (length + n > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+			}
+			boolean continuation = !lineStart || (n > 0 && (src[from] == ' ' || src[from] == '\t'));
+			if (!continuation || fieldCount == 0) {
+				if (fieldCount == fieldStart.length) {
+					fieldStart = Arrays.copyOf(fieldStart, fieldCount * 2);
+					fieldEnd = Arrays.copyOf(fieldEnd, fieldCount * 2);
+				}
+				fieldStart[fieldCount++] = length;
+			}
+			System.arraycopy(src, from, bytes, length, n);
+			length += n;
+			fieldEnd[fieldCount - 1] = length;
+		}
+
+		/** Separator used by the first header line, CRLF when there is none. */
+		byte[] lineSeparator() {
+			for (int i = 0; i < length; i++) {
+				if (bytes[i] == '\n') {
+					return i > 0 && bytes[i - 1] == '\r' ? CRLF : new byte[] {'\n'};
+				}
+			}
+			return blankLine != null && blankLine.length == 1 ? blankLine : CRLF;
+		}
+
+		boolean nameIs(int f, String name) {
+			int start = fieldStart[f];
+			int colon = indexOf(':', start, fieldEnd[f]);
+			if (colon < 0) {
+				return false;
+			}
+			int end = colon;
+			while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) end--;
+			if (end - start != name.length()) {
+				return false;
+			}
+			for (int i = 0; i < name.length(); i++) {
+				if (Character.toLowerCase((char) bytes[start + i]) != Character.toLowerCase(name.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Unfolded value of the first field called {@code name}, leading whitespace skipped; null if absent. */
+		String value(String name) {
+			for (int f = 0; f < fieldCount; f++) {
+				if (!nameIs(f, name)) {
+					continue;
+				}
+				int i = indexOf(':', fieldStart[f], fieldEnd[f]) + 1;
+				while (i < fieldEnd[f] && (bytes[i] == ' ' || bytes[i] == '\t' || bytes[i] == '\r' || bytes[i] == '\n')) i++;
+				var sb = new StringBuilder(fieldEnd[f] - i);
+				for (; i < fieldEnd[f]; i++) {
+					if (bytes[i] != '\r' && bytes[i] != '\n') {
+						sb.append((char) (bytes[i] & 0xff));
+					}
+				}
+				return sb.toString();
+			}
+			return null;
+		}
+
+		void writeField(int f, OutputStream out, byte[] lineSep) throws IOException {
+			out.write(bytes, fieldStart[f], fieldEnd[f] - fieldStart[f]);
+			if (bytes[fieldEnd[f] - 1] != '\n') {
+				out.write(lineSep);
+			}
+		}
+
+		/** Mirrors how jakarta.mail reads Content-Type and Content-Transfer-Encoding of a part. */
+		Entity entity() throws MessagingException {
+			String type = value("Content-Type");
+			if (type == null) {
+				type = "text/plain";
+			}
+			boolean multipart = isMimeType(type, "multipart/*");
+			boolean message = isMimeType(type, "message/*");
+			String boundary = null;
+			if (multipart) {
+				try {
+					boundary = new ContentType(type).getParameter("boundary");
+				} catch (ParseException e) {
+					// boundary is taken from the first delimiter line
+				}
+			}
+			String encoding = multipart || message ? null : encoding(value("Content-Transfer-Encoding"));
+			return new Entity(type, multipart, boundary, type.startsWith("text/"), message, encoding);
+		}
+
+		private int indexOf(char c, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (bytes[i] == c) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private static boolean isMimeType(String type, String pattern) {
+			try {
+				return new ContentType(type).match(pattern);
+			} catch (ParseException e) {
+				int semicolon = type.indexOf(';');
+				if (semicolon > 0) {
+					try {
+						return new ContentType(type.substring(0, semicolon)).match(pattern);
+					} catch (ParseException ignored) {
+						// fall through
+					}
+				}
+				return type.equalsIgnoreCase(pattern);
+			}
+		}
+
+		private static String encoding(String cte) throws ParseException {
+			if (cte == null || cte.isBlank()) {
+				return null;
+			}
+			cte = cte.trim();
+			HeaderTokenizer h = new HeaderTokenizer(cte, HeaderTokenizer.MIME);
+			for (HeaderTokenizer.Token tk = h.next(); tk.getType() != HeaderTokenizer.Token.EOF; tk = h.next()) {
+				if (tk.getType() == HeaderTokenizer.Token.ATOM) {
+					return tk.getValue();
+				}
+			}
+			return cte;
+		}
+	}
+
+	/**
+	 * The body of the current leaf as an {@link InputStream}, ending before the line break that
+	 * precedes the next delimiter (that line break belongs to the delimiter and is kept in
+	 * {@link #pending}).
+	 */
+	private final class BodyStream extends InputStream {
+		private int maxDepth;
+		private boolean done;
+		int hit;
+		/** Line break of the last line read, emitted only once the next line is known to be body. */
+		final byte[] pending = new byte[2];
+		int pendingLength;
+		private final byte[] queued = new byte[2];
+		private int queuedPos;
+		private int queuedLength;
+		private int segPos;
+		private int segEnd;
+
+		/** At most this many bytes of the line break before a delimiter belong to the delimiter. */
+		private int delimiterBreak;
+
+		void reset(int maxDepth, int delimiterBreak) {
+			this.maxDepth = maxDepth;
+			this.delimiterBreak = delimiterBreak;
+			done = false;
+			hit = -1;
+			pendingLength = 0;
+			queuedPos = queuedLength = 0;
+			segPos = segEnd = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int total = 0;
+			while (total < len) {
+				if (queuedPos < queuedLength) {
+					b[off + total++] = queued[queuedPos++];
+					continue;
+				}
+				if (segPos < segEnd) {
+					int n = Math.min(len - total, segEnd - segPos);
+					System.arraycopy(reader.buf, segPos, b, off + total, n);
+					segPos += n;
+					total += n;
+					continue;
+				}
+				if (done || !advance()) {
+					break;
+				}
+			}
+			return total == 0 && len > 0 ? -1 : total;
+		}
+
+		/** Queues the next piece of body; false at the end of the body. */
+		private boolean advance() throws IOException {
+			if (!reader.next()) {
+				// EOF: the last line break is part of the body
+				done = true;
+				System.arraycopy(pending, 0, queued, 0, pendingLength);
+				queuedPos = 0;
+				queuedLength = pendingLength;
+				pendingLength = 0;
+				return queuedLength > 0;
+			}
+			if (reader.lineStart && maxDepth >= 0) {
+				int d = matchDelimiter(maxDepth);
+				if (d >= 0) {
+					done = true;
+					hit = d;
+					int extra = pendingLength - Math.min(pendingLength, delimiterBreak);
+					if (extra == 0) {
+						return false;
+					}
+					System.arraycopy(pending, 0, queued, 0, extra);
+					System.arraycopy(pending, extra, pending, 0, pendingLength - extra);
+					pendingLength -= extra;
+					queuedPos = 0;
+					queuedLength = extra;
+					return true;
+				}
+			}
+			System.arraycopy(pending, 0, queued, 0, pendingLength);
+			queuedPos = 0;
+			queuedLength = pendingLength;
+			segPos = reader.start;
+			segEnd = reader.contentEnd;
+			pendingLength = reader.end - reader.contentEnd;
+			System.arraycopy(reader.buf, reader.contentEnd, pending, 0, pendingLength);
+			return true;
+		}
+
+		/** Skips whatever the decoder left unread, up to the end of the body. */
+		void drain() throws IOException {
+			segPos = segEnd;
+			queuedPos = queuedLength;
+			while (!done && advance()) {
+				segPos = segEnd;
+				queuedPos = queuedLength;
+			}
+		}
+	}
+
+	/**
+	 * Hands out the input line by line from one buffer, without copying. Lines longer than the buffer
+	 * come in pieces; only the first piece has {@link #lineStart} set. A piece never ends between CR
+	 * and LF.
+	 */
+	private static final class LineReader {
+		final byte[] buf;
+		private InputStream in;
+		private int pos;
+		private int limit;
+		private boolean eof;
+		private boolean pushedBack;
+		private boolean nextLineStart;
+
+		/** Current piece: {@code [start, end)}, of which {@code [start, contentEnd)} is not line break. */
+		int start;
+		int end;
+		int contentEnd;
+		boolean terminated;
+		boolean lineStart;
+
+		LineReader(int size) {
+			this.buf = new byte[size];
+		}
+
+		void reset(InputStream in) {
+			this.in = in;
+			pos = limit = 0;
+			eof = false;
+			pushedBack = false;
+			nextLineStart = true;
+		}
+
+		/** Makes the next call to {@link #next()} return the current piece again. */
+		void pushBack() {
+			pushedBack = true;
+		}
+
+		boolean startsWithDashes() {
+			return contentEnd - start >= 2 && buf[start] == '-' && buf[start + 1] == '-';
+		}
+
+		boolean next() throws IOException {
+			if (pushedBack) {
+				pushedBack = false;
+				return true;
+			}
+			int from = pos;
+			int nl;
+			while ((nl = indexOfNewline(from)) < 0) {
+				from = limit;
+				if (eof) {
+					break;
+				}
+				if (limit == buf.length) {
+					if (pos == 0) {
+						break;
+					}
+					System.arraycopy(buf, pos, buf, 0, limit - pos);
+					limit -= pos;
+					from -= pos;
+					pos = 0;
+				}
+				int n = in.read(buf, limit, buf.length - limit);
+				if (n < 0) {
+					eof = true;
+				} else {
+					limit += n;
+				}
+			}
+			if (nl < 0 && pos == limit) {
+				return false;
+			}
+
+			lineStart = nextLineStart;
+			start = pos;
+			if (nl >= 0) {
+				end = nl + 1;
+				terminated = true;
+				contentEnd = nl > start && buf[nl - 1] == '\r' ? nl - 1 : nl;
+			} else {
+				end = limit;
+				terminated = false;
+				if (!eof && end - start > 1 && buf[end - 1] == '\r') {
+					end--;
+				}
+				contentEnd = end;
+			}
+			pos = end;
+			nextLineStart = terminated;
+			return true;
+		}
+
+		private int indexOfNewline(int from) {
+			for (int i = from; i < limit; i++) {
+				if (buf[i] == '\n') {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome of one encryption run. Safe to update from several worker threads.
+ */
+public class RunSummary {
+
+	private final long startNanos = System.nanoTime();
+	private final AtomicInteger succeeded = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final Map<String, String> failures = new ConcurrentSkipListMap<>();
+	private volatile Duration elapsed;
+
+	void recordSuccess() {
+		succeeded.incrementAndGet();
+	}
+
+	void recordSkipped() {
+		skipped.incrementAndGet();
+	}
+
+	void recordFailure(Path input, Exception e) {
+		recordFailure(input.toString(), e);
+	}
+
+	void recordFailure(String input, Exception e) {
+		failures.put(input, e.getClass().getSimpleName() + ": " + e.getMessage());
+	}
+
+	void finish() {
+		elapsed = Duration.ofNanos(System.nanoTime() - startNanos);
+	}
+
+	public int getSucceeded() { return succeeded.get(); }
+
+	public int getFailed() { return failures.size(); }
+
+	/** Inputs completed by an earlier run and left untouched. */
+	public int getSkipped() { return skipped.get(); }
+
+	public List<String> getFailedInputs() { return List.copyOf(failures.keySet()); }
+
+	public Duration getElapsed() {
+		return elapsed == null ? Duration.ofNanos(System.nanoTime() - startNanos) : elapsed;
+	}
+
+	@Override
+	public String toString() {
+		var sb = new StringBuilder();
+		sb.append("Processed ").append(getSucceeded() + getFailed() + getSkipped()).append(" file(s): ")
+				.append(getSucceeded()).append(" succeeded, ")
+				.append(getFailed()).append(" failed, ")
+				.append(getSkipped()).append(" already done in ")
+				.append(getElapsed().toMillis()).append(" ms");
+		failures.forEach((input, reason) -> sb.append("\n  FAILED ").append(input).append(" - ").append(reason));
+		return sb.toString();
+	}
+}
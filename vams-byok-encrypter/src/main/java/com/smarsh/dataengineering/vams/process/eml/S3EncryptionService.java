@@ -0,0 +1,375 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.errorprone.annotations.MustBeClosed;
+import jakarta.mail.util.SharedByteArrayInputStream;
+import jakarta.mail.util.SharedFileInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+/**
+ * Encrypt mode when the input or the output folder is an {@code s3://bucket/prefix} location (either
+ * or both; the other may be a local folder), so batches are encrypted from bucket to bucket without a
+ * local copy.
+ * <p>
+ * Objects are listed with {@link S3Listing}, sharded by their key relative to the input prefix like
+ * files are, and go through the same worker pool and heap budget as files. The raw engine reads each
+ * object as a single streamed GET. The DOM engine needs to read parts back, so an object up to
+ * {@code telemessage.s3.in-memory-object-limit} is held in memory and a larger one is spooled to a
+ * temp file with parallel ranged GETs of {@code part-size} bytes, pinned to the listed ETag so an
+ * object replaced meanwhile fails instead of mixing versions. Output is streamed into a multipart
+ * upload ({@link S3MultipartOutputStream}) and only appears once complete.
+ * <p>
+ * With {@code telemessage.checkpoint.enabled} an input is skipped when its output exists and is not
+ * older than the input; the checkpoint manifest itself is only kept for local folders.
+ */
+@Service
+public class S3EncryptionService implements AutoCloseable {
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final TelemessageProperties props;
+	private final EmlEncryptionService emlService;
+	private S3Client client;
+
+	@Autowired
+	public S3EncryptionService(TelemessageProperties props, EmlEncryptionService emlService) {
+		this(props, emlService, null);
+	}
+
+	/**
+	 * With a given {@code client}, e.g. one for a local stand-in; built from {@code telemessage.s3}
+	 * on first use when null.
+	 */
+	S3EncryptionService(TelemessageProperties props, EmlEncryptionService emlService, S3Client client) {
+		this.props = props;
+		this.emlService = emlService;
+		this.client = client;
+	}
+
+	/**
+	 * Whether the input or the output folder of {@code props} is in an object store.
+	 */
+	public static boolean isUsedBy(TelemessageProperties props) {
+		return S3Location.isS3(props.getInputFolder()) || S3Location.isS3(props.getOutputFolder());
+	}
+
+	@Override
+	public synchronized void close() {
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	private synchronized S3Client client() {
+		if (client == null) {
+			TelemessageProperties.S3 s3 = props.getS3();
+			S3ClientBuilder builder = S3Client.builder()
+					.region(Region.of(s3.getRegion()))
+					.forcePathStyle(s3.isPathStyleAccess());
+			if (StringUtils.hasText(s3.getEndpoint())) {
+				builder.endpointOverride(URI.create(s3.getEndpoint()));
+			}
+			if (StringUtils.hasText(s3.getAccessKey())) {
+				builder.credentialsProvider(StaticCredentialsProvider.create(
+						AwsBasicCredentials.create(s3.getAccessKey(), s3.getSecretKey())));
+			}
+			client = builder.build();
+		}
+		return client;
+	}
+
+	/**
+	 * An input of the run: its name relative to the input folder, size, last-modified millis and either
+	 * its local file or the ETag of its object.
+	 */
+	record Input(String name, long size, long lastModified, Path file, String eTag) implements Comparable<Input> {
+		@Override
+		public int compareTo(Input o) {
+			return name.compareTo(o.name);
+		}
+	}
+
+	public RunSummary processAllEmls() throws Exception {
+		RunSummary summary = new RunSummary();
+		try (Run run = new Run(summary);
+			 Stream<Input> inputs = run.inputs()) {
+			emlService.forEachInput(inputs, "s3-encrypt-", Input::size, run::heapCost, run::process);
+		}
+		summary.finish();
+
+		System.out.println(summary);
+		emlService.reportKeyPool();
+		return summary;
+	}
+
+	/**
+	 * Writes the run summary to the output folder, or uploads it to the output prefix, one per shard,
+	 * and returns its location.
+	 */
+	public String writeRunSummary(RunSummary summary) throws Exception {
+		if (!S3Location.isS3(props.getOutputFolder())) {
+			return emlService.getMetrics().writeRunSummary(Path.of(props.getOutputFolder()), props.getScan(), summary).toString();
+		}
+		S3Location out = S3Location.parse(props.getOutputFolder());
+		String key = out.key(InputScan.shardFileName(EncryptionMetrics.RUN_SUMMARY_FILE, props.getScan()));
+		byte[] json = new ObjectMapper().writerWithDefaultPrettyPrinter()
+				.writeValueAsBytes(emlService.getMetrics().runSummary(summary));
+		client().putObject(b -> b.bucket(out.bucket()).key(key).contentType("application/json"), RequestBody.fromBytes(json));
+		return S3Location.SCHEME + out.bucket() + "/" + key;
+	}
+
+	/**
+	 * The folders and transfer resources of one run.
+	 */
+	private final class Run implements AutoCloseable {
+
+		private final RunSummary summary;
+		private final ExecutorService transfers;
+		private final Semaphore inFlight;
+		private final S3Location inLoc;
+		private final Path inDir;
+		private final S3Location outLoc;
+		private final Path outDir;
+
+		Run(RunSummary summary) throws IOException {
+			this.summary = summary;
+			boolean s3In = S3Location.isS3(props.getInputFolder());
+			boolean s3Out = S3Location.isS3(props.getOutputFolder());
+			this.inLoc = s3In ? S3Location.parse(props.getInputFolder()) : null;
+			this.inDir = s3In ? null : Path.of(props.getInputFolder());
+			this.outLoc = s3Out ? S3Location.parse(props.getOutputFolder()) : null;
+			this.outDir = s3Out ? null : Path.of(props.getOutputFolder());
+
+			if (inDir != null && !Files.isDirectory(inDir)) {
+				throw new IllegalArgumentException("Input folder is not a directory: " + inDir);
+			}
+			if (outDir != null) {
+				Files.createDirectories(outDir);
+			}
+
+			int parts = Math.max(1, props.getS3().getMaxInFlightParts());
+			this.transfers = Executors.newFixedThreadPool(parts, Thread.ofPlatform().name("s3-transfer-", 0).factory());
+			this.inFlight = new Semaphore(parts);
+		}
+
+		@Override
+		public void close() {
+			transfers.shutdownNow();
+		}
+
+		@MustBeClosed
+		Stream<Input> inputs() throws IOException {
+			TelemessageProperties.Scan scan = props.getScan();
+			if (inDir != null) {
+				return new InputScan(inDir, ".eml", null, scan).open().map(p -> {
+					try {
+						return new Input(InputScan.relativeName(inDir, p), Files.size(p), Files.getLastModifiedTime(p).toMillis(), p, null);
+					} catch (IOException e) {
+						// Fails when processed
+						return new Input(InputScan.relativeName(inDir, p), -1, 0, p, null);
+					}
+				});
+			}
+
+			InputScan.checkShard(scan);
+			// The output prefix may be a sub-folder of the input prefix; its objects are not inputs
+			String excluded = outLoc != null && outLoc.bucket().equals(inLoc.bucket())
+					&& outLoc.prefix().startsWith(inLoc.prefix()) && outLoc.prefix().length() > inLoc.prefix().length()
+					? outLoc.prefix()
+					: null;
+			return S3Listing.open(client(), inLoc, scan.isRecursive(), props.getS3().getListParallelism())
+					.filter(o -> o.key().toLowerCase(Locale.ROOT).endsWith(".eml")
+							&& (excluded == null || !o.key().startsWith(excluded))
+							&& InputScan.shardOf(inLoc.relativeName(o.key()), scan.getShardCount()) == scan.getShardIndex())
+					.map(this::input);
+		}
+
+		private Input input(S3Object o) {
+			return new Input(inLoc.relativeName(o.key()), o.size(),
+					o.lastModified() == null ? 0 : o.lastModified().toEpochMilli(), null, o.eTag());
+		}
+
+		/**
+		 * Heap of one message as {@link EmlEncryptionService#messageHeap} has it, plus the object held
+		 * in memory and the upload part being filled. Objects are never read onto the heap twice.
+		 */
+		long heapCost(Input in) {
+			boolean fromObject = in.file() == null;
+			long heap = EmlEncryptionService.messageHeap(props, in.size(), fromObject || emlService.spills(in.size()));
+			if (fromObject && props.getEngine() == TelemessageProperties.Engine.DOM
+					&& in.size() <= props.getS3().getInMemoryObjectLimit()) {
+				heap += Math.max(0, in.size());
+			}
+			if (outLoc != null) {
+				heap += props.getS3().getPartSize();
+			}
+			return heap;
+		}
+
+		void process(Input in) {
+			try {
+				if (props.getCheckpoint().isEnabled() && isDone(in)) {
+					summary.recordSkipped();
+					return;
+				}
+				encrypt(in);
+				summary.recordSuccess();
+			} catch (Exception e) {
+				System.err.println("Failed processing " + describe(in) + ": " + e.getMessage());
+				e.printStackTrace(System.err);
+				emlService.getMetrics().failure();
+				summary.recordFailure(describe(in), e);
+			}
+		}
+
+		private String describe(Input in) {
+			return in.file() != null ? in.file().toString() : S3Location.SCHEME + inLoc.bucket() + "/" + inLoc.key(in.name());
+		}
+
+		/**
+		 * Whether the output of {@code in} exists and was written after the input last changed.
+		 */
+		private boolean isDone(Input in) throws IOException {
+			long written;
+			if (outLoc != null) {
+				try {
+					written = client().headObject(b -> b.bucket(outLoc.bucket()).key(outLoc.key(in.name()))).lastModified().toEpochMilli();
+				} catch (NoSuchKeyException e) {
+					return false;
+				}
+			} else {
+				Path out = outDir.resolve(in.name());
+				if (!Files.exists(out)) {
+					return false;
+				}
+				written = Files.getLastModifiedTime(out).toMillis();
+			}
+			return written >= in.lastModified();
+		}
+
+		private void encrypt(Input in) throws Exception {
+			boolean sequential = props.getEngine() == TelemessageProperties.Engine.RAW;
+			if (in.file() != null) {
+				try (InputStream is = emlService.openInput(in.file(), sequential, emlService.spills(in.size()))) {
+					write(in, is);
+				}
+				return;
+			}
+
+			String key = inLoc.key(in.name());
+			if (sequential) {
+				// Single forward pass: straight from the response body
+				try (InputStream is = client().getObject(b -> b.bucket(inLoc.bucket()).key(key).ifMatch(in.eTag()))) {
+					write(in, is);
+				}
+				return;
+			}
+
+			if (in.size() <= props.getS3().getInMemoryObjectLimit()) {
+				byte[] bytes = client().getObjectAsBytes(b -> b.bucket(inLoc.bucket()).key(key).ifMatch(in.eTag())).asByteArrayUnsafe();
+				write(in, new SharedByteArrayInputStream(bytes));
+				return;
+			}
+
+			Path spool = Files.createTempFile("eml-spool-", ".eml");
+			try {
+				download(in, key, spool);
+				try (SharedFileInputStream is = new SharedFileInputStream(spool.toFile(), CryptoService.STREAM_CHUNK_SIZE)) {
+					write(in, is);
+				}
+			} finally {
+				Files.deleteIfExists(spool);
+			}
+		}
+
+		/**
+		 * Fetches the object in ranges of {@code part-size} bytes on the transfer threads, each written
+		 * straight to its place in {@code spool}.
+		 */
+		private void download(Input in, String key, Path spool) throws IOException {
+			long partSize = props.getS3().getPartSize();
+			List<Future<Void>> ranges = new ArrayList<>();
+			try (FileChannel channel = FileChannel.open(spool, StandardOpenOption.WRITE)) {
+				for (long from = 0; from < in.size(); from += partSize) {
+					long start = from;
+					long end = Math.min(in.size(), from + partSize) - 1;
+					ranges.add(transfers.submit(() -> {
+						try (ResponseInputStream<GetObjectResponse> body = client().getObject(b -> b.bucket(inLoc.bucket()).key(key)
+								.range("bytes=" + start + "-" + end).ifMatch(in.eTag()))) {
+							copy(body, channel, start);
+						}
+						return null;
+					}));
+				}
+				for (Future<Void> range : ranges) {
+					S3MultipartOutputStream.get(range);
+				}
+			} finally {
+				for (Future<Void> range : ranges) {
+					range.cancel(true);
+				}
+			}
+		}
+
+		private void write(Input in, InputStream is) throws Exception {
+			if (outLoc != null) {
+				try (S3MultipartOutputStream os = new S3MultipartOutputStream(client(), outLoc.bucket(),
+						outLoc.key(in.name()), props.getS3().getPartSize(), transfers, inFlight)) {
+					emlService.encryptMessage(is, in.size(), os);
+					os.complete();
+				}
+				return;
+			}
+			EmlEncryptionService.writeAtomically(outDir.resolve(in.name()), tmp -> {
+				try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp), CryptoService.STREAM_CHUNK_SIZE)) {
+					emlService.encryptMessage(is, in.size(), os);
+				}
+			});
+		}
+	}
+
+	private static void copy(InputStream in, FileChannel channel, long position) throws IOException {
+		byte[] buf = new byte[COPY_BUFFER_SIZE];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+			while (bb.hasRemaining()) {
+				position += channel.write(bb, position);
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The objects under an {@link S3Location}, listed lazily like {@link InputScan} lists files: a bucket
+ * listing is a sequence of pages, so a large folder is only fast to list when its sub-folders are
+ * listed at the same time. Each prefix is listed with a {@code /} delimiter and, when recursive, the
+ * sub-folders it reports are queued for the next free lister. Objects are handed over through a
+ * bounded queue, so listing stays at most a few thousand keys ahead of the workers.
+ */
+final class S3Listing {
+
+	private static final int QUEUE_CAPACITY = 4096;
+	private static final S3Object END = S3Object.builder().build();
+
+	private final S3Client client;
+	private final String bucket;
+	private final boolean recursive;
+	private final ExecutorService listers;
+	private final BlockingQueue<S3Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile RuntimeException failure;
+
+	private S3Listing(S3Client client, String bucket, boolean recursive, int parallelism) {
+		this.client = client;
+		this.bucket = bucket;
+		this.recursive = recursive;
+		this.listers = Executors.newFixedThreadPool(recursive ? Math.max(1, parallelism) : 1,
+				Thread.ofPlatform().name("s3-list-", 0).daemon().factory());
+	}
+
+	/**
+	 * The objects under {@code root}, and under its sub-folders when {@code recursive}, in no particular
+	 * order; the stream has to be closed.
+	 */
+	static Stream<S3Object> open(S3Client client, S3Location root, boolean recursive, int parallelism) {
+		S3Listing listing = new S3Listing(client, root.bucket(), recursive, parallelism);
+		listing.list(root.prefix());
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(listing.iterator(), Spliterator.NONNULL), false)
+				.onClose(listing.listers::shutdownNow);
+	}
+
+	private void list(String prefix) {
+		pending.incrementAndGet();
+		listers.execute(() -> {
+			try {
+				for (ListObjectsV2Response page : client.listObjectsV2Paginator(b -> b.bucket(bucket).prefix(prefix).delimiter("/"))) {
+					if (recursive) {
+						for (CommonPrefix sub : page.commonPrefixes()) {
+							list(sub.prefix());
+						}
+					}
+					for (S3Object o : page.contents()) {
+						queue.put(o);
+					}
+				}
+				if (pending.decrementAndGet() == 0) {
+					queue.put(END);
+				}
+			} catch (InterruptedException e) {
+				// The stream was closed
+			} catch (RuntimeException e) {
+				failure = e;
+				try {
+					queue.put(END);
+				} catch (InterruptedException closed) {
+					// The stream was closed
+				}
+			}
+		});
+	}
+
+	private Iterator<S3Object> iterator() {
+		return new Iterator<>() {
+			private S3Object next;
+
+			@Override
+			public boolean hasNext() {
+				if (next == null) {
+					try {
+						next = queue.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted listing s3://" + bucket, e);
+					}
+				}
+				// Every listed object has a key, so only the sentinel equals END
+				if (END.equals(next)) {
+					if (failure != null) {
+						throw new IllegalStateException("Failed listing s3://" + bucket + ": " + failure.getMessage(), failure);
+					}
+					return false;
+				}
+				return true;
+			}
+
+			@Override
+			public S3Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				S3Object o = next;
+				next = null;
+				return o;
+			}
+		};
+	}
+}
@@ -0,0 +1,50 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+/**
+ * An {@code s3://bucket/prefix} folder: the objects in {@code bucket} whose key starts with
+ * {@code prefix}, which is empty or ends with {@code /}.
+ */
+record S3Location(String bucket, String prefix) {
+
+	static final String SCHEME = "s3://";
+
+	static boolean isS3(String folder) {
+		return folder != null && folder.regionMatches(true, 0, SCHEME, 0, SCHEME.length());
+	}
+
+	static S3Location parse(String folder) {
+		if (!isS3(folder)) {
+			throw new IllegalArgumentException("Not an s3:// location: " + folder);
+		}
+		String rest = folder.substring(SCHEME.length());
+		int slash = rest.indexOf('/');
+		String bucket = slash < 0 ? rest : rest.substring(0, slash);
+		String prefix = slash < 0 ? "" : rest.substring(slash + 1);
+		if (bucket.isEmpty()) {
+			throw new IllegalArgumentException("No bucket in " + folder);
+		}
+		if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+			prefix += "/";
+		}
+		return new S3Location(bucket, prefix);
+	}
+
+	/**
+	 * Key of the object named {@code name} (relative, with {@code /} separators) in this folder.
+	 */
+	String key(String name) {
+		return prefix + name;
+	}
+
+	/**
+	 * Name of {@code key} relative to this folder, as {@link InputScan#relativeName} gives for files.
+	 */
+	String relativeName(String key) {
+		return key.substring(prefix.length());
+	}
+
+	@Override
+	public String toString() {
+		return SCHEME + bucket + "/" + prefix;
+	}
+}
@@ -0,0 +1,207 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams an object into a bucket as a multipart upload: every {@code partSize} bytes written become
+ * one part, uploaded on {@code transfers} while the writer goes on filling the next one. The parts
+ * being uploaded hold a permit of {@code inFlight} each, shared by all the uploads of a run, so a writer
+ * that gets ahead of the network waits instead of buffering more.
+ * <p>
+ * The object only appears once {@link #complete()} returns; an object smaller than one part is sent
+ * with a single PUT instead. Closing the stream without completing it aborts the upload, so a failed
+ * message leaves neither an object nor stored parts behind.
+ */
+final class S3MultipartOutputStream extends OutputStream {
+
+	private static final String CONTENT_TYPE = "message/rfc822";
+
+	private final S3Client client;
+	private final String bucket;
+	private final String key;
+	private final int partSize;
+	private final ExecutorService transfers;
+	private final Semaphore inFlight;
+
+	private byte[] buf;
+	private int count;
+	private String uploadId;
+	private final List<Part> parts = new ArrayList<>();
+	private boolean completed;
+
+	/**
+	 * A part being uploaded and the {@code inFlight} permit it holds: released once, by the task when it
+	 * ends or by {@link #close()} when the task was cancelled before it could run.
+	 */
+	private record Part(Future<CompletedPart> upload, AtomicBoolean holding) {}
+
+	S3MultipartOutputStream(S3Client client, String bucket, String key, int partSize, ExecutorService transfers,
+			Semaphore inFlight) {
+		this.client = client;
+		this.bucket = bucket;
+		this.key = key;
+		this.partSize = partSize;
+		this.transfers = transfers;
+		this.inFlight = inFlight;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (buf == null) {
+			buf = new byte[partSize];
+		}
+		buf[count++] = (byte) b;
+		if (count == partSize) {
+			uploadPart();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (buf == null) {
+				buf = new byte[partSize];
+			}
+			int n = Math.min(len, partSize - count);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == partSize) {
+				uploadPart();
+			}
+		}
+	}
+
+	/**
+	 * Hands the buffer over to an upload task; blocks while {@code inFlight} has no permit left.
+	 */
+	private void uploadPart() throws IOException {
+		if (uploadId == null) {
+			uploadId = client.createMultipartUpload(b -> b.bucket(bucket).key(key).contentType(CONTENT_TYPE)).uploadId();
+		}
+		for (Part part : parts) {
+			if (part.upload().isDone()) {
+				// Fail fast rather than upload the rest of a message that cannot complete
+				get(part.upload());
+			}
+		}
+		byte[] data = buf;
+		int len = count;
+		int number = parts.size() + 1;
+		buf = null;
+		count = 0;
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted uploading " + key);
+		}
+		AtomicBoolean holding = new AtomicBoolean(true);
+		Future<CompletedPart> upload;
+		try {
+			upload = transfers.submit(() -> {
+				try {
+					UploadPartResponse r = client.uploadPart(
+							b -> b.bucket(bucket).key(key).uploadId(uploadId).partNumber(number).contentLength((long) len),
+							body(data, len));
+					return CompletedPart.builder().partNumber(number).eTag(r.eTag()).build();
+				} finally {
+					release(holding);
+				}
+			});
+		} catch (RuntimeException e) {
+			release(holding);
+			throw e;
+		}
+		parts.add(new Part(upload, holding));
+	}
+
+	/**
+	 * Uploads what is left and makes the object visible under its key.
+	 */
+	void complete() throws IOException {
+		if (uploadId == null) {
+			byte[] data = buf == null ? new byte[0] : buf;
+			int len = count;
+			client.putObject(b -> b.bucket(bucket).key(key).contentType(CONTENT_TYPE).contentLength((long) len),
+					body(data, len));
+		} else {
+			if (count > 0) {
+				uploadPart();
+			}
+			List<CompletedPart> done = new ArrayList<>(parts.size());
+			for (Part part : parts) {
+				done.add(get(part.upload()));
+			}
+			client.completeMultipartUpload(b -> b.bucket(bucket).key(key).uploadId(uploadId)
+					.multipartUpload(m -> m.parts(done)));
+		}
+		completed = true;
+		buf = null;
+	}
+
+	@Override
+	public void close() {
+		buf = null;
+		if (completed || uploadId == null) {
+			return;
+		}
+		for (Part part : parts) {
+			// A task cancelled before it started never reaches its finally
+			if (part.upload().cancel(true)) {
+				release(part.holding());
+			}
+		}
+		try {
+			client.abortMultipartUpload(b -> b.bucket(bucket).key(key).uploadId(uploadId));
+		} catch (SdkException e) {
+			System.err.println("Failed to abort upload of " + key + ": " + e.getMessage());
+		}
+		uploadId = null;
+	}
+
+	private void release(AtomicBoolean holding) {
+		if (holding.compareAndSet(true, false)) {
+			inFlight.release();
+		}
+	}
+
+	/** A request body over {@code len} bytes of {@code data}, without copying them (and replayable on retry). */
+	private static RequestBody body(byte[] data, int len) {
+		return RequestBody.fromContentProvider(() -> new ByteArrayInputStream(data, 0, len), len, CONTENT_TYPE);
+	}
+
+	/**
+	 * Waits for {@code transfer}; its failure is rethrown as an {@link IOException}.
+	 */
+	static <V> V get(Future<V> transfer) throws IOException {
+		try {
+			return transfer.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a transfer");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException cause) {
+				throw cause;
+			}
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+}
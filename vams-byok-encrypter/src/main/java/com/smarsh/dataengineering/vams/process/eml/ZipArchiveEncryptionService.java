@@ -0,0 +1,140 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.util.SharedByteArrayInputStream;
+import jakarta.mail.util.SharedFileInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+/**
+ * Archive mode: encrypts the .eml entries of every .zip batch in the input folder straight into a zip
+ * of the same name in the output folder, without extracting the batch to disk.
+ * <p>
+ * Entries keep their order, names and timestamps. Everything that is not an .eml (e.g. the .mf
+ * manifests) is copied as raw compressed bytes, without inflating and deflating it again. An .eml
+ * entry is held in memory while it is encrypted when it is no larger than
+ * {@code telemessage.archive.in-memory-entry-limit}, otherwise it is spooled to a temp file, so memory
+ * per worker stays bounded; the raw engine reads entries straight from the archive. With
+ * {@code telemessage.parallel.enabled} several archives are processed at once; entries within one
+ * archive are processed in order. A batch only appears under its final name once it is complete.
+ */
+@Service
+public class ZipArchiveEncryptionService {
+
+	private final TelemessageProperties props;
+	private final EmlEncryptionService emlService;
+
+	public ZipArchiveEncryptionService(TelemessageProperties props, EmlEncryptionService emlService) {
+		this.props = props;
+		this.emlService = emlService;
+	}
+
+	public RunSummary processAllArchives() throws Exception {
+		Path inDir = Path.of(props.getInputFolder());
+		Path outDir = Path.of(props.getOutputFolder());
+		Files.createDirectories(outDir);
+
+		if (!Files.isDirectory(inDir)) {
+			throw new IllegalArgumentException("Input folder is not a directory: " + inDir);
+		}
+
+		RunSummary summary = new RunSummary();
+		InputScan scan = new InputScan(inDir, ".zip", outDir, props.getScan());
+		try (Checkpoint checkpoint = Checkpoint.open(inDir, outDir, props);
+			 Stream<Path> inputs = scan.open()) {
+			emlService.forEachInput(inputs, "zip-encrypt-", p -> processFile(p, scan.outputFor(p, outDir), checkpoint, summary));
+		}
+		summary.finish();
+
+		System.out.println(summary);
+		emlService.reportKeyPool();
+		return summary;
+	}
+
+	private void processFile(Path input, Path output, Checkpoint checkpoint, RunSummary summary) {
+		BasicFileAttributes attrs = null;
+		try {
+			attrs = Files.readAttributes(input, BasicFileAttributes.class);
+			if (checkpoint.isDone(input, attrs, output)) {
+				summary.recordSkipped();
+				return;
+			}
+			EmlEncryptionService.writeAtomically(output, tmp -> processArchive(input, tmp));
+			checkpoint.record(input, attrs, Checkpoint.Status.DONE);
+			summary.recordSuccess();
+		} catch (Exception e) {
+			System.err.println("Failed processing " + input + ": " + e.getMessage());
+			e.printStackTrace(System.err);
+			emlService.getMetrics().failure();
+			checkpoint.record(input, attrs, Checkpoint.Status.FAILED);
+			summary.recordFailure(input, e);
+		}
+	}
+
+	void processArchive(Path inputZip, Path outputZip) throws Exception {
+		try (ZipFile zip = ZipFile.builder().setPath(inputZip).get();
+			 ZipArchiveOutputStream out = new ZipArchiveOutputStream(outputZip)) {
+			for (ZipArchiveEntry entry : Collections.list(zip.getEntriesInPhysicalOrder())) {
+				if (entry.isDirectory() || !entry.getName().toLowerCase(Locale.ROOT).endsWith(".eml")) {
+					try (InputStream raw = zip.getRawInputStream(entry)) {
+						out.addRawArchiveEntry(entry, raw);
+					}
+					continue;
+				}
+
+				ZipArchiveEntry encrypted = new ZipArchiveEntry(entry.getName());
+				encrypted.setTime(entry.getTime());
+				encrypted.setMethod(entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED);
+				out.putArchiveEntry(encrypted);
+				try (InputStream in = zip.getInputStream(entry)) {
+					encryptEntry(in, entry.getSize(), out);
+				} catch (Exception e) {
+					throw new IllegalStateException("Failed encrypting entry " + entry.getName() + ": " + e.getMessage(), e);
+				}
+				out.closeArchiveEntry();
+			}
+		}
+	}
+
+	private void encryptEntry(InputStream in, long size, OutputStream zipOut) throws Exception {
+		OutputStream os = new BufferedOutputStream(StreamUtils.nonClosing(zipOut), CryptoService.STREAM_CHUNK_SIZE);
+
+		if (props.getEngine() == TelemessageProperties.Engine.RAW) {
+			// Single forward pass: straight from the entry, never buffered or spooled
+			emlService.encryptMessage(in, size, os);
+			return;
+		}
+
+		if (size >= 0 && size <= props.getArchive().getInMemoryEntryLimit()) {
+			emlService.encryptMessage(new SharedByteArrayInputStream(in.readNBytes((int) size)), size, os);
+			return;
+		}
+
+		Path spool = Files.createTempFile("eml-spool-", ".eml");
+		try {
+			Files.copy(in, spool, StandardCopyOption.REPLACE_EXISTING);
+			try (SharedFileInputStream is = new SharedFileInputStream(spool.toFile(), CryptoService.STREAM_CHUNK_SIZE)) {
+				emlService.encryptMessage(is, Files.size(spool), os);
+			}
+		} finally {
+			Files.deleteIfExists(spool);
+		}
+	}
+}
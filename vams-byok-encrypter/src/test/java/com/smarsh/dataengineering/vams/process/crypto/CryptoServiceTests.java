@@ -0,0 +1,128 @@
+package com.smarsh.dataengineering.vams.process.crypto;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CryptoServiceTests {
+
+	private final CryptoService crypto = new CryptoService();
+
+	@ParameterizedTest
+	@ValueSource(ints = {0, 1, 15, CryptoService.STREAM_CHUNK_SIZE - 1, CryptoService.STREAM_CHUNK_SIZE + 17, 3 * CryptoService.STREAM_CHUNK_SIZE})
+	void streamingEncryptionMatchesArrayEncryption(int size) throws Exception {
+		byte[] plain = new byte[size];
+		new Random(size).nextBytes(plain);
+		SecretKey key = crypto.generateAes256Key();
+		byte[] iv = crypto.generateIv();
+
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		crypto.encryptAesCbc(new ByteArrayInputStream(plain), streamed, key, iv);
+
+		assertThat(streamed.toByteArray()).isEqualTo(crypto.encryptAesCbc(plain, key, iv));
+		assertThat(crypto.decryptAesCbc(streamed.toByteArray(), key, iv)).isEqualTo(plain);
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {0, 1, 15, 16, 17, CryptoService.STREAM_CHUNK_SIZE - 16, CryptoService.STREAM_CHUNK_SIZE + 17, 3 * CryptoService.STREAM_CHUNK_SIZE})
+	void streamingDecryptionRestoresThePlaintextAndChecksTheTag(int size) throws Exception {
+		byte[] plain = new byte[size];
+		new Random(size).nextBytes(plain);
+		SecretKey key = crypto.generateAes256Key();
+		byte[] iv = crypto.generateIv();
+		byte[] ciphertext = crypto.encryptAesCbc(plain, key, iv);
+
+		ByteArrayOutputStream restored = new ByteArrayOutputStream();
+		// A stream that returns short reads, so the tag straddles reads
+		crypto.decryptAesCbc(new ByteArrayInputStream(ciphertext) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 7919));
+			}
+		}, restored, key, iv);
+		assertThat(restored.toByteArray()).isEqualTo(plain);
+
+		for (int flip : new int[] {0, ciphertext.length - 1}) {
+			byte[] tampered = ciphertext.clone();
+			tampered[flip] ^= 1;
+			assertThatThrownBy(() -> crypto.decryptAesCbc(new ByteArrayInputStream(tampered), new ByteArrayOutputStream(), key, iv))
+					.isInstanceOf(AEADBadTagException.class);
+		}
+		assertThatThrownBy(() -> crypto.decryptAesCbc(new ByteArrayInputStream(new byte[5]), new ByteArrayOutputStream(), key, iv))
+				.isInstanceOf(AEADBadTagException.class);
+	}
+
+	@Test
+	void everyLeafOfAMessageCanBeEncryptedWithTheSameKeyAndIv() throws Exception {
+		SecretKey key = crypto.generateAes256Key();
+		byte[] iv = crypto.generateIv();
+		List<byte[]> leaves = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			leaves.add(("leaf " + i).getBytes(StandardCharsets.UTF_8));
+		}
+
+		List<byte[]> batch = crypto.encryptAesCbc(leaves, key, iv);
+
+		for (int i = 0; i < leaves.size(); i++) {
+			assertThat(crypto.encryptAesCbc(leaves.get(i), key, iv)).isEqualTo(batch.get(i));
+			assertThat(crypto.decryptAesCbc(batch.get(i), key, iv)).isEqualTo(leaves.get(i));
+		}
+	}
+
+	@Test
+	void batchKeyWrappingRoundTrips() throws Exception {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(2048);
+		KeyPair kp = kpg.generateKeyPair();
+
+		List<CryptoService.AesKeyAndIv> keys = crypto.generateAesKeysAndIvs(8);
+		List<String> headers = crypto.encryptAesKeysWithRsaV2HeaderValues(keys, kp.getPublic());
+
+		assertThat(headers).hasSize(keys.size()).doesNotHaveDuplicates();
+		for (int i = 0; i < keys.size(); i++) {
+			CryptoService.AesKeyAndIv unwrapped = crypto.decryptAesKeyAndIvFromRsaV2HeaderValue(headers.get(i), kp.getPrivate());
+			assertThat(unwrapped.key.getEncoded()).isEqualTo(keys.get(i).key.getEncoded());
+			assertThat(unwrapped.iv).isEqualTo(keys.get(i).iv);
+		}
+	}
+
+	@Test
+	void concurrentUseProducesDecryptableOutput() throws Exception {
+		try (ExecutorService executor = Executors.newFixedThreadPool(8)) {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int t = 0; t < 64; t++) {
+				results.add(executor.submit(() -> {
+					byte[] plain = new byte[10_000];
+					new Random().nextBytes(plain);
+					SecretKey key = crypto.generateAes256Key();
+					byte[] iv = crypto.generateIv();
+					byte[] first = crypto.encryptAesCbc(plain, key, iv);
+					byte[] second = crypto.encryptAesCbc(plain, key, iv);
+					return Arrays.equals(first, second)
+							&& Arrays.equals(crypto.decryptAesCbc(first, key, iv), plain);
+				}));
+			}
+			for (Future<Boolean> r : results) {
+				assertThat(r.get()).isTrue();
+			}
+		}
+	}
+}
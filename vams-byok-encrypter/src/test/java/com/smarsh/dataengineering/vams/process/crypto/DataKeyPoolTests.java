@@ -0,0 +1,53 @@
+package com.smarsh.dataengineering.vams.process.crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DataKeyPoolTests {
+
+	private final CryptoService crypto = new CryptoService();
+
+	@Test
+	void everyKeyIsHandedOutOnceAndUnwrapsFromItsHeader() throws Exception {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(2048);
+		KeyPair kp = kpg.generateKeyPair();
+
+		List<DataKeyPool.DataKey> keys = new ArrayList<>();
+		try (DataKeyPool pool = new DataKeyPool(crypto, kp.getPublic(), 8, 2);
+			 ExecutorService workers = Executors.newFixedThreadPool(4)) {
+			List<Future<DataKeyPool.DataKey>> futures = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				futures.add(workers.submit(pool::take));
+			}
+			for (Future<DataKeyPool.DataKey> f : futures) {
+				keys.add(f.get());
+			}
+			assertThat(pool.getTaken()).isEqualTo(200);
+			assertThat(pool.getStarved()).isBetween(0L, 200L);
+		}
+
+		Set<String> seenKeys = new HashSet<>();
+		Set<String> seenIvs = new HashSet<>();
+		for (DataKeyPool.DataKey k : keys) {
+			assertThat(seenKeys.add(HexFormat.of().formatHex(k.key().getEncoded()))).isTrue();
+			assertThat(seenIvs.add(HexFormat.of().formatHex(k.iv()))).isTrue();
+
+			CryptoService.AesKeyAndIv unwrapped = crypto.decryptAesKeyAndIvFromRsaV2HeaderValue(k.headerValue(), kp.getPrivate());
+			assertThat(unwrapped.key.getEncoded()).isEqualTo(k.key().getEncoded());
+			assertThat(unwrapped.iv).isEqualTo(k.iv());
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CorpusProfileServiceTests {
+
+	@TempDir
+	Path work;
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void dryRunReportsTheCorpusShapeAndWritesNothingElse() throws Exception {
+		Path in = work.resolve("in");
+		Path out = work.resolve("out");
+		EmlTestSupport.writeSamples(in);
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+		props.getParallel().setEnabled(true);
+		props.getParallel().setMaxConcurrency(2);
+		EmlEncryptionService emlService = new EmlEncryptionService(props, new CryptoService());
+		RunSummary summary = new CorpusProfileService(props, new CryptoService(), emlService).profile();
+
+		assertThat(summary.getSucceeded()).isEqualTo(3);
+		try (var files = Files.list(out)) {
+			assertThat(files.map(p -> p.getFileName().toString())).containsExactly(CorpusProfile.FILE_NAME);
+		}
+
+		Map<String, Object> report = new ObjectMapper().readValue(out.resolve(CorpusProfile.FILE_NAME).toFile(), Map.class);
+		long bytes = Files.size(in.resolve("plain.eml")) + Files.size(in.resolve("mixed.eml")) + Files.size(in.resolve("nested.eml"));
+		// plain: 1 leaf at depth 0; mixed: 2 leaves at depth 1; nested: 3 leaves, 2 of them at depth 2
+		assertThat(report).containsEntry("messages", 3).containsEntry("leaves", 6).containsEntry("attachments", 2);
+		assertThat(((Number) report.get("bytes")).longValue()).isEqualTo(bytes);
+		assertThat((Map<String, Object>) report.get("leafCount")).containsEntry("1", 1).containsEntry("2", 1).containsEntry("3-4", 1);
+		assertThat((Map<String, Object>) report.get("depth")).containsEntry("0", 1).containsEntry("1", 1).containsEntry("2", 1);
+		assertThat(((Map<String, Number>) report.get("messageSize")).values().stream().mapToLong(Number::longValue).sum()).isEqualTo(3);
+
+		Map<String, Object> estimate = (Map<String, Object>) report.get("estimate");
+		assertThat(estimate).containsEntry("calibrationMessages", 3).containsEntry("workers", 2);
+		assertThat(((Number) estimate.get("wallSeconds")).doubleValue()).isPositive();
+		assertThat(((Number) estimate.get("peakHeapBytes")).longValue()).isPositive();
+	}
+}
@@ -0,0 +1,140 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties.Engine;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EmlDecryptionServiceTests {
+
+	@TempDir
+	Path work;
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void decryptionRestoresTheOriginalPayloads(Engine engine) throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+		RawMimeRewriterTests.writeEdgeCases(in);
+		for (Path eml : EmlTestSupport.listInputs(in, ".eml")) {
+			String lf = Files.readString(eml, StandardCharsets.ISO_8859_1);
+			Files.writeString(in.resolve("crlf-" + eml.getFileName()), lf.replace("\n", "\r\n"), StandardCharsets.ISO_8859_1);
+		}
+
+		TelemessageProperties encrypt = EmlTestSupport.properties(work, in, work.resolve("encrypted"));
+		encrypt.setEngine(engine);
+		assertThat(new EmlEncryptionService(encrypt, new CryptoService()).processAllEmls().getFailed()).isZero();
+
+		TelemessageProperties decrypt = EmlTestSupport.properties(work, work.resolve("encrypted"), work.resolve("decrypted"));
+		decrypt.getParallel().setEnabled(true);
+		RunSummary summary = decryptionService(decrypt).processAllEmls();
+		assertThat(summary.getFailed()).isZero();
+
+		for (Path source : EmlTestSupport.listInputs(in, ".eml")) {
+			Path restored = work.resolve("decrypted").resolve(source.getFileName());
+			assertThat(EmlTestSupport.leafPayloads(restored))
+					.as(source.getFileName().toString())
+					.containsExactlyElementsOf(EmlTestSupport.leafPayloads(source));
+			MimeMessage msg = EmlTestSupport.parse(restored);
+			assertThat(msg.getHeader("X-TELEMESSAGE-ENC-DATAKEY")).isNull();
+			assertThat(msg.getHeader("X-TELEMESSAGE-ENC-KEY-ID")).isNull();
+			assertThat(msg.getSubject()).isEqualTo(EmlTestSupport.parse(source).getSubject());
+		}
+	}
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	@SuppressWarnings("unchecked")
+	void passthroughLeavesAreCopiedUnchangedAndRestored(Engine engine) throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+		Path encrypted = work.resolve("encrypted");
+		TelemessageProperties encrypt = EmlTestSupport.properties(work, in, encrypted);
+		encrypt.setEngine(engine);
+		encrypt.getPassthrough().add(rule("attachments", "application/pdf", "attachment", -1));
+		encrypt.getPassthrough().add(rule("stub", "text/plain", null, 64));
+		EncryptionMetrics metrics = new EncryptionMetrics();
+		RunSummary encrypted1 = new EmlEncryptionService(encrypt, new CryptoService(), metrics).processAllEmls();
+		assertThat(encrypted1.getFailed()).isZero();
+
+		// mixed: both leaves; nested: the short text/plain only; plain: the whole (short) message
+		Map<String, Object> passthrough = (Map<String, Object>) metrics.runSummary(encrypted1).get("passthrough");
+		assertThat((Map<String, Object>) passthrough.get("attachments")).containsEntry("parts", 1L);
+		assertThat((Map<String, Object>) passthrough.get("stub")).containsEntry("parts", 3L);
+		String source = Files.readString(in.resolve("mixed.eml")).replace("\r\n", "\n");
+		String pdfBody = source.substring(source.indexOf("base64\n\n") + 8, source.indexOf("\n--b1--"));
+		String mixed = Files.readString(encrypted.resolve("mixed.eml"));
+		assertThat(mixed.replace("\r\n", "\n"))
+				.contains("X-TELEMESSAGE-ENC-PASSTHROUGH: attachments")
+				.contains(pdfBody)
+				.contains("See attached =E2=9C=93");
+		assertThat(Files.readString(encrypted.resolve("nested.eml"))).doesNotContain("<html>");
+		for (String name : List.of("mixed.eml", "nested.eml", "plain.eml")) {
+			assertThat(EmlTestSupport.decryptedLeafPayloads(encrypted.resolve(name), encrypt))
+					.as(name)
+					.containsExactlyElementsOf(EmlTestSupport.leafPayloads(in.resolve(name)));
+		}
+
+		TelemessageProperties decrypt = EmlTestSupport.properties(work, encrypted, work.resolve("decrypted"));
+		assertThat(decryptionService(decrypt).processAllEmls().getFailed()).isZero();
+		for (String name : List.of("mixed.eml", "nested.eml", "plain.eml")) {
+			Path restored = work.resolve("decrypted").resolve(name);
+			assertThat(EmlTestSupport.leafPayloads(restored))
+					.as(name)
+					.containsExactlyElementsOf(EmlTestSupport.leafPayloads(in.resolve(name)));
+			assertThat(Files.readString(restored)).doesNotContain("X-TELEMESSAGE");
+		}
+	}
+
+	private static TelemessageProperties.PassthroughRule rule(String name, String contentType, String disposition,
+			long maxSize) {
+		TelemessageProperties.PassthroughRule rule = new TelemessageProperties.PassthroughRule();
+		rule.setName(name);
+		rule.setContentType(contentType);
+		rule.setDisposition(disposition);
+		rule.setMaxSize(maxSize);
+		return rule;
+	}
+
+	@Test
+	void tamperedCiphertextLeavesNoOutput() throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+		TelemessageProperties encrypt = EmlTestSupport.properties(work, in, work.resolve("encrypted"));
+		new EmlEncryptionService(encrypt, new CryptoService()).processAllEmls();
+
+		Path mixed = work.resolve("encrypted/mixed.eml");
+		String eml = Files.readString(mixed, StandardCharsets.ISO_8859_1);
+		// A character in the second line of the attachment's Base64
+		int headers = eml.indexOf("Content-Type: application/pdf");
+		int at = eml.indexOf("\r\n\r\n", headers) + 4;
+		at = eml.indexOf('\n', at) + 10;
+		char c = eml.charAt(at);
+		Files.writeString(mixed, eml.substring(0, at) + (c == 'A' ? 'B' : 'A') + eml.substring(at + 1), StandardCharsets.ISO_8859_1);
+
+		TelemessageProperties decrypt = EmlTestSupport.properties(work, work.resolve("encrypted"), work.resolve("decrypted"));
+		RunSummary summary = decryptionService(decrypt).processAllEmls();
+
+		assertThat(summary.getSucceeded()).isEqualTo(2);
+		assertThat(summary.getFailedInputs()).containsExactly(mixed.toString());
+		assertThat(work.resolve("decrypted/mixed.eml")).doesNotExist();
+		assertThat(work.resolve("decrypted/mixed.eml.part")).doesNotExist();
+	}
+
+	private static EmlDecryptionService decryptionService(TelemessageProperties props) throws Exception {
+		return new EmlDecryptionService(props, new CryptoService(), new EmlEncryptionService(props, new CryptoService()));
+	}
+}
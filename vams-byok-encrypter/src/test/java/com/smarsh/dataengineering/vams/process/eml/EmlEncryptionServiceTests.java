@@ -0,0 +1,451 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.simple.SimpleConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.api.io.TempDir;
+import jakarta.mail.util.SharedFileInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+import com.smarsh.dataengineering.vams.process.crypto.RsaKeyLoader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class EmlEncryptionServiceTests {
+
+	private static final List<String> SAMPLES = List.of("mixed.eml", "nested.eml", "plain.eml");
+
+	@TempDir
+	Path work;
+
+	@Test
+	void parallelRunMatchesSequentialRunApartFromDataKey() throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+
+		TelemessageProperties sequential = EmlTestSupport.properties(work, in, work.resolve("sequential"));
+		RunSummary seqSummary = new EmlEncryptionService(sequential, new CryptoService()).processAllEmls();
+
+		TelemessageProperties parallel = EmlTestSupport.properties(work, in, work.resolve("parallel"));
+		parallel.getParallel().setEnabled(true);
+		parallel.getParallel().setMaxConcurrency(4);
+		parallel.getKeyPool().setEnabled(true);
+		RunSummary parSummary;
+		try (EmlEncryptionService service = new EmlEncryptionService(parallel, new CryptoService())) {
+			parSummary = service.processAllEmls();
+		}
+
+		assertThat(seqSummary.getSucceeded()).isEqualTo(SAMPLES.size());
+		assertThat(parSummary.getSucceeded()).isEqualTo(SAMPLES.size());
+
+		for (String name : SAMPLES) {
+			Path seqOut = work.resolve("sequential").resolve(name);
+			Path parOut = work.resolve("parallel").resolve(name);
+
+			assertThat(EmlTestSupport.keyIndependentView(parOut, parallel))
+					.as(name)
+					.isEqualTo(EmlTestSupport.keyIndependentView(seqOut, sequential));
+			assertThat(EmlTestSupport.decryptedLeafPayloads(parOut, parallel))
+					.as(name)
+					.containsExactlyElementsOf(EmlTestSupport.leafPayloads(in.resolve(name)));
+		}
+	}
+
+	@ParameterizedTest
+	@EnumSource(TelemessageProperties.InputMode.class)
+	void everyInputModeEncryptsTheSameMessages(TelemessageProperties.InputMode mode) throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+
+		TelemessageProperties reference = EmlTestSupport.properties(work, in, work.resolve("reference"));
+		new EmlEncryptionService(reference, new CryptoService()).processAllEmls();
+
+		for (TelemessageProperties.Engine engine : TelemessageProperties.Engine.values()) {
+			Path out = work.resolve(engine.name());
+			TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+			props.setEngine(engine);
+			props.setInputMode(mode);
+			props.getParallel().setEnabled(true);
+			props.getParallel().setMaxConcurrency(2);
+			assertThat(new EmlEncryptionService(props, new CryptoService()).processAllEmls().getSucceeded())
+					.isEqualTo(SAMPLES.size());
+
+			for (String name : SAMPLES) {
+				assertThat(EmlTestSupport.decryptedLeafPayloads(out.resolve(name), props))
+						.as(engine + " " + name)
+						.containsExactlyElementsOf(EmlTestSupport.leafPayloads(in.resolve(name)));
+				if (engine == TelemessageProperties.Engine.DOM) {
+					assertThat(EmlTestSupport.keyIndependentView(out.resolve(name), props))
+							.as(name)
+							.isEqualTo(EmlTestSupport.keyIndependentView(work.resolve("reference").resolve(name), reference));
+				}
+			}
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void largeMessageLeavesAreEncryptedConcurrentlyInOrder() throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+		Random random = new Random(7);
+		byte[] audio = new byte[300_000];
+		byte[] video = new byte[100_000];
+		random.nextBytes(audio);
+		random.nextBytes(video);
+		// Two leaves big enough to be prepared in temp files, two small enough for memory; the
+		// message/rfc822 leaf is written without transfer encoding either way
+		Files.writeString(in.resolve("recording.eml"), """
+				From: alice@example.com
+				Subject: recording
+				MIME-Version: 1.0
+				Content-Type: multipart/mixed; boundary="b1"
+
+				--b1
+				Content-Type: text/plain; charset=UTF-8
+
+				Call recording attached
+				--b1
+				Content-Type: audio/wav; name="call.wav"
+				Content-Disposition: attachment; filename="call.wav"
+				Content-Transfer-Encoding: base64
+
+				%s
+				--b1
+				Content-Type: video/mp4; name="screen.mp4"
+				Content-Disposition: attachment; filename="screen.mp4"
+				Content-Transfer-Encoding: base64
+
+				%s
+				--b1
+				Content-Type: message/rfc822
+
+				From: bob@example.com
+				Subject: forwarded
+
+				Forwarded body
+				--b1--
+				""".formatted(Base64.getMimeEncoder().encodeToString(audio), Base64.getMimeEncoder().encodeToString(video)));
+		List<String> names = List.of("mixed.eml", "nested.eml", "plain.eml", "recording.eml");
+
+		TelemessageProperties reference = EmlTestSupport.properties(work, in, work.resolve("reference"));
+		new EmlEncryptionService(reference, new CryptoService()).processAllEmls();
+
+		Path out = work.resolve("out");
+		TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+		props.getParallel().setLargeMessageThreshold(0);
+		props.getParallel().setMaxConcurrency(3);
+		EncryptionMetrics metrics = new EncryptionMetrics();
+		RunSummary summary;
+		try (EmlEncryptionService service = new EmlEncryptionService(props, new CryptoService(), metrics)) {
+			summary = service.processAllEmls();
+		}
+
+		assertThat(summary.getSucceeded()).isEqualTo(names.size());
+		for (String name : names) {
+			assertThat(EmlTestSupport.keyIndependentView(out.resolve(name), props))
+					.as(name)
+					.isEqualTo(EmlTestSupport.keyIndependentView(work.resolve("reference").resolve(name), reference));
+		}
+		assertThat(EmlTestSupport.decryptedLeafPayloads(out.resolve("recording.eml"), props).subList(1, 3))
+				.containsExactly(audio, video);
+		Map<String, Object> json = new ObjectMapper().readValue(metrics.writeRunSummary(out, props.getScan(), summary).toFile(), Map.class);
+		// plain.eml has a single leaf, which is left to the write
+		assertThat(((Map<String, Map<String, Object>>) json.get("stages")).get("prepare")).containsEntry("count", 3);
+		// Every leaf, message/rfc822 included, decrypts with the raw rewriter too
+		try (InputStream encrypted = Files.newInputStream(out.resolve("recording.eml"))) {
+			assertThat(new RawMimeRewriter(new CryptoService()).restore(encrypted, OutputStream.nullOutputStream(),
+					RsaKeyLoader.loadPrivateKey(Path.of(props.getRsa().getPrivateKeyPath())),
+					EmlEncryptionService.HDR_DATAKEY, List.of())).isEqualTo(4);
+		}
+	}
+
+	@Test
+	void mappedInputCapsLiveMappingsAndResetsOnlyToAMark() throws Exception {
+		Path file = Files.writeString(work.resolve("small.eml"), "Subject: mapped\r\n\r\nbody\r\n");
+		try (InputStream in = MappedSharedInputStream.open(file)) {
+			assertThat(in).isInstanceOf(MappedSharedInputStream.class);
+			assertThatThrownBy(in::reset).isInstanceOf(IOException.class);
+		}
+
+		// Mappings left by earlier tests may be released meanwhile, so open until the cap is hit
+		List<InputStream> held = new ArrayList<>();
+		InputStream fallback = null;
+		for (int i = 0; i <= 2 * MappedSharedInputStream.MAX_LIVE_MAPPINGS && fallback == null; i++) {
+			InputStream in = MappedSharedInputStream.open(file);
+			if (in instanceof MappedSharedInputStream) {
+				held.add(in);
+			} else {
+				fallback = in;
+			}
+		}
+		assertThat(fallback).isInstanceOf(SharedFileInputStream.class);
+		assertThat(held).hasSizeLessThanOrEqualTo(MappedSharedInputStream.MAX_LIVE_MAPPINGS);
+		fallback.close();
+	}
+
+	@Test
+	void heapBudgetBoundsConcurrentWorkLargestFirst() throws Exception {
+		Path in = work.resolve("in");
+		Files.createDirectories(in);
+		for (int i = 0; i < 3; i++) {
+			Files.write(in.resolve("big-" + i + ".eml"), new byte[8_000 + i]);
+		}
+		for (int i = 0; i < 12; i++) {
+			Files.write(in.resolve("small-" + i + ".eml"), new byte[100]);
+		}
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, work.resolve("out"));
+		props.getParallel().setEnabled(true);
+		props.getParallel().setMaxConcurrency(4);
+		props.getParallel().setLargestFirst(true);
+		props.getParallel().setHeapBudget(10_000);
+		AtomicLong held = new AtomicLong();
+		AtomicLong maxHeld = new AtomicLong();
+		List<String> started = new CopyOnWriteArrayList<>();
+		try (Stream<Path> inputs = Files.list(in)) {
+			new EmlEncryptionService(props, new CryptoService()).forEachInput(inputs, "test-", p -> p.toFile().length(), p -> {
+				try {
+					long cost = p.toFile().length();
+					maxHeld.accumulateAndGet(held.addAndGet(cost), Math::max);
+					started.add(p.getFileName().toString());
+					Thread.sleep(20);
+					held.addAndGet(-cost);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			});
+		}
+
+		assertThat(started).hasSize(15);
+		// Only one big input fits at a time, with small ones next to it
+		assertThat(started.stream().filter(name -> name.startsWith("big-"))).containsExactly("big-2.eml", "big-1.eml", "big-0.eml");
+		assertThat(maxHeld.get()).isLessThanOrEqualTo(10_000).isGreaterThan(8_002);
+	}
+
+	@Test
+	void messagesThatCannotFitTheHeapBudgetAreReadFileBacked() throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, work.resolve("out"));
+		props.setInputMode(TelemessageProperties.InputMode.STREAM);
+		props.getParallel().setEnabled(true);
+		props.getParallel().setMaxConcurrency(2);
+		props.getParallel().setHeapBudget(EmlEncryptionService.messageHeap(props, 1_000, false));
+		EmlEncryptionService service = new EmlEncryptionService(props, new CryptoService());
+
+		assertThat(service.spills(Files.size(in.resolve("plain.eml")))).isFalse();
+		assertThat(service.spills(Files.size(in.resolve("mixed.eml")))).isTrue();
+		assertThat(service.processAllEmls().getSucceeded()).isEqualTo(SAMPLES.size());
+		for (String name : SAMPLES) {
+			assertThat(EmlTestSupport.decryptedLeafPayloads(work.resolve("out").resolve(name), props))
+					.as(name)
+					.containsExactlyElementsOf(EmlTestSupport.leafPayloads(in.resolve(name)));
+		}
+	}
+
+	@Test
+	void failingFileDoesNotStopTheRun() throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+		Files.writeString(in.resolve("broken.eml"), """
+				From: alice@example.com
+				Content-Type: text/plain
+				Content-Transfer-Encoding: base64
+
+				A
+				""");
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, work.resolve("out"));
+		props.getParallel().setEnabled(true);
+		props.getParallel().setMaxConcurrency(2);
+		RunSummary summary = new EmlEncryptionService(props, new CryptoService()).processAllEmls();
+
+		assertThat(summary.getSucceeded()).isEqualTo(SAMPLES.size());
+		assertThat(summary.getFailedInputs()).containsExactly(in.resolve("broken.eml").toString());
+		for (String name : SAMPLES) {
+			assertThat(work.resolve("out").resolve(name)).exists();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void runSummaryReportsStageTimingsAndVolumes() throws Exception {
+		Path in = work.resolve("in");
+		Path out = work.resolve("out");
+		EmlTestSupport.writeSamples(in);
+		Files.writeString(in.resolve("broken.eml"), """
+				From: alice@example.com
+				Content-Type: text/plain
+				Content-Transfer-Encoding: base64
+
+				A
+				""");
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+		EncryptionMetrics metrics = new EncryptionMetrics();
+		RunSummary summary = new EmlEncryptionService(props, new CryptoService(), metrics).processAllEmls();
+		Path file = metrics.writeRunSummary(out, props.getScan(), summary);
+
+		Map<String, Object> json = new ObjectMapper().readValue(file.toFile(), Map.class);
+		long bytesIn = 0;
+		for (String name : SAMPLES) {
+			bytesIn += Files.size(in.resolve(name));
+		}
+		assertThat(json).containsEntry("succeeded", 3).containsEntry("failed", 1).containsEntry("failures", 1);
+		assertThat(((Number) json.get("bytesIn")).longValue()).isEqualTo(bytesIn);
+		assertThat(((Number) json.get("leafParts")).longValue()).isGreaterThanOrEqualTo(SAMPLES.size());
+		assertThat((Map<String, Object>) json.get("stages")).containsKeys("wrap", "parse", "encrypt", "save", "write");
+		assertThat((Map<String, Object>) json.get("message")).containsEntry("count", 3).containsKeys("p50Ms", "p99Ms");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void runSummaryPercentilesCoverRunsLongerThanTheRegistryWindow() {
+		MockClock clock = new MockClock();
+		SimpleMeterRegistry registry = new SimpleMeterRegistry(SimpleConfig.DEFAULT, clock);
+		EncryptionMetrics metrics = new EncryptionMetrics(registry);
+
+		metrics.message(100, 100, System.nanoTime() - TimeUnit.SECONDS.toNanos(2));
+		clock.add(Duration.ofHours(3));
+		for (int i = 0; i < 10; i++) {
+			metrics.message(100, 100, System.nanoTime());
+		}
+
+		// The registry has moved on from the slow message, the run summary has not
+		assertThat(registry.get("vams.encrypt.message").timer().max(TimeUnit.MILLISECONDS)).isLessThan(1000);
+		Map<String, Object> message = (Map<String, Object>) metrics.runSummary(new RunSummary()).get("message");
+		assertThat(message).containsEntry("count", 11L);
+		assertThat((double) message.get("maxMs")).isGreaterThanOrEqualTo(2000);
+		assertThat((double) message.get("p99Ms")).isGreaterThanOrEqualTo(1000);
+	}
+
+	@Test
+	void shardsSplitARecursiveTreeWithoutOverlap() throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+		EmlTestSupport.writeSamples(in.resolve("2024").resolve("06"));
+		// Inside the input tree, so later shards would see earlier outputs if it were not skipped
+		Path out = in.resolve("out");
+
+		int succeeded = 0;
+		for (int shard = 0; shard < 3; shard++) {
+			TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+			props.getScan().setRecursive(true);
+			props.getScan().setShardIndex(shard);
+			props.getScan().setShardCount(3);
+			props.getCheckpoint().setEnabled(true);
+			RunSummary summary = new EmlEncryptionService(props, new CryptoService()).processAllEmls();
+			assertThat(summary.getFailed()).isZero();
+			succeeded += summary.getSucceeded();
+		}
+
+		assertThat(succeeded).isEqualTo(2 * SAMPLES.size());
+		TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+		for (String name : SAMPLES) {
+			for (Path rel : List.of(Path.of(name), Path.of("2024", "06", name))) {
+				assertThat(EmlTestSupport.decryptedLeafPayloads(out.resolve(rel), props))
+						.as(rel.toString())
+						.containsExactlyElementsOf(EmlTestSupport.leafPayloads(in.resolve(rel)));
+			}
+		}
+		assertThat(out.resolve(".vams-checkpoint-0-of-3.tsv")).exists();
+		assertThat(out.resolve(Checkpoint.FILE_NAME)).doesNotExist();
+	}
+
+	@Test
+	void rerunSkipsCompletedFilesAndRetriesTheRest() throws Exception {
+		Path in = work.resolve("in");
+		Path out = work.resolve("out");
+		EmlTestSupport.writeSamples(in);
+		Path broken = in.resolve("broken.eml");
+		Files.writeString(broken, """
+				From: alice@example.com
+				Content-Type: text/plain
+				Content-Transfer-Encoding: base64
+
+				A
+				""");
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+		props.getCheckpoint().setEnabled(true);
+		RunSummary first = new EmlEncryptionService(props, new CryptoService()).processAllEmls();
+		assertThat(first.getSucceeded()).isEqualTo(SAMPLES.size());
+		assertThat(first.getFailed()).isEqualTo(1);
+		byte[] mixedOut = Files.readAllBytes(out.resolve("mixed.eml"));
+
+		// Fix the failed input, change one completed input and lose the output of another
+		Files.writeString(broken, Files.readString(broken).replace("\nA\n", "\nQUJD\n"));
+		Files.writeString(in.resolve("plain.eml"), Files.readString(in.resolve("plain.eml")) + "P.S.\n");
+		Files.delete(out.resolve("nested.eml"));
+
+		RunSummary second = new EmlEncryptionService(props, new CryptoService()).processAllEmls();
+		assertThat(second.getSucceeded()).isEqualTo(3);
+		assertThat(second.getFailed()).isZero();
+		assertThat(second.getSkipped()).isEqualTo(1);
+		assertThat(out.resolve("mixed.eml")).hasBinaryContent(mixedOut);
+		assertThat(EmlTestSupport.decryptedLeafPayloads(out.resolve("plain.eml"), props))
+				.containsExactlyElementsOf(EmlTestSupport.leafPayloads(in.resolve("plain.eml")));
+
+		RunSummary third = new EmlEncryptionService(props, new CryptoService()).processAllEmls();
+		assertThat(third.getSucceeded()).isZero();
+		assertThat(third.getSkipped()).isEqualTo(SAMPLES.size() + 1);
+		try (var files = Files.list(out)) {
+			assertThat(files.map(p -> p.getFileName().toString()))
+					.containsExactlyInAnyOrder("broken.eml", "mixed.eml", "nested.eml", "plain.eml", Checkpoint.FILE_NAME);
+		}
+	}
+
+	@Test
+	void inputChangedWhileProcessedIsNotCheckpointedAsDone() throws Exception {
+		Path in = work.resolve("in");
+		Path out = work.resolve("out");
+		EmlTestSupport.writeSamples(in);
+		Path plain = in.resolve("plain.eml");
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+		props.getCheckpoint().setEnabled(true);
+		EmlEncryptionService touching = new EmlEncryptionService(props, new CryptoService()) {
+			@Override
+			void processOne(Path inputEml, long size, Path outputEml) throws Exception {
+				super.processOne(inputEml, size, outputEml);
+				if (inputEml.equals(plain)) {
+					// A new version lands after this one was read but before the outcome is recorded
+					Files.writeString(plain, Files.readString(plain) + "P.S.\n");
+					Files.setLastModifiedTime(plain, FileTime.fromMillis(Files.getLastModifiedTime(plain).toMillis() + 60_000));
+				}
+			}
+		};
+		assertThat(touching.processAllEmls().getSucceeded()).isEqualTo(SAMPLES.size());
+
+		RunSummary rerun = new EmlEncryptionService(props, new CryptoService()).processAllEmls();
+		assertThat(rerun.getSucceeded()).isEqualTo(1);
+		assertThat(rerun.getSkipped()).isEqualTo(SAMPLES.size() - 1);
+		assertThat(EmlTestSupport.decryptedLeafPayloads(out.resolve("plain.eml"), props))
+				.containsExactlyElementsOf(EmlTestSupport.leafPayloads(plain));
+	}
+}
@@ -0,0 +1,77 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties.Engine;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EmlRekeyServiceTests {
+
+	@TempDir
+	Path work;
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void rekeyRewrapsTheDataKeyAndCopiesBodiesUnchanged(Engine engine) throws Exception {
+		Path in = work.resolve("in");
+		Path encrypted = work.resolve("encrypted");
+		Path rekeyed = work.resolve("rekeyed");
+		EmlTestSupport.writeSamples(in);
+		Path crlf = in.resolve("crlf-mixed.eml");
+		Files.writeString(crlf, Files.readString(in.resolve("mixed.eml")).replace("\n", "\r\n"), StandardCharsets.ISO_8859_1);
+
+		Path oldKeys = Files.createDirectories(work.resolve("old-keys"));
+		TelemessageProperties encrypt = EmlTestSupport.properties(oldKeys, in, encrypted);
+		encrypt.setEngine(engine);
+		assertThat(new EmlEncryptionService(encrypt, new CryptoService()).processAllEmls().getFailed()).isZero();
+
+		// The new key pair; data keys are unwrapped with the old private key
+		Path newKeys = Files.createDirectories(work.resolve("new-keys"));
+		TelemessageProperties decryptWithNewKey = EmlTestSupport.properties(newKeys, rekeyed, work.resolve("unused"));
+		TelemessageProperties rekey = EmlTestSupport.properties(oldKeys, encrypted, rekeyed);
+		rekey.getRekey().setPublicKeyPath(decryptWithNewKey.getRsa().getPublicKeyPath());
+		rekey.getRekey().setEncKeyId("NEW-KEY-ID");
+		rekey.getParallel().setEnabled(true);
+		RunSummary summary = new EmlRekeyService(rekey, new CryptoService(), new EmlEncryptionService(rekey, new CryptoService()))
+				.processAllEmls();
+		assertThat(summary.getSucceeded()).isEqualTo(4);
+
+		for (Path source : EmlTestSupport.listInputs(in, ".eml")) {
+			String name = source.getFileName().toString();
+			Path before = encrypted.resolve(name);
+			Path after = rekeyed.resolve(name);
+			assertThat(EmlTestSupport.decryptedLeafPayloads(after, decryptWithNewKey))
+					.as(name)
+					.containsExactlyElementsOf(EmlTestSupport.leafPayloads(source));
+
+			MimeMessage msg = EmlTestSupport.parse(after);
+			assertThat(msg.getHeader(EmlEncryptionService.HDR_FINGER_PRINT)).containsExactly("NEW-KEY-ID");
+			assertThat(msg.getHeader(EmlEncryptionService.HDR_DATAKEY)).hasSize(1);
+			assertThat(msg.getHeader(EmlEncryptionService.HDR_INTEGRITY)).containsExactly(EmlTestSupport.INTEGRITY);
+
+			// Everything from the blank line after the top-level header block on is the same bytes
+			assertThat(body(after)).as(name).isEqualTo(body(before));
+		}
+	}
+
+	private static byte[] body(Path eml) throws Exception {
+		byte[] bytes = Files.readAllBytes(eml);
+		for (int i = 0; i + 1 < bytes.length; i++) {
+			if (bytes[i] == '\n' && (bytes[i + 1] == '\n' || bytes[i + 1] == '\r')) {
+				return Arrays.copyOfRange(bytes, i + 1, bytes.length);
+			}
+		}
+		return new byte[0];
+	}
+}
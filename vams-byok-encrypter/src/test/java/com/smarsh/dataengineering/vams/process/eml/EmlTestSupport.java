@@ -0,0 +1,257 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.BodyPart;
+import jakarta.mail.Header;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+import com.smarsh.dataengineering.vams.process.crypto.RsaKeyLoader;
+
+/**
+ * Shared fixtures for encrypter tests: a throw-away RSA key pair, a handful of sample messages and
+ * a reference decryption of the produced output.
+ */
+final class EmlTestSupport {
+
+	static final String ENC_KEY_ID = "TEST-KEY-ID";
+	static final String INTEGRITY = "TEST-INTEGRITY";
+
+	private EmlTestSupport() {}
+
+	/**
+	 * Properties for a run from {@code in} to {@code out}. The key pair is generated once per
+	 * {@code workDir} and shared by every run in it.
+	 */
+	static TelemessageProperties properties(Path workDir, Path in, Path out) throws Exception {
+		Path pub = workDir.resolve("PublicKey.pem");
+		Path priv = workDir.resolve("PrivateKey.pem");
+		if (!Files.exists(pub)) {
+			KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+			kpg.initialize(2048);
+			KeyPair kp = kpg.generateKeyPair();
+			Files.writeString(pub, pem("PUBLIC KEY", kp.getPublic().getEncoded()), StandardCharsets.US_ASCII);
+			Files.writeString(priv, pem("PRIVATE KEY", kp.getPrivate().getEncoded()), StandardCharsets.US_ASCII);
+		}
+
+		TelemessageProperties props = new TelemessageProperties();
+		props.getRsa().setPublicKeyPath(pub.toString());
+		props.getRsa().setPrivateKeyPath(priv.toString());
+		props.setInputFolder(in.toString());
+		props.setOutputFolder(out.toString());
+		props.setEncKeyId(ENC_KEY_ID);
+		props.setOriginalMesageIntegrity(INTEGRITY);
+		return props;
+	}
+
+	private static String pem(String type, byte[] der) {
+		return "-----BEGIN " + type + "-----\n"
+				+ Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(der)
+				+ "\n-----END " + type + "-----\n";
+	}
+
+	/**
+	 * Regular files in {@code dir} whose name ends with {@code extension} (case-insensitive), by name.
+	 */
+	static List<Path> listInputs(Path dir, String extension) throws IOException {
+		try (Stream<Path> stream = Files.list(dir)) {
+			return stream
+					.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(extension))
+					.sorted(Comparator.comparing(p -> p.getFileName().toString()))
+					.toList();
+		}
+	}
+
+	static void writeSamples(Path in) throws Exception {
+		Files.createDirectories(in);
+		Random random = new Random(42);
+
+		Files.writeString(in.resolve("plain.eml"), """
+				From: alice@example.com
+				To: bob@example.com
+				Subject: plain
+				Message-ID: <plain@example.com>
+				Content-Type: text/plain; charset=UTF-8
+				Content-Transfer-Encoding: 7bit
+
+				Hello Bob,
+				this is a plain text message.
+				""");
+
+		Files.writeString(in.resolve("mixed.eml"), """
+				From: alice@example.com
+				To: bob@example.com
+				Subject: mixed
+				MIME-Version: 1.0
+				Content-Type: multipart/mixed; boundary="b1"
+
+				--b1
+				Content-Type: text/plain; charset=UTF-8
+				Content-Transfer-Encoding: quoted-printable
+
+				See attached =E2=9C=93
+				--b1
+				Content-Type: application/pdf; name="report.pdf"
+				Content-Disposition: attachment; filename="report.pdf"
+				Content-Transfer-Encoding: base64
+
+				%s
+				--b1--
+				""".formatted(randomBase64(random, 40_000)));
+
+		Files.writeString(in.resolve("nested.eml"), """
+				From: alice@example.com
+				To: bob@example.com
+				Subject: nested
+				MIME-Version: 1.0
+				Content-Type: multipart/related; boundary="outer"
+
+				--outer
+				Content-Type: multipart/alternative; boundary="inner"
+
+				--inner
+				Content-Type: text/plain; charset=UTF-8
+
+				plain body
+				--inner
+				Content-Type: text/html; charset=UTF-8
+
+				<html><body><img src="cid:logo"></body></html>
+				--inner--
+				--outer
+				Content-Type: image/png
+				Content-ID: <logo>
+				Content-Disposition: inline; filename="logo.png"
+				Content-Transfer-Encoding: base64
+
+				%s
+				--outer--
+				""".formatted(randomBase64(random, 5_000)));
+	}
+
+	private static String randomBase64(Random random, int size) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return Base64.getMimeEncoder().encodeToString(bytes);
+	}
+
+	static MimeMessage parse(Path eml) throws Exception {
+		try (InputStream in = Files.newInputStream(eml)) {
+			return new MimeMessage(Session.getInstance(new Properties()), in);
+		}
+	}
+
+	/**
+	 * Decoded payload of every leaf part, in document order.
+	 */
+	static List<byte[]> leafPayloads(Path eml) throws Exception {
+		List<byte[]> out = new ArrayList<>();
+		collectLeaves(parse(eml), out, null);
+		return out;
+	}
+
+	/**
+	 * Decrypted payload of every leaf part, in document order, using the data key carried in the
+	 * message's {@code X-TELEMESSAGE-ENC-DATAKEY} header. Passthrough leaves are taken as they are.
+	 */
+	static List<byte[]> decryptedLeafPayloads(Path eml, TelemessageProperties props) throws Exception {
+		MimeMessage msg = parse(eml);
+		CryptoService crypto = new CryptoService();
+		CryptoService.AesKeyAndIv keys = crypto.decryptAesKeyAndIvFromRsaV2HeaderValue(
+				msg.getHeader("X-TELEMESSAGE-ENC-DATAKEY", null),
+				RsaKeyLoader.loadPrivateKey(Path.of(props.getRsa().getPrivateKeyPath())));
+
+		List<byte[]> ciphertexts = new ArrayList<>();
+		List<String> types = new ArrayList<>();
+		collectLeaves(msg, ciphertexts, types);
+
+		List<byte[]> out = new ArrayList<>();
+		for (int i = 0; i < ciphertexts.size(); i++) {
+			byte[] ct = ciphertexts.get(i);
+			if (types.get(i) == null) {
+				out.add(ct);
+				continue;
+			}
+			if (types.get(i).startsWith("text/")) {
+				ct = Base64.getDecoder().decode(ct);
+			}
+			out.add(crypto.decryptAesCbc(ct, keys.key, keys.iv));
+		}
+		return out;
+	}
+
+	/**
+	 * Everything in the message that does not depend on the random data key or the clock: headers
+	 * (without the {@code Date} saveChanges adds), content types (boundaries are regenerated on every
+	 * write) and the decrypted leaf payloads.
+	 */
+	static String keyIndependentView(Path eml, TelemessageProperties props) throws Exception {
+		var sb = new StringBuilder();
+		describe(parse(eml), sb, "root");
+		for (byte[] payload : decryptedLeafPayloads(eml, props)) {
+			sb.append("payload: ").append(Base64.getEncoder().encodeToString(payload)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static void describe(Part part, StringBuilder sb, String path) throws Exception {
+		for (var e = part.getAllHeaders().asIterator(); e.hasNext(); ) {
+			Header h = e.next();
+			String name = h.getName().toLowerCase(Locale.ROOT);
+			if (name.equals("message-id") || name.equals("date") || name.equals("x-telemessage-enc-datakey")) continue;
+			String value = name.equals("content-type") ? withoutBoundary(h.getValue()) : h.getValue();
+			sb.append(path).append(' ').append(name).append(": ").append(value).append('\n');
+		}
+		if (part.isMimeType("multipart/*")) {
+			Multipart mp = (Multipart) part.getContent();
+			for (int i = 0; i < mp.getCount(); i++) {
+				describe(mp.getBodyPart(i), sb, path + "/" + i);
+			}
+		}
+	}
+
+	private static String withoutBoundary(String contentType) throws Exception {
+		ContentType ct = new ContentType(contentType);
+		if (ct.getParameterList() != null) {
+			ct.getParameterList().remove("boundary");
+		}
+		return ct.toString();
+	}
+
+	private static void collectLeaves(Part part, List<byte[]> out, List<String> types) throws Exception {
+		if (part.isMimeType("multipart/*")) {
+			Multipart mp = (Multipart) part.getContent();
+			for (int i = 0; i < mp.getCount(); i++) {
+				BodyPart child = mp.getBodyPart(i);
+				collectLeaves(child, out, types);
+			}
+			return;
+		}
+		try (InputStream in = part.getInputStream()) {
+			out.add(in.readAllBytes());
+		}
+		if (types != null) {
+			types.add(part.getHeader(EmlEncryptionService.HDR_PASSTHROUGH) == null ? part.getContentType() : null);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FolderWatchServiceTests {
+
+	@TempDir
+	Path work;
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void encryptsFilesAsTheyAreCompleted() throws Exception {
+		Path samples = work.resolve("samples");
+		Path in = Files.createDirectories(work.resolve("in"));
+		Path out = work.resolve("out");
+		EmlTestSupport.writeSamples(samples);
+		// Already there when the watch starts
+		Files.copy(samples.resolve("plain.eml"), in.resolve("plain.eml"));
+		Files.writeString(in.resolve("broken.eml"), """
+				From: alice@example.com
+				Content-Type: text/plain
+				Content-Transfer-Encoding: base64
+
+				A
+				""");
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+		props.getWatch().setSettleTime(Duration.ofMillis(200));
+		props.getWatch().setMinFreeBytes(0);
+		props.getWatch().setRescanInterval(Duration.ofMillis(100));
+		props.getParallel().setEnabled(true);
+		props.getParallel().setMaxConcurrency(2);
+
+		EncryptionMetrics metrics = new EncryptionMetrics();
+		FolderWatchService watch = new FolderWatchService(props, new EmlEncryptionService(props, new CryptoService(), metrics));
+		CompletableFuture<RunSummary> running = CompletableFuture.supplyAsync(() -> {
+			try {
+				return watch.run();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		awaitFile(out.resolve("plain.eml"));
+
+		// Written in two halves with a pause shorter than the settle time: must not be picked up half way
+		byte[] mixed = Files.readAllBytes(samples.resolve("mixed.eml"));
+		try (OutputStream os = Files.newOutputStream(in.resolve("mixed.eml"))) {
+			os.write(mixed, 0, mixed.length / 2);
+			os.flush();
+			Thread.sleep(100);
+			os.write(mixed, mixed.length / 2, mixed.length - mixed.length / 2);
+		}
+		// Written elsewhere and moved into place
+		Path staged = work.resolve("nested.eml");
+		Files.copy(samples.resolve("nested.eml"), staged);
+		Files.move(staged, in.resolve("nested.eml"));
+
+		awaitFile(out.resolve("mixed.eml"));
+		awaitFile(out.resolve("nested.eml"));
+		watch.close();
+		RunSummary summary = running.get(10, TimeUnit.SECONDS);
+
+		assertThat(summary.getSucceeded()).isEqualTo(3);
+		// Failed once, not retried by the rescans while unchanged, and not counted as ingested
+		assertThat(summary.getFailed()).isEqualTo(1);
+		assertThat((Map<String, Object>) metrics.runSummary(summary).get("ingestLatency")).containsEntry("count", 3L);
+		for (String name : List.of("plain.eml", "mixed.eml", "nested.eml")) {
+			assertThat(EmlTestSupport.decryptedLeafPayloads(out.resolve(name), props))
+					.as(name)
+					.containsExactlyElementsOf(EmlTestSupport.leafPayloads(samples.resolve(name)));
+		}
+	}
+
+	private static void awaitFile(Path file) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+		while (!Files.exists(file)) {
+			assertThat(System.nanoTime()).as("waiting for " + file).isLessThan(deadline);
+			Thread.sleep(20);
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Local stand-in for an S3-compatible store, for tests: objects live in memory and only the calls the
+ * encrypter makes are implemented. Listings come in small pages so pagination is exercised, and
+ * uploads of parts are counted to check how many are in flight.
+ */
+final class InMemoryS3Client implements S3Client {
+
+	/** A stored object; its bytes are never written to once stored. */
+	private static final class Stored {
+		private final byte[] data;
+		private final Instant lastModified;
+		private final String eTag;
+
+		Stored(byte[] data, Instant lastModified, String eTag) {
+			this.data = data;
+			this.lastModified = lastModified;
+			this.eTag = eTag;
+		}
+
+		byte[] data() { return data; }
+
+		Instant lastModified() { return lastModified; }
+
+		String eTag() { return eTag; }
+	}
+
+	private static final int PAGE_SIZE = 2;
+
+	private final Map<String, NavigableMap<String, Stored>> buckets = new ConcurrentHashMap<>();
+	private final Map<String, NavigableMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+	private final Set<String> failingUploads = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger partsInFlight = new AtomicInteger();
+	private final AtomicInteger maxPartsInFlight = new AtomicInteger();
+	private final AtomicInteger completedMultipartUploads = new AtomicInteger();
+	private final AtomicInteger abortedUploads = new AtomicInteger();
+	private final AtomicInteger rangedGets = new AtomicInteger();
+
+	void put(String bucket, String key, byte[] data) {
+		bucket(bucket).put(key, stored(data));
+	}
+
+	byte[] get(String bucket, String key) {
+		Stored s = bucket(bucket).get(key);
+		return s == null ? null : s.data();
+	}
+
+	Set<String> keys(String bucket) {
+		return bucket(bucket).keySet();
+	}
+
+	/** Makes every part uploaded to {@code key} fail. */
+	void failUploadsTo(String key) {
+		failingUploads.add(key);
+	}
+
+	int maxPartsInFlight() { return maxPartsInFlight.get(); }
+
+	int completedMultipartUploads() { return completedMultipartUploads.get(); }
+
+	int abortedUploads() { return abortedUploads.get(); }
+
+	int pendingUploads() { return uploads.size(); }
+
+	int rangedGets() { return rangedGets.get(); }
+
+	private NavigableMap<String, Stored> bucket(String bucket) {
+		return buckets.computeIfAbsent(bucket, b -> new ConcurrentSkipListMap<>());
+	}
+
+	private static Stored stored(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return new Stored(data, Instant.now(), "\"" + HexFormat.of().toHexDigits(crc.getValue()) + "\"");
+	}
+
+	@Override
+	public String serviceName() {
+		return "s3";
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+		String prefix = request.prefix() == null ? "" : request.prefix();
+		String delimiter = request.delimiter();
+		String token = request.continuationToken();
+		NavigableMap<String, Stored> keys = bucket(request.bucket()).tailMap(token == null ? prefix : token, token == null);
+
+		List<S3Object> contents = new ArrayList<>();
+		List<CommonPrefix> prefixes = new ArrayList<>();
+		String last = null;
+		for (Map.Entry<String, Stored> e : keys.entrySet()) {
+			String key = e.getKey();
+			if (!key.startsWith(prefix)) {
+				break;
+			}
+			if (token != null && token.endsWith("/") && key.startsWith(token)) {
+				continue;
+			}
+			if (contents.size() + prefixes.size() == PAGE_SIZE) {
+				return page(request, contents, prefixes, last);
+			}
+			int d = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+			if (d >= 0) {
+				String common = key.substring(0, d + delimiter.length());
+				if (!common.equals(last)) {
+					prefixes.add(CommonPrefix.builder().prefix(common).build());
+					last = common;
+				}
+				continue;
+			}
+			Stored s = e.getValue();
+			contents.add(S3Object.builder().key(key).size((long) s.data().length).lastModified(s.lastModified()).eTag(s.eTag()).build());
+			last = key;
+		}
+		return page(request, contents, prefixes, null);
+	}
+
+	private static ListObjectsV2Response page(ListObjectsV2Request request, List<S3Object> contents,
+			List<CommonPrefix> prefixes, String next) {
+		return ListObjectsV2Response.builder()
+				.name(request.bucket())
+				.prefix(request.prefix())
+				.contents(contents)
+				.commonPrefixes(prefixes)
+				.keyCount(contents.size() + prefixes.size())
+				.isTruncated(next != null)
+				.nextContinuationToken(next)
+				.build();
+	}
+
+	@Override
+	public <ReturnT> ReturnT getObject(GetObjectRequest request, ResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+		Stored s = bucket(request.bucket()).get(request.key());
+		if (s == null) {
+			throw NoSuchKeyException.builder().statusCode(404).message("No such key: " + request.key()).build();
+		}
+		if (request.ifMatch() != null && !request.ifMatch().equals(s.eTag())) {
+			throw (S3Exception) S3Exception.builder().statusCode(412).message("Precondition failed").build();
+		}
+		int from = 0;
+		int to = s.data().length;
+		if (request.range() != null) {
+			rangedGets.incrementAndGet();
+			String[] range = request.range().substring("bytes=".length()).split("-", -1);
+			from = Integer.parseInt(range[0]);
+			to = Math.min(to, Integer.parseInt(range[1]) + 1);
+		}
+		GetObjectResponse response = GetObjectResponse.builder()
+				.contentLength((long) (to - from))
+				.eTag(s.eTag())
+				.lastModified(s.lastModified())
+				.build();
+		try {
+			return transformer.transform(response,
+					AbortableInputStream.create(new ByteArrayInputStream(s.data(), from, to - from)));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public HeadObjectResponse headObject(HeadObjectRequest request) {
+		Stored s = bucket(request.bucket()).get(request.key());
+		if (s == null) {
+			throw NoSuchKeyException.builder().statusCode(404).message("No such key: " + request.key()).build();
+		}
+		return HeadObjectResponse.builder()
+				.contentLength((long) s.data().length)
+				.lastModified(s.lastModified())
+				.eTag(s.eTag())
+				.build();
+	}
+
+	@Override
+	public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+		Stored s = stored(read(body));
+		bucket(request.bucket()).put(request.key(), s);
+		return PutObjectResponse.builder().eTag(s.eTag()).build();
+	}
+
+	@Override
+	public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest request) {
+		String uploadId = UUID.randomUUID().toString();
+		uploads.put(uploadId, new ConcurrentSkipListMap<>());
+		return CreateMultipartUploadResponse.builder().bucket(request.bucket()).key(request.key()).uploadId(uploadId).build();
+	}
+
+	@Override
+	public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+		int now = partsInFlight.incrementAndGet();
+		maxPartsInFlight.accumulateAndGet(now, Math::max);
+		try {
+			byte[] data = read(body);
+			// Lets parts overlap, as they do over a network
+			Thread.sleep(5);
+			if (failingUploads.contains(request.key())) {
+				throw (S3Exception) S3Exception.builder().statusCode(500).message("Upload failed").build();
+			}
+			NavigableMap<Integer, byte[]> parts = uploads.get(request.uploadId());
+			if (parts == null) {
+				throw NoSuchUploadException.builder().statusCode(404).message("No such upload").build();
+			}
+			parts.put(request.partNumber(), data);
+			return UploadPartResponse.builder().eTag("\"part-" + request.partNumber() + "\"").build();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} finally {
+			partsInFlight.decrementAndGet();
+		}
+	}
+
+	@Override
+	public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest request) {
+		NavigableMap<Integer, byte[]> parts = uploads.remove(request.uploadId());
+		if (parts == null) {
+			throw NoSuchUploadException.builder().statusCode(404).message("No such upload").build();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (CompletedPart part : request.multipartUpload().parts()) {
+			out.writeBytes(parts.get(part.partNumber()));
+		}
+		bucket(request.bucket()).put(request.key(), stored(out.toByteArray()));
+		completedMultipartUploads.incrementAndGet();
+		return CompleteMultipartUploadResponse.builder().bucket(request.bucket()).key(request.key()).build();
+	}
+
+	@Override
+	public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+		uploads.remove(request.uploadId());
+		abortedUploads.incrementAndGet();
+		return AbortMultipartUploadResponse.builder().build();
+	}
+
+	private static byte[] read(RequestBody body) {
+		try (InputStream in = body.contentStreamProvider().newStream()) {
+			return in.readAllBytes();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
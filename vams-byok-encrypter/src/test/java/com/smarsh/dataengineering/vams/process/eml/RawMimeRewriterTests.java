@@ -0,0 +1,175 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import jakarta.mail.BodyPart;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimePart;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties.Engine;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RawMimeRewriterTests {
+
+	@TempDir
+	Path work;
+
+	@Test
+	void rawEngineProducesWhatTheDomEngineProduces() throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+		writeEdgeCases(in);
+		// The same messages with CRLF line endings
+		for (Path eml : EmlTestSupport.listInputs(in, ".eml")) {
+			String lf = Files.readString(eml, StandardCharsets.ISO_8859_1);
+			Files.writeString(in.resolve("crlf-" + eml.getFileName()), lf.replace("\n", "\r\n"), StandardCharsets.ISO_8859_1);
+		}
+
+		TelemessageProperties dom = run(in, "dom", Engine.DOM);
+		TelemessageProperties raw = run(in, "raw", Engine.RAW);
+
+		for (Path source : EmlTestSupport.listInputs(in, ".eml")) {
+			String name = source.getFileName().toString();
+			Path domOut = work.resolve("dom").resolve(name);
+			Path rawOut = work.resolve("raw").resolve(name);
+
+			assertThat(EmlTestSupport.decryptedLeafPayloads(rawOut, raw))
+					.as(name)
+					.containsExactlyElementsOf(EmlTestSupport.leafPayloads(source))
+					.containsExactlyElementsOf(EmlTestSupport.decryptedLeafPayloads(domOut, dom));
+			assertThat(leafTypes(rawOut)).as(name).isEqualTo(leafTypes(domOut));
+
+			MimeMessage msg = EmlTestSupport.parse(rawOut);
+			assertThat(msg.getHeader("X-TELEMESSAGE-ENC-KEY-ID", null)).isEqualTo(EmlTestSupport.ENC_KEY_ID);
+			assertThat(msg.getHeader("X-TELEMESSAGE-OriginalMesageIntegrity", null)).isEqualTo(EmlTestSupport.INTEGRITY);
+			assertThat(msg.getHeader("X-TELEMESSAGE-ENC-DATAKEY", null)).startsWith("V2.0#: ");
+			assertThat(msg.getHeader("MIME-Version", null)).isEqualTo("1.0");
+		}
+	}
+
+	@Test
+	void headersBoundariesAndMessageIdAreKeptVerbatim() throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+		writeEdgeCases(in);
+		run(in, "raw", Engine.RAW);
+
+		String nested = Files.readString(work.resolve("raw/nested.eml"));
+		assertThat(nested)
+				.startsWith("""
+						From: alice@example.com
+						To: bob@example.com
+						Subject: nested
+						MIME-Version: 1.0
+						Content-Type: multipart/related; boundary="outer"
+						X-TELEMESSAGE-ENC-DATAKEY: V2.0#: """)
+				.contains("""
+
+						--outer
+						Content-Type: multipart/alternative; boundary="inner"
+
+						--inner
+						Content-Type: text/plain; charset=UTF-8
+						Content-Transfer-Encoding: base64
+
+						""")
+				.endsWith("\n--outer--\n");
+
+		assertThat(EmlTestSupport.parse(work.resolve("raw/plain.eml")).getMessageID()).isEqualTo("<plain@example.com>");
+
+		String edge = Files.readString(work.resolve("raw/edge.eml"), StandardCharsets.ISO_8859_1);
+		assertThat(edge).doesNotContain("PREAMBLE").doesNotContain("EPILOGUE").doesNotContain("Content-Length");
+		// The missing close delimiter is written out
+		assertThat(edge).endsWith("--edge--\n");
+	}
+
+	private TelemessageProperties run(Path in, String out, Engine engine) throws Exception {
+		TelemessageProperties props = EmlTestSupport.properties(work, in, work.resolve(out));
+		props.setEngine(engine);
+		RunSummary summary = new EmlEncryptionService(props, new CryptoService()).processAllEmls();
+		assertThat(summary.getFailed()).isZero();
+		return props;
+	}
+
+	/**
+	 * Preamble and epilogue text, a forwarded message, a part without headers, delimiters with
+	 * trailing whitespace, an 8bit body with lines longer than the read buffer and no close delimiter.
+	 */
+	static void writeEdgeCases(Path in) throws Exception {
+		Random random = new Random(7);
+		var longLines = new StringBuilder();
+		String alphabet = "abcdefghijklmnopqrstuvwxyz0123456789 -";
+		for (int i = 0; i < 300_000; i++) {
+			int r = random.nextInt(50_000);
+			longLines.append(r == 0 ? "\r\n" : r == 1 ? "\n" : r == 2 ? "\r" : String.valueOf(alphabet.charAt(r % alphabet.length())));
+		}
+
+		Files.writeString(in.resolve("edge.eml"), """
+				From: alice@example.com
+				Subject: edge cases
+				Content-Type: multipart/mixed;
+				 boundary=edge
+				Content-Length: 12345
+
+				PREAMBLE that is not part of any part
+				--edge\t\s
+				Content-Type: multipart/mixed; boundary="inner"
+
+				--inner
+				Content-Type: message/rfc822
+				Content-Transfer-Encoding: 7bit
+
+				From: carol@example.com
+				Subject: forwarded
+
+				forwarded body
+				--inner--
+				EPILOGUE of the inner multipart
+				--edge
+				Content-Length: 2
+
+				no headers at all, so text/plain
+				--edge
+				Content-Type: application/octet-stream
+				Content-Transfer-Encoding: binary
+
+				%s
+				--edge
+				Content-Type: Text/Plain
+
+				upper case type: not treated as text by the DOM engine either
+				""".formatted(longLines), StandardCharsets.ISO_8859_1);
+	}
+
+	private static List<String> leafTypes(Path eml) throws Exception {
+		List<String> out = new ArrayList<>();
+		collectTypes(EmlTestSupport.parse(eml), out);
+		return out;
+	}
+
+	private static void collectTypes(Part part, List<String> out) throws Exception {
+		if (part.isMimeType("multipart/*")) {
+			Multipart mp = (Multipart) part.getContent();
+			for (int i = 0; i < mp.getCount(); i++) {
+				BodyPart child = mp.getBodyPart(i);
+				collectTypes(child, out);
+			}
+			return;
+		}
+		// The DOM engine adds a charset to text parts without one, so only the base type is compared
+		out.add(new ContentType(part.getContentType()).getBaseType() + " / " + ((MimePart) part).getEncoding());
+	}
+}
@@ -0,0 +1,132 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties.Engine;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class S3EncryptionServiceTests {
+
+	private static final String BUCKET = "batches";
+	private static final List<String> SAMPLES = List.of("mixed.eml", "nested.eml", "plain.eml");
+
+	@TempDir
+	Path work;
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void encryptsFromBucketToBucketWithMultipartUploads(Engine engine) throws Exception {
+		Path samples = work.resolve("samples");
+		EmlTestSupport.writeSamples(samples);
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		for (String name : SAMPLES) {
+			s3.put(BUCKET, "in/" + name, Files.readAllBytes(samples.resolve(name)));
+			s3.put(BUCKET, "in/sub/" + name, Files.readAllBytes(samples.resolve(name)));
+		}
+		s3.put(BUCKET, "in/notes.txt", new byte[] {'x'});
+
+		TelemessageProperties props = EmlTestSupport.properties(work, samples, work.resolve("unused"));
+		props.setEngine(engine);
+		props.setInputFolder("s3://" + BUCKET + "/in");
+		// Under the input prefix: its objects must not be taken as inputs
+		props.setOutputFolder("s3://" + BUCKET + "/in/encrypted");
+		props.getScan().setRecursive(true);
+		props.getCheckpoint().setEnabled(true);
+		props.getParallel().setEnabled(true);
+		props.getParallel().setMaxConcurrency(2);
+		// mixed.eml and nested.eml span several parts, and the DOM engine fetches them with ranged GETs
+		props.getS3().setPartSize(4 * 1024);
+		props.getS3().setMaxInFlightParts(2);
+		props.getS3().setInMemoryObjectLimit(1024);
+		props.getS3().setListParallelism(2);
+
+		try (EmlEncryptionService emlService = new EmlEncryptionService(props, new CryptoService())) {
+			S3EncryptionService service = new S3EncryptionService(props, emlService, s3);
+			RunSummary summary = service.processAllEmls();
+
+			assertThat(summary.getSucceeded()).isEqualTo(6);
+			assertThat(summary.getFailed()).isZero();
+			for (String name : SAMPLES) {
+				for (String dir : List.of("", "sub/")) {
+					Path downloaded = work.resolve(dir.replace('/', '-') + name);
+					Files.write(downloaded, s3.get(BUCKET, "in/encrypted/" + dir + name));
+					assertThat(EmlTestSupport.decryptedLeafPayloads(downloaded, props))
+							.as(dir + name)
+							.containsExactlyElementsOf(EmlTestSupport.leafPayloads(samples.resolve(name)));
+				}
+			}
+			assertThat(s3.completedMultipartUploads()).isEqualTo(4);
+			assertThat(s3.maxPartsInFlight()).isBetween(1, 2);
+			assertThat(s3.pendingUploads()).isZero();
+			long ranges = 0;
+			for (String name : List.of("mixed.eml", "nested.eml")) {
+				ranges += 2 * ((Files.size(samples.resolve(name)) + 4095) / 4096);
+			}
+			assertThat(s3.rangedGets()).isEqualTo(engine == Engine.DOM ? ranges : 0);
+
+			RunSummary rerun = service.processAllEmls();
+			assertThat(rerun.getSkipped()).isEqualTo(6);
+			assertThat(rerun.getSucceeded()).isZero();
+
+			assertThat(service.writeRunSummary(rerun)).isEqualTo("s3://" + BUCKET + "/in/encrypted/" + EncryptionMetrics.RUN_SUMMARY_FILE);
+			assertThat(s3.keys(BUCKET)).contains("in/encrypted/" + EncryptionMetrics.RUN_SUMMARY_FILE);
+		}
+	}
+
+	@Test
+	void failedUploadIsAbortedAndLeavesNoObject() throws Exception {
+		Path in = work.resolve("in");
+		EmlTestSupport.writeSamples(in);
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		s3.failUploadsTo("out/mixed.eml");
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, work.resolve("unused"));
+		props.setOutputFolder("s3://" + BUCKET + "/out/");
+		props.getS3().setPartSize(4 * 1024);
+
+		try (EmlEncryptionService emlService = new EmlEncryptionService(props, new CryptoService())) {
+			RunSummary summary = new S3EncryptionService(props, emlService, s3).processAllEmls();
+
+			assertThat(summary.getSucceeded()).isEqualTo(2);
+			assertThat(summary.getFailedInputs()).containsExactly(in.resolve("mixed.eml").toString());
+			assertThat(s3.keys(BUCKET)).containsExactlyInAnyOrder("out/nested.eml", "out/plain.eml");
+			assertThat(s3.abortedUploads()).isEqualTo(1);
+			assertThat(s3.pendingUploads()).isZero();
+		}
+	}
+
+	@Test
+	void abortWithPartsStillQueuedGivesBackTheirPermits() throws Exception {
+		InMemoryS3Client s3 = new InMemoryS3Client();
+		ExecutorService transfers = Executors.newSingleThreadExecutor();
+		Semaphore inFlight = new Semaphore(4);
+		try {
+			// One transfer thread: the first part is uploading while the other three wait in its queue
+			try (S3MultipartOutputStream os = new S3MultipartOutputStream(s3, BUCKET, "out/aborted.eml", 16, transfers,
+					inFlight)) {
+				os.write(new byte[4 * 16]);
+			}
+		} finally {
+			transfers.shutdown();
+			assertThat(transfers.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+		}
+
+		assertThat(inFlight.availablePermits()).isEqualTo(4);
+		assertThat(s3.abortedUploads()).isEqualTo(1);
+		assertThat(s3.keys(BUCKET)).isEmpty();
+	}
+}
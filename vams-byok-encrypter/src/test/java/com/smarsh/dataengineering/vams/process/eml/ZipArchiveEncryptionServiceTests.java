@@ -0,0 +1,140 @@
+package com.smarsh.dataengineering.vams.process.eml;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties;
+import com.smarsh.dataengineering.vams.process.config.TelemessageProperties.Engine;
+import com.smarsh.dataengineering.vams.process.crypto.CryptoService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ZipArchiveEncryptionServiceTests {
+
+	private static final List<String> SAMPLES = List.of("mixed.eml", "nested.eml", "plain.eml");
+
+	@TempDir
+	Path work;
+
+	@ParameterizedTest
+	@EnumSource(Engine.class)
+	void encryptsEmlEntriesAndCopiesEverythingElseRaw(Engine engine) throws Exception {
+		Path samples = work.resolve("samples");
+		EmlTestSupport.writeSamples(samples);
+		Path in = Files.createDirectories(work.resolve("in"));
+		Path out = work.resolve("out");
+		writeBatch(in.resolve("batch-1.zip"), samples);
+		writeBatch(in.resolve("batch-2.zip"), samples);
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+		props.setEngine(engine);
+		props.getParallel().setEnabled(true);
+		props.getParallel().setMaxConcurrency(2);
+		// With the DOM engine nested.eml and mixed.eml exceed this and go through a spool file
+		props.getArchive().setInMemoryEntryLimit(1024);
+		RunSummary summary = archiveService(props).processAllArchives();
+
+		assertThat(summary.getSucceeded()).isEqualTo(2);
+		for (String batch : List.of("batch-1.zip", "batch-2.zip")) {
+			try (ZipFile source = ZipFile.builder().setPath(in.resolve(batch)).get();
+				 ZipFile result = ZipFile.builder().setPath(out.resolve(batch)).get()) {
+				assertThat(names(result)).containsExactlyElementsOf(names(source));
+
+				ZipArchiveEntry mf = result.getEntry("batch.mf");
+				assertThat(mf.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+				assertThat(raw(result, mf)).isEqualTo(raw(source, source.getEntry("batch.mf")));
+				assertThat(raw(result, result.getEntry("notes.txt"))).isEqualTo(raw(source, source.getEntry("notes.txt")));
+
+				for (String name : SAMPLES) {
+					Path extracted = work.resolve(batch + "-" + name);
+					try (InputStream is = result.getInputStream(result.getEntry(name))) {
+						Files.copy(is, extracted);
+					}
+					assertThat(EmlTestSupport.decryptedLeafPayloads(extracted, props))
+							.as(batch + "!" + name)
+							.containsExactlyElementsOf(EmlTestSupport.leafPayloads(samples.resolve(name)));
+				}
+			}
+		}
+	}
+
+	@Test
+	void brokenEntryFailsOnlyItsArchive() throws Exception {
+		Path samples = work.resolve("samples");
+		EmlTestSupport.writeSamples(samples);
+		Files.writeString(samples.resolve("broken.eml"), """
+				From: alice@example.com
+				Content-Type: text/plain
+				Content-Transfer-Encoding: base64
+
+				A
+				""");
+		Path in = Files.createDirectories(work.resolve("in"));
+		Path out = work.resolve("out");
+		writeBatch(in.resolve("bad.zip"), samples);
+		Files.delete(samples.resolve("broken.eml"));
+		writeBatch(in.resolve("good.zip"), samples);
+
+		TelemessageProperties props = EmlTestSupport.properties(work, in, out);
+		RunSummary summary = archiveService(props).processAllArchives();
+
+		assertThat(summary.getSucceeded()).isEqualTo(1);
+		assertThat(summary.getFailedInputs()).containsExactly(in.resolve("bad.zip").toString());
+		assertThat(out.resolve("bad.zip")).doesNotExist();
+		assertThat(out.resolve("good.zip")).exists();
+	}
+
+	private static ZipArchiveEncryptionService archiveService(TelemessageProperties props) throws Exception {
+		return new ZipArchiveEncryptionService(props, new EmlEncryptionService(props, new CryptoService()));
+	}
+
+	/**
+	 * A batch as it arrives: the sample messages (stored and deflated) plus a manifest and a text file.
+	 */
+	private static void writeBatch(Path zip, Path samples) throws Exception {
+		try (ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip)) {
+			putEntry(out, "batch.mf", ZipEntry.DEFLATED, "plain.eml\nmixed.eml\nnested.eml\n".repeat(20).getBytes(StandardCharsets.US_ASCII));
+			int i = 0;
+			for (Path eml : EmlTestSupport.listInputs(samples, ".eml")) {
+				putEntry(out, eml.getFileName().toString(), i++ % 2 == 0 ? ZipEntry.DEFLATED : ZipEntry.STORED, Files.readAllBytes(eml));
+			}
+			putEntry(out, "notes.txt", ZipEntry.STORED, "not a message".getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	private static void putEntry(ZipArchiveOutputStream out, String name, int method, byte[] data) throws Exception {
+		ZipArchiveEntry entry = new ZipArchiveEntry(name);
+		entry.setMethod(method);
+		out.putArchiveEntry(entry);
+		out.write(data);
+		out.closeArchiveEntry();
+	}
+
+	private static List<String> names(ZipFile zip) {
+		List<String> names = new ArrayList<>();
+		for (ZipArchiveEntry e : Collections.list(zip.getEntriesInPhysicalOrder())) {
+			names.add(e.getName());
+		}
+		return names;
+	}
+
+	private static byte[] raw(ZipFile zip, ZipArchiveEntry entry) throws Exception {
+		try (InputStream is = zip.getRawInputStream(entry)) {
+			return is.readAllBytes();
+		}
+	}
+}
@@ -9,7 +9,6 @@ import org.springframework.context.annotation.Bean;
 import java.nio.file.Path;
 
 import com.smarsh.dataengineering.eml.comparator.config.CompareProperties;
-import com.smarsh.dataengineering.eml.comparator.model.CompareReport;
 import com.smarsh.dataengineering.eml.comparator.service.FolderCompareService;
 import com.smarsh.dataengineering.eml.comparator.service.ReportWriter;
 
@@ -46,8 +45,10 @@ public class VamsEmlComparatorApplication {
 					? Path.of("output")
 					: Path.of(props.outputDir());
 
-			CompareReport report = folderCompareService.compare(encrypted, decrypted);
-			reportWriter.write(report, output);
+			FolderCompareService.Listing listing = folderCompareService.list(encrypted, decrypted);
+			try (ReportWriter.Report report = reportWriter.open(output)) {
+				folderCompareService.compare(listing, report);
+			}
 
 			System.out.println("Report written to: " + output.toAbsolutePath());
 		};
@@ -1,11 +1,46 @@
 package com.smarsh.dataengineering.eml.comparator.config;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 
 @ConfigurationProperties(prefix = "compare")
 public record CompareProperties(
 		String encryptedDir,
 		String decryptedDir,
-		String outputDir
-) {}
+		String outputDir,
+		@DefaultValue("DOM") Engine engine,
+		@DefaultValue Parallel parallel,
+		@DefaultValue Cache cache
+) {
 
+	/**
+	 * How each .eml is read: {@code DOM} builds full mime4j messages, {@code STREAM} walks them with the
+	 * pull parser without buffering bodies.
+	 */
+	public enum Engine { DOM, STREAM }
+
+	/**
+	 * Compare several pairs at once; {@code maxConcurrency} of 0 means the number of available processors.
+	 */
+	public record Parallel(
+			@DefaultValue("false") boolean enabled,
+			@DefaultValue("0") int maxConcurrency
+	) {
+		public int workers() {
+			if (!enabled) {
+				return 1;
+			}
+			return maxConcurrency > 0 ? maxConcurrency : Runtime.getRuntime().availableProcessors();
+		}
+	}
+
+	/**
+	 * Diff cache: the diff of every pair is kept, and a pair is only compared again once the size or
+	 * mtime of one of its files, or the engine, changed. {@code file} defaults to {@code .eml-diffs.ndjson}
+	 * in the output folder.
+	 */
+	public record Cache(
+			@DefaultValue("false") boolean enabled,
+			String file
+	) {}
+}
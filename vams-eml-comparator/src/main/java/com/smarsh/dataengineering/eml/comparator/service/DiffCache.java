@@ -0,0 +1,268 @@
+package com.smarsh.dataengineering.eml.comparator.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.smarsh.dataengineering.eml.comparator.model.EmlDiff;
+
+/**
+ * On-disk cache of the {@link EmlDiff} of each pair, so repeated comparisons only parse the pairs that
+ * changed since the last run.
+ * <p>
+ * One JSON line per pair: the engine, both absolute paths with their size and last-modified millis, and
+ * the diff. New results are appended as they are computed; when a pair appears more than once the last
+ * line wins and a torn last line from a crash is ignored. A cached diff is used only while the engine
+ * and both files' size and mtime are unchanged; a comparison that failed (it has notes) is not cached,
+ * so it is tried again.
+ * <p>
+ * The file is read line by line and only a small index stays in memory: a hash of the two paths, the
+ * sizes and mtimes, and where the pair's line starts. A pair without differences needs nothing more; the
+ * diff of one that differs is read back from its line when it is needed. The file is compacted on
+ * {@link #close()} by copying the lines the index still points at.
+ */
+final class DiffCache implements Closeable {
+
+	static final String FILE_NAME = ".eml-diffs.ndjson";
+
+	/** Bump when what a comparison reports changes, so cached diffs no longer match. */
+	private static final String VERSION = "v1";
+
+	private static final byte NEWLINE = '\n';
+
+	private record Entry(String engine, String encrypted, long encryptedSize, long encryptedMtime,
+			String decrypted, long decryptedSize, long decryptedMtime, EmlDiff diff) {}
+
+	/** 128 bits of the SHA-256 of both paths. */
+	private record Key(long high, long low) {}
+
+	/** What is kept of an entry: enough to tell it is current, and where its line starts. */
+	private record Stamp(long encryptedSize, long encryptedMtime, long decryptedSize, long decryptedMtime,
+			boolean differs, long offset) {}
+
+	private final Path file;
+	private final String engine;
+	private final ObjectMapper om = new ObjectMapper();
+	private final Map<Key, Stamp> index = new ConcurrentHashMap<>();
+	private final FileChannel channel;
+	private long end;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger computed = new AtomicInteger();
+
+	DiffCache(Path file, String engine) throws IOException {
+		this.file = file;
+		this.engine = engine + "/" + VERSION;
+		if (Files.exists(file)) {
+			try (InputStream in = Files.newInputStream(file)) {
+				load(in);
+			}
+		}
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.end = channel.size();
+		// Start on a fresh line in case the previous run died half way through one
+		append(new byte[] { NEWLINE });
+	}
+
+	/**
+	 * The diff of the pair: the cached one while both files are unchanged, otherwise the one
+	 * {@code compare} returns, which is then cached. The files are stat'ed before the comparison, so a
+	 * file that changes while it is compared is compared again next time.
+	 */
+	EmlDiff diff(Path encrypted, Path decrypted, Supplier<EmlDiff> compare) {
+		BasicFileAttributes enc;
+		BasicFileAttributes dec;
+		try {
+			enc = Files.readAttributes(encrypted, BasicFileAttributes.class);
+			dec = Files.readAttributes(decrypted, BasicFileAttributes.class);
+		} catch (IOException e) {
+			return compare.get();
+		}
+		String encName = encrypted.toAbsolutePath().normalize().toString();
+		String decName = decrypted.toAbsolutePath().normalize().toString();
+		Key key = key(encName, decName);
+
+		Stamp s = index.get(key);
+		if (s != null
+				&& s.encryptedSize == enc.size() && s.encryptedMtime == enc.lastModifiedTime().toMillis()
+				&& s.decryptedSize == dec.size() && s.decryptedMtime == dec.lastModifiedTime().toMillis()) {
+			EmlDiff cached = s.differs
+					? read(s.offset, encName, decName)
+					: new EmlDiff(encrypted.getFileName().toString(), List.of(), List.of(), List.of());
+			if (cached != null) {
+				hits.incrementAndGet();
+				return cached;
+			}
+		}
+
+		EmlDiff diff = compare.get();
+		computed.incrementAndGet();
+		if (!diff.notes().isEmpty()) {
+			return diff;
+		}
+		Entry e = new Entry(engine, encName, enc.size(), enc.lastModifiedTime().toMillis(),
+				decName, dec.size(), dec.lastModifiedTime().toMillis(), diff);
+		try {
+			byte[] line = line(e);
+			long offset = append(line);
+			index.put(key, stamp(e, offset));
+		} catch (IOException ex) {
+			System.err.println("Failed to cache the diff of " + encrypted + ": " + ex.getMessage());
+		}
+		return diff;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try (channel) {
+			long[] offsets = index.values().stream().mapToLong(Stamp::offset).toArray();
+			Arrays.sort(offsets);
+			Path tmp = file.resolveSibling(file.getFileName() + ".part");
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+				for (long offset : offsets) {
+					out.write(readLine(offset));
+					out.write(NEWLINE);
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Diff cache " + file + ": " + hits.get() + " cached, " + computed.get() + " compared";
+	}
+
+	/**
+	 * Indexes the current entries of an existing file, one line at a time.
+	 */
+	private void load(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+		byte[] buf = new byte[8 * 1024];
+		long lineStart = 0;
+		long offset = 0;
+		for (int n; (n = in.read(buf)) != -1; offset += n) {
+			int from = 0;
+			for (int i = 0; i < n; i++) {
+				if (buf[i] == NEWLINE) {
+					line.write(buf, from, i - from);
+					index(line.toByteArray(), lineStart);
+					line.reset();
+					from = i + 1;
+					lineStart = offset + from;
+				}
+			}
+			line.write(buf, from, n - from);
+		}
+		index(line.toByteArray(), lineStart);
+	}
+
+	private void index(byte[] line, long offset) {
+		Entry e = parse(line);
+		if (e != null && engine.equals(e.engine)) {
+			index.put(key(e.encrypted, e.decrypted), stamp(e, offset));
+		}
+	}
+
+	/**
+	 * The diff on the line at {@code offset}, or null when it cannot be read or belongs to other files.
+	 */
+	private EmlDiff read(long offset, String encName, String decName) {
+		try {
+			Entry e = parse(readLine(offset));
+			return e != null && e.encrypted.equals(encName) && e.decrypted.equals(decName) ? e.diff : null;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	private byte[] readLine(long offset) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(1024);
+		ByteBuffer buf = ByteBuffer.allocate(8 * 1024);
+		for (long pos = offset; channel.read(buf.clear(), pos) > 0; pos += buf.position()) {
+			buf.flip();
+			while (buf.hasRemaining()) {
+				byte b = buf.get();
+				if (b == NEWLINE) {
+					return line.toByteArray();
+				}
+				line.write(b);
+			}
+		}
+		return line.toByteArray();
+	}
+
+	/** Appends {@code bytes} to the file; returns where they start. */
+	private long append(byte[] bytes) throws IOException {
+		synchronized (channel) {
+			long offset = end;
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			while (buf.hasRemaining()) {
+				end += channel.write(buf, end);
+			}
+			return offset;
+		}
+	}
+
+	private byte[] line(Entry e) throws JsonProcessingException {
+		byte[] json = om.writeValueAsBytes(e);
+		byte[] line = Arrays.copyOf(json, json.length + 1);
+		line[json.length] = NEWLINE;
+		return line;
+	}
+
+	private Entry parse(byte[] line) {
+		if (line.length == 0) {
+			return null;
+		}
+		try {
+			Entry e = om.readValue(line, Entry.class);
+			return e.diff != null && e.encrypted != null && e.decrypted != null ? e : null;
+		} catch (IOException ignored) {
+			// torn line
+			return null;
+		}
+	}
+
+	private static Stamp stamp(Entry e, long offset) {
+		return new Stamp(e.encryptedSize, e.encryptedMtime, e.decryptedSize, e.decryptedMtime,
+				e.diff.hasDifferences(), offset);
+	}
+
+	private static Key key(String encrypted, String decrypted) {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteBuffer hash = ByteBuffer.wrap(sha.digest((encrypted + "\n" + decrypted).getBytes(StandardCharsets.UTF_8)));
+		return new Key(hash.getLong(), hash.getLong());
+	}
+}
@@ -2,7 +2,6 @@ package com.smarsh.dataengineering.eml.comparator.service;
 
 
 import org.apache.james.mime4j.dom.*;
-import org.apache.james.mime4j.dom.field.ContentTypeField;
 import org.apache.james.mime4j.message.DefaultMessageBuilder;
 import org.apache.james.mime4j.stream.MimeConfig;
 import org.springframework.stereotype.Service;
@@ -13,16 +12,17 @@ import java.nio.file.Path;
 import java.util.*;
 
 import com.smarsh.dataengineering.eml.comparator.model.EmlDiff;
+import com.smarsh.dataengineering.eml.comparator.util.CanonicalHeader;
 import com.smarsh.dataengineering.eml.comparator.util.HeaderCanon;
-import com.smarsh.dataengineering.eml.comparator.util.TextCanon;
 
 @Service
-public class EmlComparator {
+public class EmlComparator implements EmlPairComparator {
 
-	private final DefaultMessageBuilder builder;
+	/** One builder per thread: a builder is not meant to be shared by concurrent parses. */
+	private final ThreadLocal<DefaultMessageBuilder> builder;
 
 	// If you want to ignore some headers entirely, list them here (lowercase).
-	private static final Set<String> IGNORED_HEADERS = Set.of(
+	static final Set<String> IGNORED_HEADERS = Set.of(
 			// Uncomment if desired:
 			// "message-id", "date", "received"
 	);
@@ -34,10 +34,14 @@ public class EmlComparator {
 				.setStrictParsing(false)
 				.build();
 
-		this.builder = new DefaultMessageBuilder();
-		this.builder.setMimeEntityConfig(config);
+		this.builder = ThreadLocal.withInitial(() -> {
+			DefaultMessageBuilder b = new DefaultMessageBuilder();
+			b.setMimeEntityConfig(config);
+			return b;
+		});
 	}
 
+	@Override
 	public EmlDiff compare(String filename, Path encryptedEml, Path decryptedEml) {
 		List<String> headerDiffs = new ArrayList<>();
 		List<String> structDiffs = new ArrayList<>();
@@ -62,33 +66,37 @@ public class EmlComparator {
 
 	private Message parse(Path path) throws Exception {
 		try (InputStream in = Files.newInputStream(path)) {
-			return builder.parseMessage(in);
+			return builder.get().parseMessage(in);
 		}
 	}
 
 	private void compareHeaders(Header h1, Header h2, List<String> out) {
-		Map<String, List<String>> a = HeaderCanon.toCanonicalMap(h1, IGNORED_HEADERS);
-		Map<String, List<String>> b = HeaderCanon.toCanonicalMap(h2, IGNORED_HEADERS);
-
-		Set<String> all = new TreeSet<>();
-		all.addAll(a.keySet());
-		all.addAll(b.keySet());
-
-		for (String name : all) {
-			List<String> va = a.getOrDefault(name, List.of());
-			List<String> vb = b.getOrDefault(name, List.of());
+		diffHeaders(HeaderCanon.canonicalize(h1, IGNORED_HEADERS), HeaderCanon.canonicalize(h2, IGNORED_HEADERS), out);
+	}
 
-			if (!va.equals(vb)) {
+	/** Reports every header name, in name order, whose values differ between the two sides. */
+	static void diffHeaders(CanonicalHeader a, CanonicalHeader b, List<String> out) {
+		int i = 0;
+		int j = 0;
+		while (i < a.size() || j < b.size()) {
+			int cmp = i == a.size() ? 1 : j == b.size() ? -1 : a.name(i).compareTo(b.name(j));
+			String name = cmp <= 0 ? a.name(i) : b.name(j);
+			int ie = cmp <= 0 ? a.end(i) : i;
+			int je = cmp >= 0 ? b.end(j) : j;
+
+			if (!a.sameValues(i, ie, b, j, je)) {
 				out.add("Header differs: " + name + "\n"
-						+ "  encrypted: " + va + "\n"
-						+ "  decrypted: " + vb);
+						+ "  encrypted: " + a.values(i, ie) + "\n"
+						+ "  decrypted: " + b.values(j, je));
 			}
+			i = ie;
+			j = je;
 		}
 	}
 
 	private void compareStructure(Entity e1, Entity e2, List<String> out, String path) {
 		// Compare MIME metadata that should be identical (or at least not “random”)
-		compareEntityMeta(e1, e2, out, path);
+		MimeMeta.of(e1).diff(MimeMeta.of(e2), path, out);
 
 		Body b1 = e1.getBody();
 		Body b2 = e2.getBody();
@@ -132,57 +140,6 @@ public class EmlComparator {
 		}
 	}
 
-	private void compareEntityMeta(Entity e1, Entity e2, List<String> out, String path) {
-		String ct1 = TextCanon.nullToEmpty(e1.getMimeType()).toLowerCase(Locale.ROOT);
-		String ct2 = TextCanon.nullToEmpty(e2.getMimeType()).toLowerCase(Locale.ROOT);
-		if (!ct1.equals(ct2)) {
-			out.add(path + ": mimeType differs: encrypted=" + ct1 + ", decrypted=" + ct2);
-		}
-
-		String disp1 = TextCanon.nullToEmpty(e1.getDispositionType()).toLowerCase(Locale.ROOT);
-		String disp2 = TextCanon.nullToEmpty(e2.getDispositionType()).toLowerCase(Locale.ROOT);
-		if (!disp1.equals(disp2)) {
-			out.add(path + ": disposition differs: encrypted=" + disp1 + ", decrypted=" + disp2);
-		}
-
-		// filename (Content-Disposition filename or Content-Type name)
-		String fn1 = TextCanon.canonParam(e1.getFilename());
-		String fn2 = TextCanon.canonParam(e2.getFilename());
-		if (!fn1.equals(fn2)) {
-			out.add(path + ": filename param differs: encrypted=" + fn1 + ", decrypted=" + fn2);
-		}
-
-		String cte1 = TextCanon.canonParam(e1.getHeader().getField("Content-Transfer-Encoding") == null
-				? null : e1.getHeader().getField("Content-Transfer-Encoding").getBody());
-		String cte2 = TextCanon.canonParam(e2.getHeader().getField("Content-Transfer-Encoding") == null
-				? null : e2.getHeader().getField("Content-Transfer-Encoding").getBody());
-		if (!cte1.equals(cte2)) {
-			out.add(path + ": Content-Transfer-Encoding differs: encrypted=" + cte1 + ", decrypted=" + cte2);
-		}
-
-		// Compare Content-Type params except boundary differences? (boundaries may legitimately differ in reserialization)
-		// If boundaries should match in your case, remove the boundary ignore below.
-		compareContentTypeParams(e1, e2, out, path);
-	}
-
-	private void compareContentTypeParams(Entity e1, Entity e2, List<String> out, String path) {
-		ContentTypeField f1 = (ContentTypeField) e1.getHeader().getField("Content-Type");
-		ContentTypeField f2 = (ContentTypeField) e2.getHeader().getField("Content-Type");
-
-		Map<String, String> p1 = TextCanon.canonParams(f1);
-		Map<String, String> p2 = TextCanon.canonParams(f2);
-
-		// Ignore boundary by default (often regenerated and not semantically meaningful)
-		p1.remove("boundary");
-		p2.remove("boundary");
-
-		if (!p1.equals(p2)) {
-			out.add(path + ": Content-Type params differ (boundary ignored)\n"
-					+ "  encrypted: " + p1 + "\n"
-					+ "  decrypted: " + p2);
-		}
-	}
-
 	private long safeEstimateSize(Body body) {
 		try {
 			// Mime4j bodies don't always expose a simple length. We do a conservative estimate:
@@ -0,0 +1,14 @@
+package com.smarsh.dataengineering.eml.comparator.service;
+
+import java.nio.file.Path;
+
+import com.smarsh.dataengineering.eml.comparator.model.EmlDiff;
+
+/**
+ * Compares one encrypted .eml with its decrypted counterpart; {@code compare.engine} picks the
+ * implementation.
+ */
+public interface EmlPairComparator {
+
+	EmlDiff compare(String filename, Path encryptedEml, Path decryptedEml);
+}
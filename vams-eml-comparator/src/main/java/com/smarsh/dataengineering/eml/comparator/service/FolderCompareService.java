@@ -8,8 +8,13 @@ import java.io.IOException;
 import java.nio.file.*;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
+import com.smarsh.dataengineering.eml.comparator.config.CompareProperties;
 import com.smarsh.dataengineering.eml.comparator.model.CompareReport;
 import com.smarsh.dataengineering.eml.comparator.model.EmlDiff;
 import com.smarsh.dataengineering.eml.comparator.model.FolderDiff;
@@ -17,15 +22,60 @@ import com.smarsh.dataengineering.eml.comparator.model.FolderDiff;
 @Service
 public class FolderCompareService {
 
-	private final EmlComparator emlComparator;
+	private final EmlPairComparator emlComparator;
+	private final CompareProperties props;
 
-	public FolderCompareService(EmlComparator emlComparator) {
-		this.emlComparator = emlComparator;
+	public FolderCompareService(EmlComparator domComparator, StreamingEmlComparator streamingComparator,
+			CompareProperties props) {
+		this.emlComparator = props.engine() == CompareProperties.Engine.STREAM ? streamingComparator : domComparator;
+		this.props = props;
 	}
 
-	public CompareReport compare(Path encryptedDir, Path decryptedDir) throws IOException {
-		Map<String, Path> enc = listEmlsByName(encryptedDir);
-		Map<String, Path> dec = listEmlsByName(decryptedDir);
+	/**
+	 * Receives the results of a comparison as they are produced: the folder differences first, then
+	 * every pair with differences, in name order and on the calling thread.
+	 */
+	@FunctionalInterface
+	public interface Sink {
+
+		default void begin(FolderDiff folderDiff) throws IOException {
+		}
+
+		void add(EmlDiff diff) throws IOException;
+
+		/** Called once every pair was compared; not called when the comparison fails. */
+		default void end() throws IOException {
+		}
+	}
+
+	/** The .eml files of the two folders, by file name. */
+	public record Listing(Map<String, Path> encrypted, Map<String, Path> decrypted) {}
+
+	/**
+	 * Compares the folders and returns the whole report; for large corpora, stream it to a
+	 * {@link Sink} with {@link #compare(Path, Path, Sink)} instead.
+	 */
+	public CompareReport compare(Path encryptedDir, Path decryptedDir) throws IOException, InterruptedException {
+		List<EmlDiff> withDiffs = new ArrayList<>();
+		FolderDiff folderDiff = compare(encryptedDir, decryptedDir, withDiffs::add);
+		return new CompareReport(Instant.now(), folderDiff, withDiffs);
+	}
+
+	public FolderDiff compare(Path encryptedDir, Path decryptedDir, Sink sink) throws IOException, InterruptedException {
+		return compare(list(encryptedDir, decryptedDir), sink);
+	}
+
+	/**
+	 * Lists both folders; fails if either is not a directory. Listing before opening the sink lets a
+	 * report writer leave the previous report alone when the folders are wrong.
+	 */
+	public Listing list(Path encryptedDir, Path decryptedDir) throws IOException {
+		return new Listing(listEmlsByName(encryptedDir), listEmlsByName(decryptedDir));
+	}
+
+	public FolderDiff compare(Listing listing, Sink sink) throws IOException, InterruptedException {
+		Map<String, Path> enc = listing.encrypted();
+		Map<String, Path> dec = listing.decrypted();
 
 		Set<String> all = new TreeSet<>();
 		all.addAll(enc.keySet());
@@ -36,21 +86,95 @@ public class FolderCompareService {
 
 		List<String> common = all.stream().filter(n -> enc.containsKey(n) && dec.containsKey(n)).toList();
 
-		List<EmlDiff> diffs = new ArrayList<>();
-		for (String name : common) {
-			diffs.add(emlComparator.compare(name, enc.get(name), dec.get(name)));
+		FolderDiff folderDiff = new FolderDiff(onlyEnc, onlyDec, common.size());
+		sink.begin(folderDiff);
+
+		// Only those with diffs are passed on, in name order
+		if (!props.cache().enabled()) {
+			compareAll(common, enc, dec, props.parallel().workers(), null, sink);
+		} else {
+			try (DiffCache cache = new DiffCache(cacheFile(), props.engine().name())) {
+				compareAll(common, enc, dec, props.parallel().workers(), cache, sink);
+				System.out.println(cache);
+			}
+		}
+		sink.end();
+		return folderDiff;
+	}
+
+	private Path cacheFile() {
+		if (props.cache().file() != null && !props.cache().file().isBlank()) {
+			return Path.of(props.cache().file());
+		}
+		Path output = (props.outputDir() == null || props.outputDir().isBlank())
+				? Path.of("output")
+				: Path.of(props.outputDir());
+		return output.resolve(DiffCache.FILE_NAME);
+	}
+
+	/**
+	 * Compares one pair; with a cache, a pair whose two files are unchanged since a previous run gets
+	 * that run's diff back and is not parsed at all.
+	 */
+	private EmlDiff comparePair(String name, Path enc, Path dec, DiffCache cache) {
+		if (cache == null) {
+			return emlComparator.compare(name, enc, dec);
+		}
+		return cache.diff(enc, dec, () -> emlComparator.compare(name, enc, dec));
+	}
+
+	/**
+	 * Compares every pair named in {@code common} and passes those with differences to the sink, in the
+	 * order of {@code common}. With more than one worker the pairs are compared on a fork/join pool of
+	 * that size, at most two per worker ahead of the oldest one not yet passed on; results are taken in
+	 * submission order, so the report is the same as a sequential run and no more than that window of
+	 * results is held in memory.
+	 */
+	private void compareAll(List<String> common, Map<String, Path> enc, Map<String, Path> dec, int workers,
+			DiffCache cache, Sink sink) throws IOException, InterruptedException {
+		if (workers <= 1) {
+			for (String name : common) {
+				emit(comparePair(name, enc.get(name), dec.get(name), cache), sink);
+			}
+			return;
 		}
 
-		// Keep only those with diffs, or keep all if you prefer:
-		List<EmlDiff> withDiffs = diffs.stream()
-				.filter(EmlDiff::hasDifferences)
-				.collect(Collectors.toList());
+		ForkJoinPool pool = new ForkJoinPool(workers, p -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			thread.setName("eml-compare-" + thread.getPoolIndex());
+			return thread;
+		}, null, false);
+		try {
+			Deque<Future<EmlDiff>> window = new ArrayDeque<>();
+			for (String name : common) {
+				window.add(pool.submit(() -> comparePair(name, enc.get(name), dec.get(name), cache)));
+				if (window.size() >= 2 * workers) {
+					emit(take(window.poll()), sink);
+				}
+			}
+			while (!window.isEmpty()) {
+				emit(take(window.poll()), sink);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
 
-		return new CompareReport(
-				Instant.now(),
-				new FolderDiff(onlyEnc, onlyDec, common.size()),
-				withDiffs
-		);
+	private static EmlDiff take(Future<EmlDiff> result) throws InterruptedException {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private static void emit(EmlDiff diff, Sink sink) throws IOException {
+		if (diff.hasDifferences()) {
+			sink.add(diff);
+		}
 	}
 
 	private Map<String, Path> listEmlsByName(Path dir) throws IOException {
@@ -0,0 +1,117 @@
+package com.smarsh.dataengineering.eml.comparator.service;
+
+import org.apache.james.mime4j.codec.DecodeMonitor;
+import org.apache.james.mime4j.dom.Entity;
+import org.apache.james.mime4j.dom.field.ContentDispositionField;
+import org.apache.james.mime4j.dom.field.ContentTypeField;
+import org.apache.james.mime4j.dom.field.ParsedField;
+import org.apache.james.mime4j.field.ContentTypeFieldImpl;
+import org.apache.james.mime4j.field.LenientFieldParser;
+import org.apache.james.mime4j.stream.Field;
+
+import java.util.*;
+
+import com.smarsh.dataengineering.eml.comparator.util.TextCanon;
+
+/**
+ * The MIME metadata of one entity that both sides should agree on, canonicalized, whichever engine
+ * read it.
+ */
+record MimeMeta(
+		String mimeType,
+		String disposition,
+		String filename,
+		String transferEncoding,
+		Map<String, String> contentTypeParams
+) {
+
+	static MimeMeta of(Entity e) {
+		Field cte = e.getHeader().getField("Content-Transfer-Encoding");
+		return new MimeMeta(
+				e.getMimeType(),
+				e.getDispositionType(),
+				e.getFilename(),
+				cte == null ? null : cte.getBody(),
+				TextCanon.canonParams((ContentTypeField) e.getHeader().getField("Content-Type")));
+	}
+
+	/**
+	 * From the header fields of an entity read with {@code MimeTokenStream}; the MIME type defaults as
+	 * in the DOM, from the Content-Type of the parent entity.
+	 */
+	static MimeMeta of(List<Field> fields, ContentTypeField parentContentType) {
+		ContentTypeField contentType = null;
+		ContentDispositionField disposition = null;
+		String cte = null;
+		for (Field f : fields) {
+			String name = f.getName();
+			if (contentType == null && "Content-Type".equalsIgnoreCase(name)) {
+				contentType = parsed(f) instanceof ContentTypeField ct ? ct : null;
+			} else if (disposition == null && "Content-Disposition".equalsIgnoreCase(name)) {
+				disposition = parsed(f) instanceof ContentDispositionField cd ? cd : null;
+			} else if (cte == null && "Content-Transfer-Encoding".equalsIgnoreCase(name)) {
+				cte = f.getBody();
+			}
+		}
+		return new MimeMeta(
+				ContentTypeFieldImpl.getMimeType(contentType, parentContentType),
+				disposition == null ? null : disposition.getDispositionType(),
+				disposition == null ? null : disposition.getFilename(),
+				cte,
+				TextCanon.canonParams(contentType));
+	}
+
+	/** The first Content-Type field, parsed, or null. */
+	static ContentTypeField contentType(List<Field> fields) {
+		for (Field f : fields) {
+			if ("Content-Type".equalsIgnoreCase(f.getName())) {
+				return parsed(f) instanceof ContentTypeField ct ? ct : null;
+			}
+		}
+		return null;
+	}
+
+	private static ParsedField parsed(Field f) {
+		return f instanceof ParsedField p ? p : LenientFieldParser.getParser().parse(f, DecodeMonitor.SILENT);
+	}
+
+	/**
+	 * The values as they are compared: lowercase MIME and disposition types, canonical filename and
+	 * transfer encoding, and Content-Type parameters without the boundary.
+	 */
+	MimeMeta canonical() {
+		// Ignore boundary by default (often regenerated and not semantically meaningful)
+		// If boundaries should match in your case, remove the boundary ignore below.
+		Map<String, String> params = new TreeMap<>(contentTypeParams);
+		params.remove("boundary");
+		return new MimeMeta(
+				TextCanon.nullToEmpty(mimeType).toLowerCase(Locale.ROOT),
+				TextCanon.nullToEmpty(disposition).toLowerCase(Locale.ROOT),
+				TextCanon.canonParam(filename),
+				TextCanon.canonParam(transferEncoding),
+				params);
+	}
+
+	void diff(MimeMeta other, String path, List<String> out) {
+		MimeMeta a = canonical();
+		MimeMeta b = other.canonical();
+		if (!a.mimeType.equals(b.mimeType)) {
+			out.add(path + ": mimeType differs: encrypted=" + a.mimeType + ", decrypted=" + b.mimeType);
+		}
+		if (!a.disposition.equals(b.disposition)) {
+			out.add(path + ": disposition differs: encrypted=" + a.disposition + ", decrypted=" + b.disposition);
+		}
+		// filename (Content-Disposition filename or Content-Type name)
+		if (!a.filename.equals(b.filename)) {
+			out.add(path + ": filename param differs: encrypted=" + a.filename + ", decrypted=" + b.filename);
+		}
+		if (!a.transferEncoding.equals(b.transferEncoding)) {
+			out.add(path + ": Content-Transfer-Encoding differs: encrypted=" + a.transferEncoding + ", decrypted=" + b.transferEncoding);
+		}
+		if (!a.contentTypeParams.equals(b.contentTypeParams)) {
+			out.add(path + ": Content-Type params differ (boundary ignored)\n"
+					+ "  encrypted: " + a.contentTypeParams + "\n"
+					+ "  decrypted: " + b.contentTypeParams);
+		}
+	}
+}
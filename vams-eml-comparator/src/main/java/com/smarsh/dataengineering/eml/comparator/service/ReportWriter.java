@@ -1,103 +1,225 @@
 package com.smarsh.dataengineering.eml.comparator.service;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 
 import org.springframework.stereotype.Service;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.List;
 
 import com.smarsh.dataengineering.eml.comparator.model.CompareReport;
-
+import com.smarsh.dataengineering.eml.comparator.model.EmlDiff;
+import com.smarsh.dataengineering.eml.comparator.model.FolderDiff;
+
+/**
+ * Writes the comparison report to the output folder: {@code report.json} (the {@link CompareReport}),
+ * {@code report.ndjson} (one {@link EmlDiff} per line) and {@code report.md}. The report is streamed:
+ * each difference is written to all three as soon as it is added, so memory does not grow with the
+ * number of differences. The files are written as {@code .part} files and replace the previous report
+ * only once the report has ended and been closed, so a failed run leaves the last good report in place.
+ */
 @Service
 public class ReportWriter {
 
+	private static final List<String> FILES = List.of("report.json", "report.ndjson", "report.md");
+
 	private final ObjectMapper om;
+	private final ObjectWriter ndjson;
 
 	public ReportWriter() {
 		this.om = new ObjectMapper()
 				.registerModule(new JavaTimeModule())
 				.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
 				.enable(SerializationFeature.INDENT_OUTPUT);
+		this.ndjson = om.writer().without(SerializationFeature.INDENT_OUTPUT);
 	}
 
 	public void write(CompareReport report, Path outputDir) throws Exception {
+		try (Report out = open(outputDir, report.generatedAt())) {
+			out.begin(report.folderDiff());
+			for (EmlDiff d : report.emlDiffs()) {
+				out.add(d);
+			}
+			out.end();
+		}
+	}
+
+	/**
+	 * Starts a report in {@code outputDir}, to be filled by {@link FolderCompareService#compare(Path, Path,
+	 * FolderCompareService.Sink)}. The files are replaced once the report has ended and is closed; closing
+	 * a report that has not ended discards it.
+	 */
+	public Report open(Path outputDir) throws IOException {
+		return open(outputDir, Instant.now());
+	}
+
+	private Report open(Path outputDir, Instant generatedAt) throws IOException {
 		Files.createDirectories(outputDir);
+		return new Report(outputDir, generatedAt);
+	}
+
+	public final class Report implements FolderCompareService.Sink, Closeable {
+
+		private final Path outputDir;
+		private final Instant generatedAt;
+		private final JsonGenerator json;
+		private final Writer lines;
+		private final Writer md;
+		private boolean begun;
+		private boolean ended;
+		private int count;
+
+		private Report(Path outputDir, Instant generatedAt) throws IOException {
+			this.outputDir = outputDir;
+			this.generatedAt = generatedAt;
+			Writer jsonOut = Files.newBufferedWriter(part("report.json"), StandardCharsets.UTF_8);
+			Writer linesOut = null;
+			try {
+				this.json = om.getFactory().createGenerator(jsonOut).useDefaultPrettyPrinter();
+				linesOut = Files.newBufferedWriter(part("report.ndjson"), StandardCharsets.UTF_8);
+				this.lines = linesOut;
+				this.md = Files.newBufferedWriter(part("report.md"), StandardCharsets.UTF_8);
+			} catch (IOException | RuntimeException e) {
+				jsonOut.close();
+				if (linesOut != null) {
+					linesOut.close();
+				}
+				discard();
+				throw e;
+			}
+		}
+
+		@Override
+		public void begin(FolderDiff folderDiff) throws IOException {
+			json.writeStartObject();
+			json.writeObjectField("generatedAt", generatedAt);
+			json.writeObjectField("folderDiff", folderDiff);
+			json.writeArrayFieldStart("emlDiffs");
+
+			appendHeader(md, generatedAt, folderDiff);
+			begun = true;
+		}
+
+		@Override
+		public void add(EmlDiff d) throws IOException {
+			json.writeObject(d);
+			lines.write(ndjson.writeValueAsString(d));
+			lines.write('\n');
+			appendDiff(md, d);
+			count++;
+		}
+
+		@Override
+		public void end() throws IOException {
+			if (!begun) {
+				throw new IllegalStateException("Report ended before it began");
+			}
+			json.writeEndArray();
+			json.writeEndObject();
+			if (count == 0) {
+				md.append("No unexpected differences found among common files.\n");
+			}
+			ended = true;
+		}
 
-		// JSON
-		Path json = outputDir.resolve("report.json");
-		Files.writeString(json, om.writeValueAsString(report), StandardCharsets.UTF_8);
+		@Override
+		public void close() throws IOException {
+			try (JsonGenerator j = json; Writer l = lines; Writer m = md) {
+				// closed in reverse order
+			} catch (IOException | RuntimeException e) {
+				discard();
+				throw e;
+			}
+			if (!ended) {
+				discard();
+				return;
+			}
+			for (String name : FILES) {
+				Files.move(part(name), outputDir.resolve(name), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		private Path part(String name) {
+			return outputDir.resolve(name + ".part");
+		}
 
-		// Markdown
-		Path md = outputDir.resolve("report.md");
-		Files.writeString(md, toMarkdown(report), StandardCharsets.UTF_8);
+		private void discard() throws IOException {
+			for (String name : FILES) {
+				Files.deleteIfExists(part(name));
+			}
+		}
 	}
 
-	private String toMarkdown(CompareReport r) {
-		var sb = new StringBuilder();
+	private static void appendHeader(Writer sb, Instant generatedAt, FolderDiff folderDiff) throws IOException {
 		sb.append("# EML Comparison Report\n\n");
-		sb.append("- Generated at: ").append(r.generatedAt()).append("\n\n");
+		sb.append("- Generated at: ").append(generatedAt.toString()).append("\n\n");
 
 		sb.append("## Folder differences\n\n");
-		sb.append("- Common files: ").append(r.folderDiff().commonCount()).append("\n");
-		sb.append("- Only in encrypted: ").append(r.folderDiff().onlyInEncrypted().size()).append("\n");
-		sb.append("- Only in decrypted: ").append(r.folderDiff().onlyInDecrypted().size()).append("\n\n");
+		sb.append("- Common files: ").append(String.valueOf(folderDiff.commonCount())).append("\n");
+		sb.append("- Only in encrypted: ").append(String.valueOf(folderDiff.onlyInEncrypted().size())).append("\n");
+		sb.append("- Only in decrypted: ").append(String.valueOf(folderDiff.onlyInDecrypted().size())).append("\n\n");
 
-		if (!r.folderDiff().onlyInEncrypted().isEmpty()) {
+		if (!folderDiff.onlyInEncrypted().isEmpty()) {
 			sb.append("### Only in encrypted\n\n");
-			r.folderDiff().onlyInEncrypted().forEach(f -> sb.append("- ").append(f).append("\n"));
+			for (String f : folderDiff.onlyInEncrypted()) {
+				sb.append("- ").append(f).append("\n");
+			}
 			sb.append("\n");
 		}
 
-		if (!r.folderDiff().onlyInDecrypted().isEmpty()) {
+		if (!folderDiff.onlyInDecrypted().isEmpty()) {
 			sb.append("### Only in decrypted\n\n");
-			r.folderDiff().onlyInDecrypted().forEach(f -> sb.append("- ").append(f).append("\n"));
+			for (String f : folderDiff.onlyInDecrypted()) {
+				sb.append("- ").append(f).append("\n");
+			}
 			sb.append("\n");
 		}
 
 		sb.append("## Content differences (unexpected)\n\n");
-		if (r.emlDiffs().isEmpty()) {
-			sb.append("No unexpected differences found among common files.\n");
-			return sb.toString();
-		}
+	}
 
-		for (var d : r.emlDiffs()) {
-			sb.append("### ").append(d.filename()).append("\n\n");
+	private static void appendDiff(Writer sb, EmlDiff d) throws IOException {
+		sb.append("### ").append(d.filename()).append("\n\n");
 
-			if (!d.headerDifferences().isEmpty()) {
-				sb.append("**Header differences**\n\n");
-				for (String x : d.headerDifferences()) {
-					sb.append("- ").append(codeBlockInline(x)).append("\n");
-				}
-				sb.append("\n");
+		if (!d.headerDifferences().isEmpty()) {
+			sb.append("**Header differences**\n\n");
+			for (String x : d.headerDifferences()) {
+				sb.append("- ").append(codeBlockInline(x)).append("\n");
 			}
+			sb.append("\n");
+		}
 
-			if (!d.structureDifferences().isEmpty()) {
-				sb.append("**MIME structure / metadata differences**\n\n");
-				for (String x : d.structureDifferences()) {
-					sb.append("- ").append(codeBlockInline(x)).append("\n");
-				}
-				sb.append("\n");
+		if (!d.structureDifferences().isEmpty()) {
+			sb.append("**MIME structure / metadata differences**\n\n");
+			for (String x : d.structureDifferences()) {
+				sb.append("- ").append(codeBlockInline(x)).append("\n");
 			}
+			sb.append("\n");
+		}
 
-			if (!d.notes().isEmpty()) {
-				sb.append("**Notes**\n\n");
-				for (String x : d.notes()) {
-					sb.append("- ").append(x).append("\n");
-				}
-				sb.append("\n");
+		if (!d.notes().isEmpty()) {
+			sb.append("**Notes**\n\n");
+			for (String x : d.notes()) {
+				sb.append("- ").append(x).append("\n");
 			}
+			sb.append("\n");
 		}
-
-		return sb.toString();
 	}
 
-	private String codeBlockInline(String s) {
+	private static String codeBlockInline(String s) {
 		// Keep markdown readable; this is “inline-ish”
 		return s.replace("\n", "  \n  ");
 	}
 }
-
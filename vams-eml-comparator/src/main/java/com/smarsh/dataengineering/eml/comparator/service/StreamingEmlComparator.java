@@ -0,0 +1,165 @@
+package com.smarsh.dataengineering.eml.comparator.service;
+
+import org.apache.james.mime4j.codec.DecodeMonitor;
+import org.apache.james.mime4j.dom.field.ContentTypeField;
+import org.apache.james.mime4j.field.LenientFieldParser;
+import org.apache.james.mime4j.message.DefaultBodyDescriptorBuilder;
+import org.apache.james.mime4j.stream.EntityState;
+import org.apache.james.mime4j.stream.Field;
+import org.apache.james.mime4j.stream.MimeConfig;
+import org.apache.james.mime4j.stream.MimeTokenStream;
+import org.springframework.stereotype.Service;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import com.smarsh.dataengineering.eml.comparator.model.EmlDiff;
+import com.smarsh.dataengineering.eml.comparator.util.CanonicalHeader;
+import com.smarsh.dataengineering.eml.comparator.util.HeaderCanon;
+
+/**
+ * The {@code stream} engine: same checks and messages as {@link EmlComparator}, but each file is read
+ * once with mime4j's pull parser ({@link MimeTokenStream}) instead of being built into a DOM. Only
+ * what is compared is kept: the canonical headers of the message and of embedded messages, the MIME
+ * metadata of every part and the size of every leaf. Leaf bodies are counted as they stream past
+ * and never decoded or buffered, so a pair costs its headers in memory however large the
+ * attachments are.
+ * <p>
+ * Leaf sizes are the transfer-encoded byte counts; like the DOM engine, only an empty body on one
+ * side and a non-empty one on the other is reported.
+ */
+@Service
+public class StreamingEmlComparator implements EmlPairComparator {
+
+	private static final MimeConfig CONFIG = MimeConfig.custom()
+			.setMaxLineLen(1000000)   // tolerate long lines
+			.setMaxHeaderLen(1000000)
+			.setStrictParsing(false)
+			.build();
+
+	/** What is kept of one entity. */
+	private static final class Node {
+		final List<Field> fields = new ArrayList<>();
+		final boolean message;
+		final Node parent;
+		ContentTypeField contentType;
+		MimeMeta meta;
+		CanonicalHeader header;             // messages only
+		List<Node> parts;                   // multipart body
+		Node embedded;                      // message/rfc822 body
+		long size = -1;                     // leaf body
+
+		Node(boolean message, Node parent) {
+			this.message = message;
+			this.parent = parent;
+		}
+	}
+
+	private final ThreadLocal<MimeTokenStream> parser = ThreadLocal.withInitial(() -> new MimeTokenStream(CONFIG,
+			DecodeMonitor.SILENT, new DefaultBodyDescriptorBuilder(null, LenientFieldParser.getParser(), DecodeMonitor.SILENT)));
+
+	@Override
+	public EmlDiff compare(String filename, Path encryptedEml, Path decryptedEml) {
+		List<String> headerDiffs = new ArrayList<>();
+		List<String> structDiffs = new ArrayList<>();
+		List<String> notes = new ArrayList<>();
+
+		try {
+			Node enc = read(encryptedEml);
+			Node dec = read(decryptedEml);
+
+			EmlComparator.diffHeaders(enc.header, dec.header, headerDiffs);
+			compareStructure(enc, dec, structDiffs, "root");
+		} catch (Exception e) {
+			notes.add("Failed to compare due to exception: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+
+		return new EmlDiff(filename, headerDiffs, structDiffs, notes);
+	}
+
+	private Node read(Path path) throws Exception {
+		MimeTokenStream stream = parser.get();
+		byte[] skip = new byte[8192];
+		Deque<Node> open = new ArrayDeque<>();
+		Node root = null;
+		try (InputStream in = Files.newInputStream(path)) {
+			stream.parse(in);
+			for (EntityState state = stream.getState(); state != EntityState.T_END_OF_STREAM; state = stream.next()) {
+				switch (state) {
+					case T_START_MESSAGE -> {
+						Node node = new Node(true, open.peek());
+						if (open.isEmpty()) {
+							root = node;
+						} else {
+							open.peek().embedded = node;
+						}
+						open.push(node);
+					}
+					case T_START_BODYPART -> {
+						Node node = new Node(false, open.peek());
+						open.peek().parts.add(node);
+						open.push(node);
+					}
+					case T_FIELD -> open.peek().fields.add(stream.getField());
+					case T_END_HEADER -> {
+						Node node = open.peek();
+						node.contentType = MimeMeta.contentType(node.fields);
+						node.meta = MimeMeta.of(node.fields, node.parent == null ? null : node.parent.contentType);
+						if (node.message) {
+							node.header = HeaderCanon.canonicalize(node.fields, EmlComparator.IGNORED_HEADERS);
+						}
+						node.fields.clear();
+					}
+					case T_START_MULTIPART -> open.peek().parts = new ArrayList<>();
+					case T_BODY -> open.peek().size = count(stream.getInputStream(), skip);
+					case T_END_BODYPART, T_END_MESSAGE -> open.pop();
+					default -> {
+					}
+				}
+			}
+		} finally {
+			stream.stop();
+		}
+		return root;
+	}
+
+	private static long count(InputStream body, byte[] buf) throws Exception {
+		long n = 0;
+		for (int read; (read = body.read(buf)) != -1; ) {
+			n += read;
+		}
+		return n;
+	}
+
+	private void compareStructure(Node n1, Node n2, List<String> out, String path) {
+		n1.meta.diff(n2.meta, path, out);
+
+		// Multipart: compare child count + recurse
+		if (n1.parts != null && n2.parts != null) {
+			if (n1.parts.size() != n2.parts.size()) {
+				out.add(path + ": multipart part count differs: encrypted=" + n1.parts.size() + ", decrypted=" + n2.parts.size());
+			}
+			int n = Math.min(n1.parts.size(), n2.parts.size());
+			for (int i = 0; i < n; i++) {
+				compareStructure(n1.parts.get(i), n2.parts.get(i), out, path + "/part[" + i + "]");
+			}
+			return;
+		}
+
+		// Message/rfc822 embedded
+		if (n1.embedded != null && n2.embedded != null) {
+			EmlComparator.diffHeaders(n1.embedded.header, n2.embedded.header, out); // embedded header comparison
+			compareStructure(n1.embedded, n2.embedded, out, path + "/message");
+			return;
+		}
+
+		// Leaf bodies: only flag one empty and the other not (sometimes indicates truncation)
+		long size1 = n1.size;
+		long size2 = n2.size;
+		if ((size1 == 0 && size2 > 0) || (size2 == 0 && size1 > 0)) {
+			out.add(path + ": leaf body empty/non-empty mismatch (encrypted=" + size1 + ", decrypted=" + size2 + ")");
+		}
+	}
+}
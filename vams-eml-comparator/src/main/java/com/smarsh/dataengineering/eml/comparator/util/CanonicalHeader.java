@@ -0,0 +1,48 @@
+package com.smarsh.dataengineering.eml.comparator.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A header block canonicalized for comparison: one entry per field, sorted by lowercase name, with the
+ * fields of one name kept in header order. Two parallel arrays instead of a map of lists.
+ */
+public final class CanonicalHeader {
+
+	private final String[] names;
+	private final String[] values;
+	private final int size;
+
+	CanonicalHeader(String[] names, String[] values, int size) {
+		this.names = names;
+		this.values = values;
+		this.size = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String name(int i) {
+		return names[i];
+	}
+
+	/** The index after the run of fields named like field {@code i}. */
+	public int end(int i) {
+		int j = i + 1;
+		while (j < size && names[j].equals(names[i])) {
+			j++;
+		}
+		return j;
+	}
+
+	/** The values of fields {@code from} (inclusive) to {@code to} (exclusive). */
+	public List<String> values(int from, int to) {
+		return List.of(Arrays.copyOfRange(values, from, to));
+	}
+
+	/** Whether fields {@code from..to} here have the same values, in order, as {@code oFrom..oTo} in {@code other}. */
+	public boolean sameValues(int from, int to, CanonicalHeader other, int oFrom, int oTo) {
+		return Arrays.equals(values, from, to, other.values, oFrom, oTo);
+	}
+}
@@ -9,11 +9,16 @@ import java.util.*;
 public final class HeaderCanon {
 	private HeaderCanon() {}
 
-	public static Map<String, List<String>> toCanonicalMap(Header header, Set<String> ignoredHeaderNamesLower) {
-		Map<String, List<String>> map = new TreeMap<>();
-		if (header == null) return map;
+	public static CanonicalHeader canonicalize(Header header, Set<String> ignoredHeaderNamesLower) {
+		return canonicalize(header == null ? List.of() : header.getFields(), ignoredHeaderNamesLower);
+	}
+
+	public static CanonicalHeader canonicalize(List<Field> fields, Set<String> ignoredHeaderNamesLower) {
+		String[] names = new String[fields.size()];
+		String[] values = new String[fields.size()];
+		int n = 0;
 
-		for (Field f : header.getFields()) {
+		for (Field f : fields) {
 			String name = f.getName() == null ? "" : f.getName().trim().toLowerCase(Locale.ROOT);
 			if (name.isEmpty()) continue;
 			if (ignoredHeaderNamesLower != null && ignoredHeaderNamesLower.contains(name)) continue;
@@ -21,15 +26,21 @@ public final class HeaderCanon {
 			// Canonicalize header body:
 			// - normalize line endings and folding whitespace
 			// - compress runs of whitespace to single space
-			String body = f.getBody();
-			String canon = TextCanon.canonHeaderValue(body);
-
-			map.computeIfAbsent(name, k -> new ArrayList<>()).add(canon);
+			String canon = TextCanon.canonHeaderValue(f.getBody());
+
+			// Insertion sort by name: stable, so repeated headers keep their order (which matters in RFC),
+			// and cheap for the few dozen fields of a header block.
+			int i = n++;
+			while (i > 0 && names[i - 1].compareTo(name) > 0) {
+				names[i] = names[i - 1];
+				values[i] = values[i - 1];
+				i--;
+			}
+			names[i] = name;
+			values[i] = canon;
 		}
 
-		// If same header appears multiple times, order matters in RFC; we preserve order.
 		// If you want order-insensitive compare for certain headers, handle them here.
-		return map;
+		return new CanonicalHeader(names, values, n);
 	}
 }
-
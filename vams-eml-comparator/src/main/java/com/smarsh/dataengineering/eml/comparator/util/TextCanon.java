@@ -11,23 +11,81 @@ public final class TextCanon {
 		return s == null ? "" : s;
 	}
 
+	/**
+	 * Normalizes CRLF/CR to LF, unfolds (a newline followed by spaces or tabs becomes a space),
+	 * compresses runs of spaces and tabs to one space and trims; in one pass, returning {@code v}
+	 * itself when it is already canonical.
+	 */
 	public static String canonHeaderValue(String v) {
 		if (v == null) return "";
-		// Normalize CRLF/LF and unfold:
-		String s = v.replace("\r\n", "\n").replace("\r", "\n");
-		// Unfold: replace newline + WSP with single space
-		s = s.replaceAll("\n[ \t]+", " ");
-		// Compress whitespace
-		s = s.replaceAll("[ \t]+", " ").trim();
-		// Normalize any trailing whitespace differences
-		return s;
+		return canon(v, true);
 	}
 
+	/**
+	 * Normalizes CRLF/CR to LF, trims and compresses runs of spaces and tabs to one space; newlines are
+	 * kept as they are.
+	 */
 	public static String canonParam(String v) {
 		if (v == null) return "";
-		String s = v.replace("\r\n", "\n").replace("\r", "\n").trim();
-		s = s.replaceAll("[ \t]+", " ");
-		return s;
+		return canon(v, false);
+	}
+
+	private static String canon(String v, boolean unfold) {
+		int len = v.length();
+		if (isCanonical(v, len, unfold)) {
+			return v;
+		}
+
+		StringBuilder sb = new StringBuilder(len);
+		boolean space = false;
+		for (int i = 0; i < len; i++) {
+			char c = v.charAt(i);
+			if (c == '\r') {
+				// CRLF and lone CR are both one newline
+				if (i + 1 < len && v.charAt(i + 1) == '\n') {
+					i++;
+				}
+				c = '\n';
+			}
+			if (c == ' ' || c == '\t' || (unfold && c == '\n' && i + 1 < len && isBlank(v.charAt(i + 1)))) {
+				space = true;
+				continue;
+			}
+			if (sb.length() == 0) {
+				// Leading characters trim() would drop
+				space = false;
+				if (c <= ' ') continue;
+			}
+			if (space) {
+				sb.append(' ');
+				space = false;
+			}
+			sb.append(c);
+		}
+
+		// Trailing characters trim() would drop; runs of blanks are already one space
+		int end = sb.length();
+		while (end > 0 && sb.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		sb.setLength(end);
+		return sb.toString();
+	}
+
+	private static boolean isCanonical(String v, int len, boolean unfold) {
+		if (len == 0) return true;
+		if (v.charAt(0) <= ' ' || v.charAt(len - 1) <= ' ') return false;
+		for (int i = 0; i < len; i++) {
+			char c = v.charAt(i);
+			if (c == '\r' || c == '\t') return false;
+			if (c == ' ' && v.charAt(i + 1) == ' ') return false;
+			if (unfold && c == '\n' && isBlank(v.charAt(i + 1))) return false;
+		}
+		return true;
+	}
+
+	private static boolean isBlank(char c) {
+		return c == ' ' || c == '\t';
 	}
 
 	public static Map<String, String> canonParams(ContentTypeField f) {
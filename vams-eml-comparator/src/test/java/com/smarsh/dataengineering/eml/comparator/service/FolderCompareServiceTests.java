@@ -0,0 +1,105 @@
+package com.smarsh.dataengineering.eml.comparator.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.smarsh.dataengineering.eml.comparator.config.CompareProperties;
+import com.smarsh.dataengineering.eml.comparator.model.CompareReport;
+import com.smarsh.dataengineering.eml.comparator.model.EmlDiff;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FolderCompareServiceTests {
+
+	@TempDir
+	Path work;
+
+	@Test
+	void parallelCompareReportsTheSameDiffsInNameOrder() throws Exception {
+		Path enc = Files.createDirectories(work.resolve("encrypted"));
+		Path dec = Files.createDirectories(work.resolve("decrypted"));
+		writePairs(enc, dec);
+
+		CompareReport serial = service(new EmlComparator(), properties(false, 0, null)).compare(enc, dec);
+		CompareReport parallel = service(new EmlComparator(), properties(true, 4, null)).compare(enc, dec);
+
+		List<String> names = serial.emlDiffs().stream().map(EmlDiff::filename).toList();
+		assertThat(names).hasSize(14).isSorted();
+		assertThat(parallel.emlDiffs()).isEqualTo(serial.emlDiffs());
+	}
+
+	@Test
+	void diffCacheSkipsUnchangedPairs() throws Exception {
+		Path enc = Files.createDirectories(work.resolve("encrypted"));
+		Path dec = Files.createDirectories(work.resolve("decrypted"));
+		writePairs(enc, dec);
+		CompareReport expected = service(new EmlComparator(), properties(false, 0, null)).compare(enc, dec);
+
+		CountingComparator comparator = new CountingComparator();
+		Path cacheFile = work.resolve("cache/diffs.ndjson");
+		CompareProperties props = properties(true, 4, cacheFile.toString());
+
+		// First run: every pair is compared
+		assertThat(service(comparator, props).compare(enc, dec).emlDiffs()).isEqualTo(expected.emlDiffs());
+		assertThat(comparator.compares.getAndSet(0)).isEqualTo(40);
+
+		// Nothing changed: no pair is parsed, the differences come from the cache
+		assertThat(service(comparator, props).compare(enc, dec).emlDiffs()).isEqualTo(expected.emlDiffs());
+		assertThat(comparator.compares.getAndSet(0)).isZero();
+
+		// Only the pair with a changed file is compared again
+		Path changed = dec.resolve("msg-01.eml");
+		Files.writeString(changed, eml("Changed 1"));
+		Files.setLastModifiedTime(changed, FileTime.fromMillis(Files.getLastModifiedTime(changed).toMillis() + 5_000));
+		List<EmlDiff> diffs = service(comparator, props).compare(enc, dec).emlDiffs();
+		assertThat(comparator.compares.get()).isEqualTo(1);
+		assertThat(diffs.stream().map(EmlDiff::filename)).hasSize(15).contains("msg-01.eml");
+		// Compacted to the current line of each pair
+		assertThat(Files.readAllLines(cacheFile)).hasSize(40);
+	}
+
+	private static final class CountingComparator extends EmlComparator {
+		final AtomicInteger compares = new AtomicInteger();
+
+		@Override
+		public EmlDiff compare(String filename, Path encryptedEml, Path decryptedEml) {
+			compares.incrementAndGet();
+			return super.compare(filename, encryptedEml, decryptedEml);
+		}
+	}
+
+	private static void writePairs(Path enc, Path dec) throws Exception {
+		for (int i = 0; i < 40; i++) {
+			String name = String.format("msg-%02d.eml", i);
+			Files.writeString(enc.resolve(name), eml("Subject " + i));
+			// Every third pair has a different subject
+			Files.writeString(dec.resolve(name), eml(i % 3 == 0 ? "Changed " + i : "Subject " + i));
+		}
+	}
+
+	private static FolderCompareService service(EmlComparator comparator, CompareProperties props) {
+		return new FolderCompareService(comparator, new StreamingEmlComparator(), props);
+	}
+
+	private static CompareProperties properties(boolean parallel, int maxConcurrency, String cacheFile) {
+		return new CompareProperties(null, null, null, CompareProperties.Engine.DOM,
+				new CompareProperties.Parallel(parallel, maxConcurrency),
+				new CompareProperties.Cache(cacheFile != null, cacheFile));
+	}
+
+	private static String eml(String subject) {
+		return "From: a@example.com\r\n"
+				+ "To: b@example.com\r\n"
+				+ "Subject: " + subject + "\r\n"
+				+ "MIME-Version: 1.0\r\n"
+				+ "Content-Type: text/plain; charset=UTF-8\r\n"
+				+ "\r\n"
+				+ "Hello\r\n";
+	}
+}
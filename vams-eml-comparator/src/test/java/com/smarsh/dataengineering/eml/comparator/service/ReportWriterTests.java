@@ -0,0 +1,85 @@
+package com.smarsh.dataengineering.eml.comparator.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.smarsh.dataengineering.eml.comparator.model.EmlDiff;
+import com.smarsh.dataengineering.eml.comparator.model.FolderDiff;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReportWriterTests {
+
+	@TempDir
+	Path out;
+
+	@Test
+	void streamsEachDifferenceToJsonNdjsonAndMarkdown() throws Exception {
+		List<EmlDiff> diffs = List.of(
+				new EmlDiff("a.eml", List.of("Header differs: subject"), List.of(), List.of()),
+				new EmlDiff("b.eml", List.of(), List.of("root: multipart part count differs"), List.of("note")));
+
+		try (ReportWriter.Report report = new ReportWriter().open(out)) {
+			report.begin(new FolderDiff(List.of("only-enc.eml"), List.of(), 2));
+			for (EmlDiff d : diffs) {
+				report.add(d);
+			}
+			report.end();
+		}
+
+		ObjectMapper om = new ObjectMapper();
+		JsonNode json = om.readTree(out.resolve("report.json").toFile());
+		assertThat(json.get("generatedAt").asText()).isNotEmpty();
+		assertThat(json.at("/folderDiff/commonCount").asInt()).isEqualTo(2);
+		assertThat(json.at("/folderDiff/onlyInEncrypted/0").asText()).isEqualTo("only-enc.eml");
+		assertThat(om.treeToValue(json.get("emlDiffs"), EmlDiff[].class)).containsExactlyElementsOf(diffs);
+
+		List<String> lines = Files.readAllLines(out.resolve("report.ndjson"));
+		assertThat(lines).hasSize(2);
+		assertThat(om.readValue(lines.get(1), EmlDiff.class)).isEqualTo(diffs.get(1));
+
+		String md = Files.readString(out.resolve("report.md"));
+		assertThat(md).contains("- Only in encrypted: 1", "### a.eml", "### b.eml", "- note");
+		assertThat(md).doesNotContain("No unexpected differences");
+	}
+
+	@Test
+	void emptyReportSaysSo() throws Exception {
+		try (ReportWriter.Report report = new ReportWriter().open(out)) {
+			report.begin(new FolderDiff(List.of(), List.of(), 0));
+			report.end();
+		}
+
+		assertThat(new ObjectMapper().readTree(out.resolve("report.json").toFile()).get("emlDiffs")).isEmpty();
+		assertThat(out.resolve("report.ndjson")).isEmptyFile();
+		assertThat(Files.readString(out.resolve("report.md"))).endsWith("No unexpected differences found among common files.\n");
+	}
+
+	@Test
+	void reportThatDoesNotEndLeavesThePreviousOneInPlace() throws Exception {
+		ReportWriter writer = new ReportWriter();
+		try (ReportWriter.Report report = writer.open(out)) {
+			report.begin(new FolderDiff(List.of(), List.of(), 1));
+			report.end();
+		}
+		String previous = Files.readString(out.resolve("report.json"));
+
+		try (ReportWriter.Report report = writer.open(out)) {
+			report.begin(new FolderDiff(List.of(), List.of(), 2));
+			report.add(new EmlDiff("a.eml", List.of("Header differs: subject"), List.of(), List.of()));
+			// the comparison fails here, so end() is never called
+		}
+
+		assertThat(Files.readString(out.resolve("report.json"))).isEqualTo(previous);
+		try (var files = Files.list(out)) {
+			assertThat(files.map(p -> p.getFileName().toString()))
+					.containsExactlyInAnyOrder("report.json", "report.ndjson", "report.md");
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.smarsh.dataengineering.eml.comparator.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.smarsh.dataengineering.eml.comparator.model.EmlDiff;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamingEmlComparatorTests {
+
+	private static final String ORIGINAL = """
+			From: a@example.com
+			To: b@example.com
+			Subject:  Quarterly
+			  report
+			MIME-Version: 1.0
+			Content-Type: multipart/mixed; boundary="outer"
+
+			--outer
+			Content-Type: text/plain; charset=UTF-8
+
+			Hello
+			--outer
+			Content-Type: application/pdf; name="r.pdf"
+			Content-Disposition: attachment; filename="r.pdf"
+			Content-Transfer-Encoding: base64
+
+			JVBERi0xLjQK
+			--outer
+			Content-Type: message/rfc822
+
+			From: c@example.com
+			Subject: Forwarded
+			Content-Type: text/plain
+
+			Inner body
+			--outer--
+			""";
+
+	@TempDir
+	Path work;
+
+	@Test
+	void reportsTheSameDifferencesAsTheDomEngine() throws Exception {
+		Path enc = work.resolve("enc.eml");
+		Files.writeString(enc, ORIGINAL.replace("\n", "\r\n"));
+		// Only the line endings differ
+		assertSameDiffs(enc, work.resolve("same.eml"), ORIGINAL, false);
+		assertSameDiffs(enc, work.resolve("changed.eml"), ORIGINAL
+				.replace("filename=\"r.pdf\"", "filename=\"s.pdf\"")
+				.replace("charset=UTF-8", "charset=ISO-8859-1")
+				.replace("Subject: Forwarded", "Subject: Fwd")
+				.replace("Hello\n", ""), true);
+		assertSameDiffs(enc, work.resolve("flat.eml"), """
+				From: a@example.com
+				To: b@example.com
+				Subject: Quarterly report
+				MIME-Version: 1.0
+				Content-Type: text/plain
+
+				Hello
+				""", true);
+	}
+
+	private void assertSameDiffs(Path enc, Path dec, String content, boolean different) throws Exception {
+		Files.writeString(dec, content);
+		EmlDiff dom = new EmlComparator().compare("x.eml", enc, dec);
+		EmlDiff stream = new StreamingEmlComparator().compare("x.eml", enc, dec);
+
+		assertThat(stream.notes()).isEmpty();
+		assertThat(stream.hasDifferences()).isEqualTo(different);
+		assertThat(stream.headerDifferences()).isEqualTo(dom.headerDifferences());
+		assertThat(stream.structureDifferences()).isEqualTo(dom.structureDifferences());
+	}
+}
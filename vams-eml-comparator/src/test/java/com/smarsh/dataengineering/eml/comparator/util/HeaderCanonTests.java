@@ -0,0 +1,33 @@
+package com.smarsh.dataengineering.eml.comparator.util;
+
+import org.apache.james.mime4j.stream.Field;
+import org.apache.james.mime4j.stream.RawField;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HeaderCanonTests {
+
+	@Test
+	void sortsByNameAndKeepsTheOrderOfRepeatedFields() {
+		List<Field> fields = List.of(
+				new RawField("Subject", " Hello\r\n  world "),
+				new RawField("Received", "from b"),
+				new RawField("X-Ignored", "x"),
+				new RawField("received", "from a"),
+				new RawField("From", "a@example.com"));
+
+		CanonicalHeader h = HeaderCanon.canonicalize(fields, Set.of("x-ignored"));
+
+		assertThat(h.size()).isEqualTo(4);
+		assertThat(h.name(0)).isEqualTo("from");
+		assertThat(h.name(1)).isEqualTo("received");
+		assertThat(h.end(1)).isEqualTo(3);
+		assertThat(h.values(1, 3)).containsExactly("from b", "from a");
+		assertThat(h.name(3)).isEqualTo("subject");
+		assertThat(h.values(3, h.end(3))).containsExactly("Hello world");
+	}
+}
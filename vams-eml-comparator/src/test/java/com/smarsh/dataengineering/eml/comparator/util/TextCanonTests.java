@@ -0,0 +1,61 @@
+package com.smarsh.dataengineering.eml.comparator.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TextCanonTests {
+
+	/** The regex implementation the single-pass one replaces. */
+	static String regexCanonHeaderValue(String v) {
+		if (v == null) return "";
+		String s = v.replace("\r\n", "\n").replace("\r", "\n");
+		s = s.replaceAll("\n[ \t]+", " ");
+		s = s.replaceAll("[ \t]+", " ").trim();
+		return s;
+	}
+
+	static String regexCanonParam(String v) {
+		if (v == null) return "";
+		String s = v.replace("\r\n", "\n").replace("\r", "\n").trim();
+		s = s.replaceAll("[ \t]+", " ");
+		return s;
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+			"", " ", "\t", "\r\n", "plain", "  lead", "trail \t", "a  b\t\tc",
+			"Quarterly\r\n report", "Quarterly\n\treport", "a\r\tb", "a\r\r\n b", "a\n\nb", "a \n b", "a\n \n b",
+			"a \r\nb", "\n a", "a\n", "a\u0001", "\u0001 a", "a \u0001", "a\fb", "=?UTF-8?B?SGVsbG8=?=\r\n =?UTF-8?B?V29ybGQ=?="
+	})
+	void matchesTheRegexImplementation(String v) {
+		assertThat(TextCanon.canonHeaderValue(v)).isEqualTo(regexCanonHeaderValue(v));
+		assertThat(TextCanon.canonParam(v)).isEqualTo(regexCanonParam(v));
+	}
+
+	@Test
+	void matchesTheRegexImplementationOnRandomInput() {
+		char[] alphabet = {' ', ' ', '\t', '\r', '\n', 'a', 'b', '=', '\u0001', 'é'};
+		Random random = new Random(42);
+		for (int n = 0; n < 100_000; n++) {
+			char[] chars = new char[random.nextInt(12)];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = alphabet[random.nextInt(alphabet.length)];
+			}
+			String v = new String(chars);
+			assertThat(TextCanon.canonHeaderValue(v)).as("%s", v.chars().boxed().toList()).isEqualTo(regexCanonHeaderValue(v));
+			assertThat(TextCanon.canonParam(v)).as("%s", v.chars().boxed().toList()).isEqualTo(regexCanonParam(v));
+		}
+	}
+
+	@Test
+	void returnsCanonicalValuesAsTheyAre() {
+		String v = "multipart/mixed; boundary=\"b1\"";
+		assertThat(TextCanon.canonHeaderValue(v)).isSameAs(v);
+		assertThat(TextCanon.canonParam(v)).isSameAs(v);
+	}
+}